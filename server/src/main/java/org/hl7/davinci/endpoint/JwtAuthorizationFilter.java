@@ -1,21 +1,31 @@
 package org.hl7.davinci.endpoint;
 
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.SigningKeyResolver;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.UnsupportedJwtException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.hl7.davinci.endpoint.components.OutboundHttpClient;
 import org.hl7.davinci.endpoint.database.PublicKeyRepository;
 import org.hl7.davinci.endpoint.database.RequestLog;
 import org.hl7.davinci.endpoint.database.RequestService;
@@ -23,18 +33,58 @@ import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import org.springframework.util.AntPathMatcher;
 
 
 public class JwtAuthorizationFilter extends BasicAuthenticationFilter {
 
+  /**
+   * The paths that need a valid token, every other request skips this filter.
+   */
+  public static final String[] AUTHENTICATED_PATHS = {"/**/cds-services/**", "/**/requests/**"};
+
+  // longest value of a request field kept in a failure log
+  private static final int MAX_FIELD_LENGTH = 512;
+
+  private static final List<String> REQUIRED_HEADERS = Arrays.asList("alg","typ","kid");
+  private static final List<String> REQUIRED_PAYLOAD = Arrays.asList("iss","aud","exp","iat","jti");
+
+  // ObjectMapper is thread safe once configured, so one is shared by every request
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final AntPathMatcher PATH_MATCHER = new AntPathMatcher();
+
   RequestService requestService;
   private PublicKeyRepository publicKeyRepository;
+  private OutboundHttpClient httpClient;
+  // keep a request log for one in this many authorization failures
+  private final int failureLogSampling;
+  private final AtomicLong failures = new AtomicLong();
 
   public JwtAuthorizationFilter(AuthenticationManager authManager, RequestService requestService,
-                                PublicKeyRepository publicKeyRepository) {
+                                PublicKeyRepository publicKeyRepository, OutboundHttpClient httpClient) {
+    this(authManager, requestService, publicKeyRepository, httpClient, 1);
+  }
+
+  public JwtAuthorizationFilter(AuthenticationManager authManager, RequestService requestService,
+                                PublicKeyRepository publicKeyRepository, OutboundHttpClient httpClient,
+                                int failureLogSampling) {
     super(authManager);
     this.requestService = requestService;
     this.publicKeyRepository = publicKeyRepository;
+    this.httpClient = httpClient;
+    this.failureLogSampling = Math.max(failureLogSampling, 1);
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    String path = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo());
+    for (String pattern : AUTHENTICATED_PATHS) {
+      if (PATH_MATCHER.match(pattern, path)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -42,22 +92,9 @@ public class JwtAuthorizationFilter extends BasicAuthenticationFilter {
                                   HttpServletResponse res,
                                   FilterChain chain) throws IOException, ServletException {
 
-    String requestStr;
-    try {
-      ObjectMapper mapper = new ObjectMapper();
-      ObjectWriter w = mapper.writer();
-      requestStr = w.writeValueAsString(req);
-    } catch (Exception e) {
-      logger.error("failed to write request json: " + e.getMessage());
-      requestStr = "{\"error\": \"Authorization failed, request rejected\"}";
-    }
-
-    RequestLog requestLog = new RequestLog(requestStr.getBytes(), new Date().getTime());
-
-
     String header = req.getHeader("Authorization");
     if (header == null || !header.startsWith("Bearer")) {
-      requestService.create(requestLog);
+      logFailure(req, "no bearer auth token present");
       logger.warn("JWT authorization failed - no bearer auth token present");
       chain.doFilter(req, res);
       return;
@@ -66,107 +103,109 @@ public class JwtAuthorizationFilter extends BasicAuthenticationFilter {
     UsernamePasswordAuthenticationToken authentication = getAuthentication(req);
     SecurityContextHolder.getContext().setAuthentication(authentication);
     if (authentication == null) {
-      requestService.create(requestLog);
+      logFailure(req, "invalid bearer auth token");
     }
     chain.doFilter(req, res);
   }
 
+  /**
+   * Keep a request log of a sample of the authorization failures. Only a few fields of the request are kept,
+   * each cut to MAX_FIELD_LENGTH, never the token.
+   */
+  private void logFailure(HttpServletRequest req, String reason) {
+    if ((failures.getAndIncrement() % failureLogSampling) != 0) {
+      return;
+    }
+    String requestStr;
+    try {
+      ObjectNode diagnostics = MAPPER.createObjectNode();
+      diagnostics.put("error", "Authorization failed, request rejected");
+      diagnostics.put("reason", reason);
+      diagnostics.put("method", req.getMethod());
+      diagnostics.put("requestURI", truncate(req.getRequestURI()));
+      diagnostics.put("queryString", truncate(req.getQueryString()));
+      diagnostics.put("remoteAddr", req.getRemoteAddr());
+      diagnostics.put("userAgent", truncate(req.getHeader("User-Agent")));
+      if (failureLogSampling > 1) {
+        diagnostics.put("sampling", failureLogSampling);
+      }
+      requestStr = MAPPER.writeValueAsString(diagnostics);
+    } catch (JsonProcessingException e) {
+      logger.error("failed to write request json: " + e.getMessage());
+      requestStr = "{\"error\": \"Authorization failed, request rejected\"}";
+    }
+    requestService.create(new RequestLog(requestStr.getBytes(StandardCharsets.UTF_8), new Date().getTime()));
+  }
+
+  private static String truncate(String value) {
+    if (value == null || value.length() <= MAX_FIELD_LENGTH) {
+      return value;
+    }
+    return value.substring(0, MAX_FIELD_LENGTH) + "...";
+  }
+
   private UsernamePasswordAuthenticationToken getAuthentication(HttpServletRequest request) {
     String token = request.getHeader("Authorization");
     // parse the token.
     token = token.replace("Bearer ", "");
-    String user = isTokenWellFormed(token);
 
-    // Check the token's signature.  Throws an exception if the token is rejected
+    // Parse the token once. The resolver checks the required header and payload fields before it looks up the
+    // public key, so a token that is not well formed is rejected without fetching a key or checking its signature.
+    // Throws an exception if the token is rejected
+    Jws<Claims> jws;
     try {
       // The KeyResolver fetches the public key from the jku
       // will throw an exception if the signature cannot be verified
-      Jwts.parser()
-          .setSigningKeyResolver(new SigningKeyResolverCrd(publicKeyRepository))
-          .parseClaimsJws(token).getSignature();
+      jws = Jwts.parser()
+          .setSigningKeyResolver(new WellFormedKeyResolver(new SigningKeyResolverCrd(publicKeyRepository, httpClient)))
+          .parseClaimsJws(token);
+    } catch (MalformedJwtException | UnsupportedJwtException | IllegalArgumentException formatEx) {
+      logger.warn("Invalid Bearer token - the token was not well formed: " + formatEx.getMessage());
+      return null;
     } catch (io.jsonwebtoken.SignatureException sigEx) {
       logger.info("Failed to verify token signature, rejecting token.");
       return null;
     }
 
-    if (user != null) {
-      logger.info("Validated JWT token structure from " + user);
-      return new UsernamePasswordAuthenticationToken(user, null, new ArrayList<>());
+    // keep the quotes of the json string, as the issuer has always been reported
+    String user = "\"" + jws.getBody().get(Claims.ISSUER) + "\"";
+    logger.info("Validated JWT token structure from " + user);
+    return new UsernamePasswordAuthenticationToken(user, null, new ArrayList<>());
+  }
+
+  private static List<String> missingFields(Map<String, Object> fields, List<String> required) {
+    List<String> missing = new ArrayList<>();
+    for (String field : required) {
+      if (!fields.containsKey(field)) {
+        missing.add(field);
+      }
     }
-    logger.warn("Invalid Bearer token - the token was not well formed.");
-    return null;
+    return missing;
   }
 
   /**
-   * Checks if the token is well formed.  This includes following
-   * rfc7515 standard for JWT and the CDS-Hooks specification.
-   *
-   * @param token the JWT to be checked
-   * @return a boolean indicating whether the token is well formed
+   * Checks that the token is well formed before resolving its key. This includes following
+   * rfc7515 standard for JWT and the CDS-Hooks specification: the header and the payload
+   * need the required fields, their contents are checked later.
    */
-  private String isTokenWellFormed(String token) {
-    JsonParser parser = new JsonParser();
-    // JWT tokens are of the form:
-    //    header     payload     signature
-    //   xxxxxxxxx.yyyyyyyyyyy.zzzzzzzzzzzz
-    // where each section is base64 encoded JSON.
-    // We need to check if the header and the payload
-    // have the correct keys and if the signature is present.
-    // The signature will be validated later.
-
-    String[] tokens = token.split("\\.");
-    if (tokens.length != 3) {
-      logger.warn("Token doesn't have proper format, rejecting");
-      // tokens without all three sections are invalid
-      return null;
+  private static class WellFormedKeyResolver extends SigningKeyResolverAdapter {
+    private final SigningKeyResolver keyResolver;
+
+    WellFormedKeyResolver(SigningKeyResolver keyResolver) {
+      this.keyResolver = keyResolver;
     }
-    try {
-      String header = new String(Base64.getDecoder().decode(tokens[0]));
-      String payload = new String(Base64.getDecoder().decode(tokens[1]));
-
-
-      // we just want to make sure the json has the correct fields
-      // their contents aren't really important, if the contents are
-      // bad we can reject them later.
-      List<String> requiredHeaders = Arrays.asList("alg","typ","kid");
-      List<String> requiredPayload = Arrays.asList("iss","aud","exp","iat","jti");
-
-      JsonObject jsonHeader = parser
-          .parse(header)
-          .getAsJsonObject();
-      boolean validHeader = jsonHeader
-          .keySet()
-          .containsAll(requiredHeaders);
-
-      JsonObject jsonPayload = parser
-          .parse(payload)
-          .getAsJsonObject();
-      boolean validPayload = jsonPayload
-          .keySet()
-          .containsAll(requiredPayload);
-
-      if (validHeader && validPayload) {
-        return jsonPayload.get("iss").toString();
-      } else {
-        if (!validHeader) {
-          requiredHeaders.removeAll(jsonHeader.keySet());
-          logger.warn("Token header rejected, missing required properties - " + requiredHeaders);
-        }
-        if (!validPayload) {
-          requiredPayload.removeAll(jsonPayload.keySet());
-          logger.warn("Token payload rejected, missing required properties - " + requiredPayload);
-        }
-        return null;
-      }
-      // if any part of the above fails, the token
-      // is of invalid format
-    } catch (IllegalArgumentException decodingError) {
-      logger.warn("The token was not properly base64 encoded - cannot parse token");
-      return null;
 
-    } catch (IllegalStateException parsingError) {
-      logger.warn("The token contained invalid JSON");
-      return null;
+    @Override
+    public Key resolveSigningKey(JwsHeader header, Claims claims) {
+      List<String> missingHeaders = missingFields(header, REQUIRED_HEADERS);
+      List<String> missingPayload = missingFields(claims, REQUIRED_PAYLOAD);
+      if (!missingHeaders.isEmpty()) {
+        throw new MalformedJwtException("Token header rejected, missing required properties - " + missingHeaders);
+      }
+      if (!missingPayload.isEmpty()) {
+        throw new MalformedJwtException("Token payload rejected, missing required properties - " + missingPayload);
+      }
+      return keyResolver.resolveSigningKey(header, claims);
     }
   }
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 package org.hl7.davinci.endpoint;
 
 import com.google.common.collect.ImmutableList;
+import org.hl7.davinci.endpoint.components.OutboundHttpClient;
 import org.hl7.davinci.endpoint.config.YamlConfig;
 import org.hl7.davinci.endpoint.database.PublicKeyRepository;
 import org.hl7.davinci.endpoint.database.RequestService;
@@ -32,6 +33,9 @@ class SecurityConfig extends WebSecurityConfigurerAdapter {
   @Autowired
   private PublicKeyRepository publicKeyRepository;
 
+  @Autowired
+  private OutboundHttpClient httpClient;
+
   /**
    * The CORS preflight must be accepted here or it will get rejected by the
    * Auth filter.  General CORS settings can be set here.
@@ -64,10 +68,11 @@ class SecurityConfig extends WebSecurityConfigurerAdapter {
     http.csrf().disable();
     if (myConfig.getCheckJwt()) {
       http.authorizeRequests()
-          .antMatchers("/**/cds-services/**", "/**/requests/**").authenticated()
+          .antMatchers(JwtAuthorizationFilter.AUTHENTICATED_PATHS).authenticated()
           .anyRequest().permitAll()
           .and()
-          .addFilter(new JwtAuthorizationFilter(authenticationManager(), requestService, publicKeyRepository));
+          .addFilter(new JwtAuthorizationFilter(authenticationManager(), requestService, publicKeyRepository,
+              httpClient, myConfig.getAuthFailureLogSampling()));
     }else {
       http.headers().frameOptions().disable();
     }
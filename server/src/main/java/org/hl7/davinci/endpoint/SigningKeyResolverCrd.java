@@ -14,17 +14,19 @@ import java.security.spec.RSAPublicKeySpec;
 import java.util.Base64;
 import java.util.Optional;
 import java.util.logging.Logger;
+import org.hl7.davinci.endpoint.components.OutboundHttpClient;
 import org.hl7.davinci.endpoint.database.PublicKeyRepository;
-import org.springframework.web.client.RestTemplate;
 
 public class SigningKeyResolverCrd extends SigningKeyResolverAdapter {
   private static Logger logger = Logger.getLogger(Application.class.getName());
 
   private PublicKeyRepository publicKeyRepository;
+  private OutboundHttpClient httpClient;
 
-  public SigningKeyResolverCrd(PublicKeyRepository publicKeyRepository) {
+  public SigningKeyResolverCrd(PublicKeyRepository publicKeyRepository, OutboundHttpClient httpClient) {
     super();
     this.publicKeyRepository = publicKeyRepository;
+    this.httpClient = httpClient;
   }
 
   @Override
@@ -34,8 +36,6 @@ public class SigningKeyResolverCrd extends SigningKeyResolverAdapter {
     String jku = (String) jwsHeader.get("jku");
     JsonObject jwkPub = null;
 
-    RestTemplate restTemplate = new RestTemplate();
-
     String jwkString = null;
     try {
       Optional<org.hl7.davinci.endpoint.database.PublicKey> response = publicKeyRepository.findById(keyId);
@@ -56,7 +56,7 @@ public class SigningKeyResolverCrd extends SigningKeyResolverAdapter {
       // Fetch the public key from the JKU.  Right now
       // only PEM (X509) format is supported.
 
-      String result = restTemplate.getForObject(jku + "/" + keyId, String.class);
+      String result = httpClient.getRestTemplate().getForObject(jku + "/" + keyId, String.class);
       JsonParser parser = new JsonParser();
       jwkPub = parser.parse(result).getAsJsonObject();
       // "pem" is just the arbitrary key used in the json
@@ -38,4 +38,16 @@ public class Utils {
     }
   }
 
+  /**
+   * @return true if the request asks not to be answered from a cache, with Cache-Control: no-cache or no-store
+   */
+  public static boolean isNoCache(HttpServletRequest request) {
+    String cacheControl = request.getHeader(HttpHeaders.CACHE_CONTROL);
+    if (cacheControl == null) {
+      return false;
+    }
+    cacheControl = cacheControl.toLowerCase();
+    return cacheControl.contains("no-cache") || cacheControl.contains("no-store");
+  }
+
 }
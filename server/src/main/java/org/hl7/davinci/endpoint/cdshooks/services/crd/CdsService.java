@@ -9,6 +9,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import javax.validation.Valid;
 
 import com.google.gson.Gson;
@@ -20,9 +22,17 @@ import org.hl7.davinci.PrefetchTemplateElement;
 import org.hl7.davinci.RequestIncompleteException;
 import org.hl7.davinci.endpoint.config.YamlConfig;
 import org.hl7.davinci.endpoint.components.CardBuilder;
+import org.hl7.davinci.endpoint.components.CqlEvaluationExecutor;
+import org.hl7.davinci.endpoint.components.PrefetchCache;
 import org.hl7.davinci.endpoint.components.PrefetchHydrator;
+import org.hl7.davinci.endpoint.components.PrefetchTemplate;
+import org.hl7.davinci.endpoint.components.OutboundHttpClient;
+import org.hl7.davinci.endpoint.components.PrefetchQueryExecutor;
 import org.hl7.davinci.endpoint.components.CardBuilder.CqlResultsForCard;
 import org.hl7.davinci.endpoint.components.QueryBatchRequest;
+import org.hl7.davinci.endpoint.cql.CqlResultSnapshot;
+import org.hl7.davinci.endpoint.cdshooks.services.crd.r4.FhirBundleProcessor;
+import org.hl7.davinci.endpoint.cql.r4.PrefetchRetrieveProvider;
 import org.hl7.davinci.endpoint.database.FhirResourceRepository;
 import org.hl7.davinci.endpoint.database.RequestLog;
 import org.hl7.davinci.endpoint.database.RequestService;
@@ -34,6 +44,7 @@ import org.hl7.davinci.r4.CoverageGuidance;
 import org.hl7.davinci.r4.crdhook.orderselect.OrderSelectRequest;
 import org.hl7.davinci.r4.crdhook.CrdPrefetch;
 import org.hl7.davinci.r4.crdhook.DiscoveryExtension;
+import org.hl7.fhir.r4.model.Bundle;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,8 +97,23 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
   @Autowired
   private FhirResourceRepository fhirResourceRepository;
 
+  @Autowired
+  private CqlEvaluationExecutor cqlEvaluationExecutor;
+
+  @Autowired
+  private PrefetchQueryExecutor prefetchQueryExecutor;
+
+  @Autowired
+  private OutboundHttpClient httpClient;
+
+  @Autowired
+  private PrefetchCache prefetchCache;
+
   private final List<PrefetchTemplateElement> prefetchElements;
 
+  // the prefetch queries parsed once, by prefetch key
+  private final Map<String, PrefetchTemplate> prefetchTemplates = new HashMap<>();
+
   protected FhirComponentsT fhirComponents;
 
   private final DiscoveryExtension extension;
@@ -125,6 +151,7 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
     prefetch = new Prefetch();
     for (PrefetchTemplateElement prefetchElement : prefetchElements) {
       this.prefetch.put(prefetchElement.getKey(), prefetchElement.getQuery());
+      this.prefetchTemplates.put(prefetchElement.getKey(), new PrefetchTemplate(prefetchElement.getQuery()));
     }
     this.fhirComponents = fhirComponents;
     this.extension = extension;
@@ -136,6 +163,10 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
     return prefetchElements;
   }
 
+  public PrefetchTemplate getPrefetchTemplate(String prefetchKey) {
+    return prefetchTemplates.get(prefetchKey);
+  }
+
   /**
    * Performs generic operations for incoming requests of any type.
    *
@@ -143,22 +174,54 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
    * @return The response from the server
    */
   public CdsResponse handleRequest(@Valid @RequestBody requestTypeT request, URL applicationBaseUrl) {
+    return handleRequest(request, applicationBaseUrl, false);
+  }
+
+  /**
+   * Performs generic operations for incoming requests of any type.
+   *
+   * @param request the generically typed incoming request
+   * @param noCache true to fetch the prefetch from the fhir server even if it was cached
+   * @return The response from the server
+   */
+  public CdsResponse handleRequest(@Valid @RequestBody requestTypeT request, URL applicationBaseUrl,
+      boolean noCache) {
     // create the RequestLog
     RequestLog requestLog = new RequestLog(request, new Date().getTime(),
-        this.fhirComponents.getFhirVersion().toString(), this.id, requestService, 5);
+        this.fhirComponents.getFhirVersion().toString(), this.id, requestService, 5, myConfig.isRequestLogBody());
+
+    // turn away orders whose codes have no rules before doing any work for them
+    if (!FhirBundleProcessor.ordersMayHaveRules(request.getContext().getDraftOrders(), fileStore)) {
+      logger.info("CdsService::handleRequest(): no rules for the codes of the draft orders");
+      CdsResponse response = new CdsResponse();
+      // no error cards on empty when order-select request
+      if (!(request instanceof OrderSelectRequest)) {
+        response.addCard(CardBuilder.summaryCard(CardTypes.COVERAGE, "No documentation rules found"));
+      }
+      requestLog.setCardListFromCards(response.getCards());
+      requestLog.setResults("No rules for the codes of the draft orders");
+      requestService.edit(requestLog);
+      return response;
+    }
 
     // Parsed request
     requestLog.advanceTimeline(requestService);
 
-    PrefetchHydrator prefetchHydrator = new PrefetchHydrator(this, request, this.fhirComponents);
+    PrefetchHydrator prefetchHydrator = new PrefetchHydrator(this, request, this.fhirComponents,
+        httpClient, prefetchQueryExecutor);
+    prefetchHydrator.setBatch(myConfig.isPrefetchBatch());
+    prefetchHydrator.setCache(prefetchCache, noCache);
     prefetchHydrator.hydrate();
+    if (!prefetchHydrator.getTimedOutKeys().isEmpty()) {
+      requestLog.setResults("Prefetch timed out for: " + String.join(", ", prefetchHydrator.getTimedOutKeys()));
+    }
 
     // hydrated
     requestLog.advanceTimeline(requestService);
 
     // Attempt a Query Batch Request to backfill missing attributes.
     if (myConfig.isQueryBatchRequest()) {
-      QueryBatchRequest qbr = new QueryBatchRequest(this.fhirComponents);
+      QueryBatchRequest qbr = new QueryBatchRequest(this.fhirComponents, httpClient);
       this.attempQueryBatchRequest(request, qbr);
     }
 
@@ -198,10 +261,31 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
 
     // no error cards on empty when order-select request
 
-    boolean foundApplicableRule = false;
+    // record the topics in order, then evaluate the rules, which may run in parallel
     for (CoverageRequirementRuleResult lookupResult : lookupResults) {
       requestLog.addTopic(requestService, lookupResult.getTopic());
-      CqlResultsForCard results = executeCqlAndGetRelevantResults(lookupResult.getContext(), lookupResult.getTopic());
+    }
+    // a rule that runs out of time has no results
+    List<CqlResultsForCard> evaluatedResults = cqlEvaluationExecutor.evaluateAll(lookupResults,
+        (lookupResult, deadline) -> executeCqlAndGetRelevantResults(
+            evaluateDefines(lookupResult.getContext(), deadline), lookupResult.getTopic()),
+        lookupResult -> null);
+
+    // build the cards in the order the rules were found
+    boolean foundApplicableRule = false;
+    List<String> timedOutTopics = new ArrayList<>();
+    for (int i = 0; i < lookupResults.size(); i++) {
+      CoverageRequirementRuleResult lookupResult = lookupResults.get(i);
+      CqlResultsForCard results = evaluatedResults.get(i);
+      if (results == null) {
+        String msg = "Coverage requirements for " + lookupResult.getTopic() + " could not be determined in time";
+        logger.warn(msg + "; summary card sent to client");
+        response.addCard(CardBuilder.summaryCard(CardTypes.COVERAGE, msg));
+        timedOutTopics.add(lookupResult.getTopic());
+        // the rule may well apply, do not claim that no rules were found
+        foundApplicableRule = true;
+        continue;
+      }
       CoverageRequirements coverageRequirements = results.getCoverageRequirements();
 
       if (results.ruleApplies()) {
@@ -285,6 +369,16 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
       CardBuilder.errorCardIfNonePresent(CardTypes.COVERAGE, response);
     }
 
+    if (!timedOutTopics.isEmpty()) {
+      String timedOut = "CQL evaluation timed out for: " + String.join(", ", timedOutTopics);
+      requestLog.setResults(requestLog.getResults() == null ? timedOut : requestLog.getResults() + "; " + timedOut);
+    }
+
+    if (timedOutTopics.isEmpty() && !myConfig.isRequestLogSuccessBody()) {
+      // the request went through, keep only its metadata
+      requestLog.clearRequestBody();
+    }
+
     // Ading card to requestLog
     requestLog.setCardListFromCards(response.getCards());
     requestService.edit(requestLog);
@@ -343,17 +437,44 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
     return listOfLinks;
   }
 
-  protected Object evaluateStatement(String statement, Context context) {
-    try {
-      return context.resolveExpressionRef(statement).evaluate(context);
-      // can be thrown if statement is not defined in the cql
-    } catch (IllegalArgumentException e) {
-      logger.error(e.toString());
-      return null;
-    } catch (Exception e) {
-      logger.error(e.toString());
-      return null;
+  /**
+   * Build the retrieve provider for the CQL of a request from the resources sent with it. When
+   * cqlRetrieveFromFhirServer is set, retrieves for resource types that were not sent go to the
+   * request's fhirServer, through the shared OutboundHttpClient.
+   */
+  protected PrefetchRetrieveProvider createRetrieveProvider(requestTypeT request, CrdPrefetch prefetch) {
+    List<Bundle> bundles = new ArrayList<>();
+    bundles.add(request.getContext().getDraftOrders());
+    if (prefetch != null) {
+      bundles.add(prefetch.getDeviceRequestBundle());
+      bundles.add(prefetch.getMedicationRequestBundle());
+      bundles.add(prefetch.getNutritionOrderBundle());
+      bundles.add(prefetch.getServiceRequestBundle());
+      bundles.add(prefetch.getSupplyRequestBundle());
+      bundles.add(prefetch.getAppointmentBundle());
+      bundles.add(prefetch.getEncounterBundle());
+      bundles.add(prefetch.getMedicationDispenseBundle());
+      bundles.add(prefetch.getMedicationStatementBundle());
     }
+
+    String fhirServer = null;
+    String accessToken = null;
+    if (myConfig.isCqlRetrieveFromFhirServer()) {
+      fhirServer = request.getFhirServer();
+      if (request.getFhirAuthorization() != null) {
+        accessToken = request.getFhirAuthorization().getAccessToken();
+      }
+    }
+    return new PrefetchRetrieveProvider(bundles, fhirServer, accessToken, httpClient.getHttpClient());
+  }
+
+  /**
+   * Snapshot the results of the defines of a rule so that each define is evaluated at most once, and
+   * defines missing from the rule read as null instead of throwing. No more defines are evaluated once the
+   * deadline (System.currentTimeMillis()) has passed.
+   */
+  protected CqlResultSnapshot evaluateDefines(Context context, long deadline) {
+    return new CqlResultSnapshot(context, deadline);
   }
 
   private Link smartLinkBuilder(String patientId, String fhirBase, URL applicationBaseUrl, String questionnaireUri,
@@ -426,7 +547,7 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
   public abstract List<CoverageRequirementRuleResult> createCqlExecutionContexts(requestTypeT request,
       FileStore fileStore, String baseUrl) throws RequestIncompleteException;
 
-  protected abstract CqlResultsForCard executeCqlAndGetRelevantResults(Context context, String topic);
+  protected abstract CqlResultsForCard executeCqlAndGetRelevantResults(CqlResultSnapshot cqlResults, String topic);
 
   /**
    * Delegates query batch request to child classes based on their prefetch types.
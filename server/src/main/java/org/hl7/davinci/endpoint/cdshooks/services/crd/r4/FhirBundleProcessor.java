@@ -1,19 +1,22 @@
 package org.hl7.davinci.endpoint.cdshooks.services.crd.r4;
 
 import org.hl7.davinci.RequestIncompleteException;
-import org.hl7.davinci.endpoint.cql.CqlRule;
+import org.hl7.davinci.endpoint.cql.CompiledCqlRule;
 import org.hl7.davinci.endpoint.cql.r4.CqlExecutionContextBuilder;
+import org.hl7.davinci.endpoint.cql.r4.PrefetchRetrieveProvider;
 import org.hl7.davinci.endpoint.database.RuleMapping;
 import org.hl7.davinci.endpoint.files.FileStore;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleResult;
 import org.hl7.davinci.r4.Utilities;
 import org.hl7.fhir.r4.model.*;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -23,13 +26,23 @@ public class FhirBundleProcessor {
   private FileStore fileStore;
   private String baseUrl;
   private List<String> selections;
+  private RetrieveProvider retrieveProvider;
   private List<CoverageRequirementRuleResult> results = new ArrayList<>();
 
 
-  public FhirBundleProcessor(FileStore fileStore, String baseUrl, List<String> selections) {
+  public FhirBundleProcessor(FileStore fileStore, String baseUrl, List<String> selections, RetrieveProvider retrieveProvider) {
     this.fileStore = fileStore;
     this.baseUrl = baseUrl;
     this.selections = selections;
+    this.retrieveProvider = retrieveProvider;
+  }
+
+  public FhirBundleProcessor(FileStore fileStore, String baseUrl, List<String> selections) {
+    this(fileStore, baseUrl, selections, PrefetchRetrieveProvider.empty());
+  }
+
+  public FhirBundleProcessor(FileStore fileStore, String baseUrl, RetrieveProvider retrieveProvider) {
+    this(fileStore, baseUrl, new ArrayList<>(), retrieveProvider);
   }
 
   public FhirBundleProcessor(FileStore fileStore, String baseUrl) {
@@ -38,6 +51,44 @@ public class FhirBundleProcessor {
 
   public List<CoverageRequirementRuleResult> getResults() { return results; }
 
+  /**
+   * Check the codes of the orders against the loaded rules, using only the in memory rule index.
+   * @param orders the orders of the request, such as its draftOrders
+   * @param fileStore the file store holding the rules
+   * @return false only when there are orders and none of their codes can match a rule
+   */
+  public static boolean ordersMayHaveRules(Bundle orders, FileStore fileStore) {
+    if (orders == null || orders.getEntry().isEmpty()) {
+      return true;
+    }
+    for (Bundle.BundleEntryComponent entry : orders.getEntry()) {
+      CodeableConcept code = getOrderCode(entry.getResource());
+      if (code == null) {
+        // the codes cannot be read from this order, leave it to the full lookup
+        return true;
+      }
+      for (Coding coding : code.getCoding()) {
+        if (fileStore.mayHaveRules(coding.getSystem(), coding.getCode())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static CodeableConcept getOrderCode(Resource resource) {
+    if (resource instanceof DeviceRequest && ((DeviceRequest) resource).hasCodeCodeableConcept()) {
+      return ((DeviceRequest) resource).getCodeCodeableConcept();
+    } else if (resource instanceof MedicationRequest && ((MedicationRequest) resource).hasMedicationCodeableConcept()) {
+      return ((MedicationRequest) resource).getMedicationCodeableConcept();
+    } else if (resource instanceof MedicationDispense && ((MedicationDispense) resource).hasMedicationCodeableConcept()) {
+      return ((MedicationDispense) resource).getMedicationCodeableConcept();
+    } else if (resource instanceof ServiceRequest && ((ServiceRequest) resource).hasCode()) {
+      return ((ServiceRequest) resource).getCode();
+    }
+    return null;
+  }
+
   public void processDeviceRequests(Bundle deviceRequestBundle) {
     List<DeviceRequest> deviceRequestList = Utilities.getResourcesOfTypeFromBundle(DeviceRequest.class, deviceRequestBundle);
     if (!deviceRequestList.isEmpty()) {
@@ -181,25 +232,41 @@ public class FhirBundleProcessor {
 
   private void buildExecutionContexts(List<CoverageRequirementRuleCriteria> criteriaList, HashMap<String, Resource> cqlParams) {
 
-    for (CoverageRequirementRuleCriteria criteria : criteriaList) {
+    // plan the evaluation units first, every criteria (coding and payer) that maps to the same topic for this
+    // request resource is evaluated once, and the result keeps the first of those criteria for its cards
+    LinkedHashMap<String, CoverageRequirementRuleResult> units = new LinkedHashMap<>();
+    LinkedHashMap<String, RuleMapping> unitRules = new LinkedHashMap<>();
+    List<List<RuleMapping>> rulesForCriteria = fileStore.findRules(criteriaList);
+    for (int i = 0; i < criteriaList.size(); i++) {
+      CoverageRequirementRuleCriteria criteria = criteriaList.get(i);
       logger.info("FhirBundleProcessor::buildExecutionContexts() criteria: " + criteria.toString());
-      List<RuleMapping> rules = fileStore.findRules(criteria);
-
-      for (RuleMapping rule: rules) {
-        CoverageRequirementRuleResult result = new CoverageRequirementRuleResult();
-        result.setCriteria(criteria).setTopic(rule.getTopic());
-        try {
+      for (RuleMapping rule : rulesForCriteria.get(i)) {
+        String unit = rule.getTopic() + "/" + rule.getFhirVersion();
+        CoverageRequirementRuleResult result = units.get(unit);
+        if (result == null) {
           logger.info("FhirBundleProcessor::buildExecutionContexts() found rule topic: " + rule.getTopic());
-
-          //get the CqlRule
-          CqlRule cqlRule = fileStore.getCqlRule(rule.getTopic(), rule.getFhirVersion());
-          result.setContext(CqlExecutionContextBuilder.getExecutionContext(cqlRule, cqlParams, baseUrl));
-          results.add(result);
-        } catch (Exception e) {
-          logger.info("r4/FhirBundleProcessor::buildExecutionContexts: failed processing cql bundle: " + e.getMessage());
+          result = new CoverageRequirementRuleResult();
+          result.setCriteria(criteria).setTopic(rule.getTopic());
+          units.put(unit, result);
+          unitRules.put(unit, rule);
+        } else {
+          logger.info("FhirBundleProcessor::buildExecutionContexts() rule topic already planned: " + rule.getTopic());
         }
       }
     }
+
+    for (String unit : units.keySet()) {
+      CoverageRequirementRuleResult result = units.get(unit);
+      RuleMapping rule = unitRules.get(unit);
+      try {
+        //get the translated CqlRule
+        CompiledCqlRule compiledRule = fileStore.getCompiledCqlRule(rule.getTopic(), rule.getFhirVersion());
+        result.setContext(CqlExecutionContextBuilder.getExecutionContext(compiledRule, cqlParams, baseUrl, retrieveProvider));
+        results.add(result);
+      } catch (Exception e) {
+        logger.info("r4/FhirBundleProcessor::buildExecutionContexts: failed processing cql bundle: " + e.getMessage());
+      }
+    }
   }
 
   private String stripResourceType(String identifier) {
@@ -381,11 +381,12 @@ public class FhirRequestProcessor {
    * @param cdsRequest
    * @param fhirComponents
    * @param httpMethod
+   * @param restTemplate
    * @return
    */
   public static IBaseResource executeFhirQueryUrl(String queryUrl, CdsRequest<?, ?> cdsRequest,
-      FhirComponentsT fhirComponents, HttpMethod httpMethod) {
-    return executeFhirQuery("", queryUrl, cdsRequest, fhirComponents, httpMethod);
+      FhirComponentsT fhirComponents, HttpMethod httpMethod, RestTemplate restTemplate) {
+    return executeFhirQuery("", queryUrl, cdsRequest, fhirComponents, httpMethod, restTemplate);
   }
 
   /**
@@ -394,11 +395,12 @@ public class FhirRequestProcessor {
    * @param cdsRequest
    * @param fhirComponents
    * @param httpMethod
+   * @param restTemplate
    * @return
    */
   public static IBaseResource executeFhirQueryBody(String queryBody, CdsRequest<?, ?> cdsRequest,
-      FhirComponentsT fhirComponents, HttpMethod httpMethod) {
-    return executeFhirQuery(queryBody, "", cdsRequest, fhirComponents, httpMethod);
+      FhirComponentsT fhirComponents, HttpMethod httpMethod, RestTemplate restTemplate) {
+    return executeFhirQuery(queryBody, "", cdsRequest, fhirComponents, httpMethod, restTemplate);
   }
 
   /**
@@ -408,10 +410,11 @@ public class FhirRequestProcessor {
    * @param cdsRequest
    * @param fhirComponents
    * @param httpMethod
+   * @param restTemplate the shared template of the OutboundHttpClient
    * @return
    */
   public static IBaseResource executeFhirQuery(String queryBody, String queryUrl, CdsRequest<?, ?> cdsRequest,
-      FhirComponentsT fhirComponents, HttpMethod httpMethod) {
+      FhirComponentsT fhirComponents, HttpMethod httpMethod, RestTemplate restTemplate) {
     if (cdsRequest.getFhirServer() == null) {
       throw new FatalRequestIncompleteException("Attempted to perform a Query Batch Request, but no fhir "
           + "server provided.");
@@ -437,7 +440,6 @@ public class FhirRequestProcessor {
       token = cdsRequest.getFhirAuthorization().getAccessToken();
     }
 
-    RestTemplate restTemplate = new RestTemplate();
     HttpHeaders headers = new HttpHeaders();
     headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
     if(!queryBody.isEmpty()){
@@ -451,8 +453,11 @@ public class FhirRequestProcessor {
       logger.info("Fetching: " + fullUrl);
       // Request source: https://www.hl7.org/fhir/http.html#transaction
       ResponseEntity<String> response = restTemplate.exchange(fullUrl, httpMethod, entity, String.class);
-      logger.info("Fetched: " + response.getBody());
-      return fhirComponents.getJsonParser().parseResource(response.getBody());
+      logger.info("Fetched: " + fullUrl + " (" + (response.getBody() == null ? 0 : response.getBody().length())
+          + " characters)");
+      logger.debug("Fetched: " + response.getBody());
+      // parsers are not thread safe, and prefetch queries run in parallel
+      return fhirComponents.getFhirContext().newJsonParser().parseResource(response.getBody());
     } catch (RestClientException e) {
       logger.warn("Unable to make the fetch request", e);
       return null;
@@ -1,6 +1,5 @@
 package org.hl7.davinci.endpoint.cdshooks.services.crd.r4;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -13,6 +12,7 @@ import org.hl7.davinci.PrefetchTemplateElement;
 import org.hl7.davinci.RequestIncompleteException;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.CdsService;
 import org.hl7.davinci.endpoint.components.CardBuilder.CqlResultsForCard;
+import org.hl7.davinci.endpoint.cql.CqlResultSnapshot;
 import org.hl7.davinci.endpoint.components.QueryBatchRequest;
 import org.hl7.davinci.endpoint.files.FileStore;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleResult;
@@ -20,10 +20,8 @@ import org.hl7.davinci.r4.FhirComponents;
 import org.hl7.davinci.r4.crdhook.CrdPrefetch;
 import org.hl7.davinci.r4.crdhook.orderselect.CrdPrefetchTemplateElements;
 import org.hl7.davinci.r4.crdhook.orderselect.OrderSelectRequest;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Coding;
 import org.json.simple.JSONObject;
-import org.opencds.cqf.cql.engine.execution.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -50,8 +48,9 @@ public class OrderSelectService extends CdsService<OrderSelectRequest> {
 
     List<String> selections = Arrays.asList(orderSelectRequest.getContext().getSelections());
 
-    FhirBundleProcessor fhirBundleProcessor = new FhirBundleProcessor(fileStore, baseUrl, selections);
     CrdPrefetch prefetch = orderSelectRequest.getPrefetch();
+    FhirBundleProcessor fhirBundleProcessor = new FhirBundleProcessor(fileStore, baseUrl, selections,
+        createRetrieveProvider(orderSelectRequest, prefetch));
     fhirBundleProcessor.processOrderSelectMedicationStatements(prefetch.getMedicationRequestBundle(), prefetch.getMedicationStatementBundle());
     List<CoverageRequirementRuleResult> results = fhirBundleProcessor.getResults();
 
@@ -61,10 +60,10 @@ public class OrderSelectService extends CdsService<OrderSelectRequest> {
     return results;
   }
 
-  protected CqlResultsForCard executeCqlAndGetRelevantResults(Context context, String topic) {
+  protected CqlResultsForCard executeCqlAndGetRelevantResults(CqlResultSnapshot cqlResults, String topic) {
     CqlResultsForCard results = new CqlResultsForCard();
 
-    results.setRuleApplies((Boolean) evaluateStatement("RULE_APPLIES", context));
+    results.setRuleApplies(cqlResults.isTrue("RULE_APPLIES"));
     if (!results.ruleApplies()) {
       return results;
     }
@@ -72,8 +71,8 @@ public class OrderSelectService extends CdsService<OrderSelectRequest> {
     CoverageRequirements coverageRequirements = new CoverageRequirements();
     coverageRequirements.setApplies(false);
 
-    if (evaluateStatement("RESULT_requestId", context) != null) {
-      results.setRequest((IBaseResource) evaluateStatement("RESULT_requestId", context));
+    if (cqlResults.getResource("RESULT_requestId") != null) {
+      results.setRequest(cqlResults.getResource("RESULT_requestId"));
       coverageRequirements.setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
           .encodeResourceToString(results.getRequest())));
     }
@@ -86,27 +85,25 @@ public class OrderSelectService extends CdsService<OrderSelectRequest> {
 
     DrugInteraction drugInteraction = new DrugInteraction();
     drugInteraction.setApplies(false);
-    try {
-      if (evaluateStatement("DRUG_INTERACTION", context) != null) {
-        drugInteraction.setApplies((Boolean) evaluateStatement("DRUG_INTERACTION", context));
-
-        if (drugInteraction.getApplies()) {
-          drugInteraction.setSummary("WARNING! Drug Interaction Found!");
-          String detail = "Drug ";
-
-          if (evaluateStatement("REQUESTED_DRUG_CODE", context) != null) {
-            Coding code = getFirstCodeFromCodingListObject(evaluateStatement("REQUESTED_DRUG_CODE", context));
-            detail = detail + " " + code.getDisplay() + " (" + code.getCode() + ") has a dangerous drug/drug interaction with medication patient is already taking: ";
-          }
-          if (evaluateStatement("STATEMENT_DRUG_CODE", context) != null) {
-            Coding code = getFirstCodeFromCodingListObject(evaluateStatement("STATEMENT_DRUG_CODE", context));
-            detail = detail + code.getDisplay() + " (" + code.getCode() + ")";
-          }
-
-          drugInteraction.setDetail(detail);
+    if (cqlResults.getBoolean("DRUG_INTERACTION") != null) {
+      drugInteraction.setApplies(cqlResults.getBoolean("DRUG_INTERACTION"));
+
+      if (drugInteraction.getApplies()) {
+        drugInteraction.setSummary("WARNING! Drug Interaction Found!");
+        String detail = "Drug ";
+
+        Coding requestedCode = getFirstCodeFromCodingListObject(cqlResults.get("REQUESTED_DRUG_CODE"));
+        if (requestedCode != null) {
+          detail = detail + " " + requestedCode.getDisplay() + " (" + requestedCode.getCode() + ") has a dangerous drug/drug interaction with medication patient is already taking: ";
         }
+        Coding statementCode = getFirstCodeFromCodingListObject(cqlResults.get("STATEMENT_DRUG_CODE"));
+        if (statementCode != null) {
+          detail = detail + statementCode.getDisplay() + " (" + statementCode.getCode() + ")";
+        }
+
+        drugInteraction.setDetail(detail);
       }
-    } catch (Exception e) {
+    } else {
       logger.info("-- No drug interaction defined");
     }
     results.setDrugInteraction(drugInteraction);
@@ -115,15 +112,14 @@ public class OrderSelectService extends CdsService<OrderSelectRequest> {
   }
 
   private Coding getFirstCodeFromCodingListObject(Object c) {
-    List<?> clist = new ArrayList<>();
     if (c instanceof Collection) {
-      clist = new ArrayList<>((Collection<?>) c);
-    }
-    List<Coding> codingList = new ArrayList<>();
-    for (Object obj: clist) {
-      codingList.add((Coding) obj);
+      for (Object obj : (Collection<?>) c) {
+        if (obj instanceof Coding) {
+          return (Coding) obj;
+        }
+      }
     }
-    return codingList.get(0);
+    return null;
   }
 
   @Override
@@ -14,6 +14,7 @@ import org.hl7.davinci.RequestIncompleteException;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.CdsService;
 import org.hl7.davinci.endpoint.components.QueryBatchRequest;
 import org.hl7.davinci.endpoint.components.CardBuilder.CqlResultsForCard;
+import org.hl7.davinci.endpoint.cql.CqlResultSnapshot;
 import org.hl7.davinci.endpoint.files.FileStore;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleResult;
 import org.hl7.davinci.r4.FhirComponents;
@@ -23,9 +24,7 @@ import org.hl7.davinci.r4.crdhook.DiscoveryExtension;
 import org.hl7.davinci.r4.crdhook.ordersign.CrdExtensionConfigurationOptions;
 import org.hl7.davinci.r4.crdhook.ordersign.CrdPrefetchTemplateElements;
 import org.hl7.davinci.r4.crdhook.ordersign.OrderSignRequest;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.json.simple.JSONObject;
-import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,8 +58,9 @@ public class OrderSignService extends CdsService<OrderSignRequest> {
 
   @Override
   public List<CoverageRequirementRuleResult> createCqlExecutionContexts(OrderSignRequest orderSignRequest, FileStore fileStore, String baseUrl) {
-    FhirBundleProcessor fhirBundleProcessor = new FhirBundleProcessor(fileStore, baseUrl);
     CrdPrefetch prefetch = orderSignRequest.getPrefetch();
+    FhirBundleProcessor fhirBundleProcessor = new FhirBundleProcessor(fileStore, baseUrl,
+        createRetrieveProvider(orderSignRequest, prefetch));
     fhirBundleProcessor.processDeviceRequests(prefetch.getDeviceRequestBundle());
     fhirBundleProcessor.processMedicationRequests(prefetch.getMedicationRequestBundle());
     fhirBundleProcessor.processServiceRequests(prefetch.getServiceRequestBundle());
@@ -73,10 +73,10 @@ public class OrderSignService extends CdsService<OrderSignRequest> {
     return results;
   }
 
-  protected CqlResultsForCard executeCqlAndGetRelevantResults(Context context, String topic) {
+  protected CqlResultsForCard executeCqlAndGetRelevantResults(CqlResultSnapshot cqlResults, String topic) {
     CqlResultsForCard results = new CqlResultsForCard();
 
-    results.setRuleApplies((Boolean) evaluateStatement("RULE_APPLIES", context));
+    results.setRuleApplies(cqlResults.isTrue("RULE_APPLIES"));
     if (!results.ruleApplies()) {
       logger.warn("rule does not apply");
       return results;
@@ -87,9 +87,9 @@ public class OrderSignService extends CdsService<OrderSignRequest> {
 
     String humanReadableTopic = StringUtils.join(StringUtils.splitByCharacterTypeCamelCase(topic), ' ');
 
-    coverageRequirements.setInfoLink(evaluateStatement("RESULT_InfoLink", context).toString())
-        .setPriorAuthRequired((Boolean) evaluateStatement("PRIORAUTH_REQUIRED", context))
-        .setDocumentationRequired((Boolean) evaluateStatement("DOCUMENTATION_REQUIRED", context));
+    coverageRequirements.setInfoLink(cqlResults.getString("RESULT_InfoLink"))
+        .setPriorAuthRequired(cqlResults.isTrue("PRIORAUTH_REQUIRED"))
+        .setDocumentationRequired(cqlResults.isTrue("DOCUMENTATION_REQUIRED"));
 
     // if prior auth, supercede the documentation required
     if (coverageRequirements.isPriorAuthRequired()) {
@@ -98,8 +98,8 @@ public class OrderSignService extends CdsService<OrderSignRequest> {
           .setDetails("Prior Authorization required, follow the attached link for information.");
 
       // check if prior auth is automatically approved
-      if (evaluateStatement("APPROVE_PRIORAUTH", context) != null) {
-        coverageRequirements.setPriorAuthApproved((Boolean) evaluateStatement("APPROVE_PRIORAUTH", context));
+      if (cqlResults.getBoolean("APPROVE_PRIORAUTH") != null) {
+        coverageRequirements.setPriorAuthApproved(cqlResults.getBoolean("APPROVE_PRIORAUTH"));
         if (coverageRequirements.isPriorAuthApproved()) {
           coverageRequirements.generatePriorAuthId();
           logger.info("Prior Auth Approved: " + coverageRequirements.getPriorAuthId());
@@ -118,8 +118,8 @@ public class OrderSignService extends CdsService<OrderSignRequest> {
           .setDetails("No Prior Authorization required for " + humanReadableTopic + ".");
     }
 
-    if (evaluateStatement("RESULT_requestId", context) != null) {
-      results.setRequest((IBaseResource) evaluateStatement("RESULT_requestId", context));
+    if (cqlResults.getResource("RESULT_requestId") != null) {
+      results.setRequest(cqlResults.getResource("RESULT_requestId"));
       coverageRequirements.setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
           .encodeResourceToString(results.getRequest())));
     }
@@ -128,89 +128,70 @@ public class OrderSignService extends CdsService<OrderSignRequest> {
     AlternativeTherapy alternativeTherapy = new AlternativeTherapy();
     alternativeTherapy.setApplies(false);
 
-    if (evaluateStatement("RESULT_dispense", context) != null) {
-      results.setRequest((IBaseResource) evaluateStatement("RESULT_dispense", context));
+    if (cqlResults.getResource("RESULT_dispense") != null) {
+      results.setRequest(cqlResults.getResource("RESULT_dispense"));
       coverageRequirements.setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
           .encodeResourceToString(results.getRequest())));
 
       // only display the dispense form for MedicationDispense request
-      try {
-        if (evaluateStatement("RESULT_QuestionnaireDispenseUri", context) != null) {
-          coverageRequirements.setQuestionnaireDispenseUri(evaluateStatement("RESULT_QuestionnaireDispenseUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnaireDispenseUri")) {
+        coverageRequirements.setQuestionnaireDispenseUri(cqlResults.getString("RESULT_QuestionnaireDispenseUri"));
+      } else {
         logger.info("-- No Dispense questionnaire defined");
       }
     }
     else // not a MedicationDispense
     {
-      if (evaluateStatement("RESULT_QuestionnaireOrderUri", context) != null) {
-        coverageRequirements.setQuestionnaireOrderUri(evaluateStatement("RESULT_QuestionnaireOrderUri", context).toString());
-      }
+      coverageRequirements.setQuestionnaireOrderUri(cqlResults.getString("RESULT_QuestionnaireOrderUri"));
 
-      try {
-        if (evaluateStatement("RESULT_QuestionnaireFaceToFaceUri", context) != null) {
-          coverageRequirements.setQuestionnaireFaceToFaceUri(evaluateStatement("RESULT_QuestionnaireFaceToFaceUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnaireFaceToFaceUri")) {
+        coverageRequirements.setQuestionnaireFaceToFaceUri(cqlResults.getString("RESULT_QuestionnaireFaceToFaceUri"));
+      } else {
         logger.info("-- No face to face questionnaire defined");
       }
 
-      try {
-        if (evaluateStatement("RESULT_QuestionnaireLabUri", context) != null) {
-          coverageRequirements.setQuestionnaireLabUri(evaluateStatement("RESULT_QuestionnaireLabUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnaireLabUri")) {
+        coverageRequirements.setQuestionnaireLabUri(cqlResults.getString("RESULT_QuestionnaireLabUri"));
+      } else {
         logger.info("-- No Lab questionnaire defined");
       }
 
-      try {
-        if (evaluateStatement("RESULT_QuestionnaireProgressNoteUri", context) != null) {
-          coverageRequirements.setQuestionnaireProgressNoteUri(evaluateStatement("RESULT_QuestionnaireProgressNoteUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnaireProgressNoteUri")) {
+        coverageRequirements.setQuestionnaireProgressNoteUri(cqlResults.getString("RESULT_QuestionnaireProgressNoteUri"));
+      } else {
         logger.info("-- No Progress note questionnaire defined");
       }
 
-      try {
-        if (evaluateStatement("RESULT_QuestionnairePlanOfCareUri", context) != null) {
-          coverageRequirements.setQuestionnairePlanOfCareUri(evaluateStatement("RESULT_QuestionnairePlanOfCareUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnairePlanOfCareUri")) {
+        coverageRequirements.setQuestionnairePlanOfCareUri(cqlResults.getString("RESULT_QuestionnairePlanOfCareUri"));
+      } else {
         logger.info("-- No plan of care questionnaire defined");
       }
 
-      try {
-        if (evaluateStatement("RESULT_QuestionnairePARequestUri", context) != null) {
-          coverageRequirements.setQuestionnairePARequestUri(evaluateStatement("RESULT_QuestionnairePARequestUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnairePARequestUri")) {
+        coverageRequirements.setQuestionnairePARequestUri(cqlResults.getString("RESULT_QuestionnairePARequestUri"));
+      } else {
         logger.info("-- No PA Request questionnaire defined");
       }
 
-      try {
-        if (evaluateStatement("RESULT_QuestionnaireAdditionalUri", context) != null) {
-          coverageRequirements.setQuestionnaireAdditionalUri(evaluateStatement("RESULT_QuestionnaireAdditionalUri", context).toString());
-        }
-      } catch (Exception e) {
+      if (cqlResults.has("RESULT_QuestionnaireAdditionalUri")) {
+        coverageRequirements.setQuestionnaireAdditionalUri(cqlResults.getString("RESULT_QuestionnaireAdditionalUri"));
+      } else {
         logger.info("-- No additional questionnaire defined");
       }
 
       // process the alternative therapies
-      try {
-        if (evaluateStatement("ALTERNATIVE_THERAPY", context) != null) {
-          Object ac = evaluateStatement("ALTERNATIVE_THERAPY", context);
-
-          Code code = (Code) ac;
-          logger.info("alternate therapy suggested: " + code.getDisplay() + " (" + code.getCode() + " / " +
-              ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.inverse().get(code.getSystem()).toUpperCase() + ")");
-
-          alternativeTherapy.setApplies(true)
-              .setCode(code.getCode())
-              .setSystem(code.getSystem())
-              .setDisplay(code.getDisplay());
-        }
-      } catch (Exception e) {
+      Code code = cqlResults.getCode("ALTERNATIVE_THERAPY");
+      if (code != null) {
+        String system = ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.inverse().get(code.getSystem());
+        logger.info("alternate therapy suggested: " + code.getDisplay() + " (" + code.getCode() + " / " +
+            (system == null ? code.getSystem() : system.toUpperCase()) + ")");
+
+        alternativeTherapy.setApplies(true)
+            .setCode(code.getCode())
+            .setSystem(code.getSystem())
+            .setDisplay(code.getDisplay());
+      } else {
         logger.info("-- No alternative therapy defined");
       }
     }
@@ -0,0 +1,194 @@
+package org.hl7.davinci.endpoint.components;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.endpoint.cql.CqlEvaluationTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evaluates the CQL of the rules matched by a single hook request in parallel. The pool is shared by all
+ * requests and bounded by cqlEvaluationThreads, with a bounded queue. Rules always run on the pool, never on the
+ * request thread, so the request thread can always stop waiting at the deadline. A rule that does not fit in the
+ * queue is not evaluated and gets the fallback result, so a busy server answers with summary cards rather than
+ * holding servlet threads.
+ *
+ * Rules can be given a time budget per topic (cqlTopicTimeoutMs) and per request (cqlRequestTimeoutMs), a rule
+ * that runs over is reported to the caller so the other rules still return their cards. The CQL engine itself
+ * can not be interrupted: a rule that runs over only stops at its next define (see CqlResultSnapshot), and a
+ * single define that never returns keeps its pool thread. The busy threads and queued rules are published as the
+ * crd.cql.evaluations.active and crd.cql.evaluations.queued gauges, so such runaway evaluations show up there.
+ */
+@Component
+public class CqlEvaluationExecutor {
+
+  static final Logger logger = LoggerFactory.getLogger(CqlEvaluationExecutor.class);
+
+  private static final int QUEUE_PER_THREAD = 16;
+
+  @Autowired
+  private YamlConfig myConfig;
+
+  @Autowired(required = false)
+  private MeterRegistry meterRegistry;
+
+  private ThreadPoolExecutor executor;
+
+  @PostConstruct
+  public void start() {
+    int threads = Math.max(myConfig.getCqlEvaluationThreads(), 1);
+
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "cql-eval-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    if (meterRegistry != null) {
+      Gauge.builder("crd.cql.evaluations.active", executor, ThreadPoolExecutor::getActiveCount)
+          .register(meterRegistry);
+      Gauge.builder("crd.cql.evaluations.queued", executor, pool -> pool.getQueue().size())
+          .register(meterRegistry);
+    }
+    logger.info("CqlEvaluationExecutor: evaluating rules on up to " + threads + " threads");
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Evaluate every item on the pool, in parallel when there is more than one, and wait for them. Each item is
+   * given a deadline, the cqlTopicTimeoutMs after it starts capped by the cqlRequestTimeoutMs after this call,
+   * which the evaluator is expected to check cooperatively. The result of an item that runs past its deadline,
+   * throws a CqlEvaluationTimeoutException, or does not fit in the pool's queue is taken from onTimeout instead.
+   * @param items the items to evaluate
+   * @param evaluator evaluates a single item before the deadline (System.currentTimeMillis()) given to it,
+   *                  must not touch state shared with the other items
+   * @param onTimeout produces the result of an item that timed out or could not be evaluated
+   * @return the results, in the same order as the items
+   */
+  public <T, R> List<R> evaluateAll(List<T> items, BiFunction<T, Long, R> evaluator, Function<T, R> onTimeout) {
+    long requestDeadline = deadlineAfter(System.currentTimeMillis(), myConfig.getCqlRequestTimeoutMs());
+
+    List<Evaluation<R>> evaluations = new ArrayList<>(items.size());
+    for (T item : items) {
+      Evaluation<R> evaluation = new Evaluation<>(requestDeadline, myConfig.getCqlTopicTimeoutMs() > 0);
+      try {
+        evaluation.future = executor.submit(() -> {
+          long deadline = Math.min(requestDeadline,
+              deadlineAfter(System.currentTimeMillis(), myConfig.getCqlTopicTimeoutMs()));
+          evaluation.deadline = deadline;
+          evaluation.started = true;
+          return evaluator.apply(item, deadline);
+        });
+      } catch (RejectedExecutionException e) {
+        logger.warn("CqlEvaluationExecutor::evaluateAll() evaluation queue full, " + executor.getActiveCount()
+            + " of " + executor.getMaximumPoolSize() + " threads busy, rule not evaluated");
+        evaluation.timedOut = true;
+      }
+      evaluations.add(evaluation);
+    }
+
+    List<R> results = new ArrayList<>(items.size());
+    try {
+      for (int i = 0; i < items.size(); i++) {
+        Evaluation<R> evaluation = evaluations.get(i);
+        R result = evaluation.future != null ? evaluation.await() : null;
+        results.add(evaluation.timedOut ? onTimeout.apply(items.get(i)) : result);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while evaluating CQL", e);
+    } finally {
+      for (Evaluation<R> evaluation : evaluations) {
+        if (evaluation.future != null) {
+          // only stops a rule at its next define, see CqlResultSnapshot
+          evaluation.future.cancel(true);
+        }
+      }
+    }
+    return results;
+  }
+
+  private static long deadlineAfter(long start, long timeoutMs) {
+    return timeoutMs > 0 ? start + timeoutMs : Long.MAX_VALUE;
+  }
+
+  /**
+   * An item submitted to the pool. The deadline is only known once the item starts running.
+   */
+  private static class Evaluation<R> {
+    private static final long POLL_MS = 50;
+
+    Future<R> future;
+    volatile long deadline;
+    volatile boolean started = false;
+    boolean timedOut = false;
+    private final boolean topicTimeout;
+
+    Evaluation(long requestDeadline, boolean topicTimeout) {
+      this.deadline = requestDeadline;
+      this.topicTimeout = topicTimeout;
+    }
+
+    R await() throws InterruptedException {
+      while (true) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return timeout("deadline passed");
+        }
+        try {
+          if (topicTimeout && !started) {
+            // the topic deadline is not known until the item leaves the queue, check back until it does
+            return future.get(Math.min(POLL_MS, remaining), TimeUnit.MILLISECONDS);
+          } else if (deadline == Long.MAX_VALUE) {
+            return future.get();
+          } else {
+            return future.get(remaining, TimeUnit.MILLISECONDS);
+          }
+        } catch (TimeoutException e) {
+          // check the deadline again
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof CqlEvaluationTimeoutException) {
+            return timeout(e.getCause().getMessage());
+          }
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+
+    private R timeout(String reason) {
+      logger.warn("CqlEvaluationExecutor::evaluateAll() timed out: " + reason);
+      future.cancel(true);
+      timedOut = true;
+      return null;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package org.hl7.davinci.endpoint.components;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * The HTTP client used for every outbound call: the prefetch, query batch and CQL retrieve requests to the EHR, the
+ * public keys of JWT issuers and CDS Connect. Connections are pooled and kept alive, bounded by httpPoolMaxTotal in
+ * all and httpPoolMaxPerRoute per host, so one slow EHR can only hold its share of them.
+ *
+ * Every call has a connect timeout (also the longest wait for a pooled connection) and a read timeout, so a hung
+ * server can not hold the request thread for ever. Responses are accepted gzip compressed and are cut off with an
+ * error past httpMaxResponseBytes. Cookies are never kept: the client is shared by requests made for different users.
+ */
+@Component
+public class OutboundHttpClient {
+
+  static final Logger logger = LoggerFactory.getLogger(OutboundHttpClient.class);
+
+  @Autowired
+  private YamlConfig myConfig;
+
+  private PoolingHttpClientConnectionManager connectionManager;
+
+  private CloseableHttpClient httpClient;
+
+  private RestTemplate restTemplate;
+
+  @PostConstruct
+  public void start() {
+    connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+    connectionManager.setMaxTotal(myConfig.getHttpPoolMaxTotal());
+    connectionManager.setDefaultMaxPerRoute(myConfig.getHttpPoolMaxPerRoute());
+    // check a connection that sat idle in the pool before reusing it
+    connectionManager.setValidateAfterInactivity(2000);
+
+    httpClient = newClientBuilder().build();
+    restTemplate = newRestTemplate(httpClient);
+    logger.info("OutboundHttpClient: pooling up to " + myConfig.getHttpPoolMaxTotal() + " connections, "
+        + myConfig.getHttpPoolMaxPerRoute() + " per host");
+  }
+
+  @PreDestroy
+  public void stop() throws IOException {
+    httpClient.close();
+    connectionManager.close();
+  }
+
+  /**
+   * @return the shared HttpClient, safe to use from any thread
+   */
+  public CloseableHttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  /**
+   * @return the shared RestTemplate, backed by the shared HttpClient, safe to use from any thread
+   */
+  public RestTemplate getRestTemplate() {
+    return restTemplate;
+  }
+
+  /**
+   * Create a RestTemplate that sends its calls through a proxy, with the same pool and limits as the shared one.
+   * @param proxyHost the proxy host
+   * @param proxyPort the proxy port
+   * @return the new RestTemplate
+   */
+  public RestTemplate createRestTemplate(String proxyHost, int proxyPort) {
+    return newRestTemplate(newClientBuilder().setProxy(new HttpHost(proxyHost, proxyPort)).build());
+  }
+
+  private HttpClientBuilder newClientBuilder() {
+    int connectTimeout = (int) myConfig.getHttpConnectTimeoutMs();
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectTimeout)
+        .setConnectionRequestTimeout(connectTimeout)
+        .setSocketTimeout((int) myConfig.getHttpReadTimeoutMs())
+        .build();
+    // the builder asks for and decompresses gzip and deflate responses by default. By default it would also keep
+    // the cookies a server sets and send them back on every later call to that server, whoever the call is for
+    HttpClientBuilder builder = HttpClientBuilder.create()
+        .setConnectionManager(connectionManager)
+        .setConnectionManagerShared(true)
+        .setDefaultRequestConfig(requestConfig)
+        .disableCookieManagement();
+    long maxResponseBytes = myConfig.getHttpMaxResponseBytes();
+    if (maxResponseBytes > 0) {
+      // added last so it runs after the decompression, and counts the bytes that are actually read
+      HttpResponseInterceptor limit = (response, context) -> {
+        if (response.getEntity() != null) {
+          response.setEntity(new BoundedEntity(response.getEntity(), maxResponseBytes));
+        }
+      };
+      builder.addInterceptorLast(limit);
+    }
+    return builder;
+  }
+
+  private static RestTemplate newRestTemplate(CloseableHttpClient client) {
+    return new RestTemplate(new HttpComponentsClientHttpRequestFactory(client));
+  }
+
+  /**
+   * A response body that fails to read past a size limit.
+   */
+  private static class BoundedEntity extends HttpEntityWrapper {
+    private final long maxBytes;
+
+    BoundedEntity(HttpEntity entity, long maxBytes) {
+      super(entity);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+        private long count = 0;
+
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) {
+            count(1);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int read = super.read(buffer, offset, length);
+          if (read > 0) {
+            count(read);
+          }
+          return read;
+        }
+
+        private void count(int read) throws IOException {
+          count += read;
+          if (count > maxBytes) {
+            throw new IOException("Response is larger than " + maxBytes + " bytes");
+          }
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try (InputStream in = getContent()) {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      }
+    }
+  }
+}
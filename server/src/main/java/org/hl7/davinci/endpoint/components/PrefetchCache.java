@@ -0,0 +1,106 @@
+package org.hl7.davinci.endpoint.components;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.cdshooks.CdsRequest;
+import org.cdshooks.FhirAuthorization;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the results of the prefetch queries sent to the EHR for a short time (prefetchCacheTtlMs), so an
+ * order-select followed by an order-sign, or an order signed again, does not fetch the same bundles again.
+ *
+ * Entries are keyed by the fhirServer, the resolved query url, and the authorization the query was sent with:
+ * its subject and a hash of its access token. A request with another token never sees them. The cache holds at
+ * most prefetchCacheSize entries, and hits and misses are published as the cache.* metrics of "prefetch".
+ *
+ * Resources are copied going in and coming out, so a request can change the resources it gets freely.
+ */
+@Component
+public class PrefetchCache {
+
+  static final Logger logger = LoggerFactory.getLogger(PrefetchCache.class);
+
+  @Autowired
+  private YamlConfig myConfig;
+
+  @Autowired(required = false)
+  private MeterRegistry meterRegistry;
+
+  private Cache<List<String>, Resource> cache;
+
+  @PostConstruct
+  public void start() {
+    if (myConfig.getPrefetchCacheTtlMs() <= 0 || myConfig.getPrefetchCacheSize() <= 0) {
+      logger.info("PrefetchCache: prefetch query results are not cached");
+      return;
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(myConfig.getPrefetchCacheSize())
+        .expireAfterWrite(myConfig.getPrefetchCacheTtlMs(), TimeUnit.MILLISECONDS)
+        .recordStats()
+        .build();
+    if (meterRegistry != null) {
+      GuavaCacheMetrics.monitor(meterRegistry, cache, "prefetch");
+    }
+  }
+
+  public boolean isEnabled() {
+    return cache != null;
+  }
+
+  /**
+   * @param cdsRequest the request the query is sent for
+   * @param queryUrl the resolved query url
+   * @return a copy of the cached result, or null if there is none
+   */
+  public IBaseResource get(CdsRequest<?, ?> cdsRequest, String queryUrl) {
+    if (cache == null) {
+      return null;
+    }
+    Resource resource = cache.getIfPresent(key(cdsRequest, queryUrl));
+    return resource == null ? null : resource.copy();
+  }
+
+  /**
+   * Cache a copy of the result of a query.
+   * @param cdsRequest the request the query was sent for
+   * @param queryUrl the resolved query url
+   * @param result the result
+   */
+  public void put(CdsRequest<?, ?> cdsRequest, String queryUrl, IBaseResource result) {
+    if (cache == null || !(result instanceof Resource)) {
+      return;
+    }
+    cache.put(key(cdsRequest, queryUrl), ((Resource) result).copy());
+  }
+
+  private static List<String> key(CdsRequest<?, ?> cdsRequest, String queryUrl) {
+    String subject = "";
+    String token = "";
+    FhirAuthorization authorization = cdsRequest.getFhirAuthorization();
+    if (authorization != null) {
+      subject = String.valueOf(authorization.getSubject());
+      if (authorization.getAccessToken() != null) {
+        // only a hash of the token is kept
+        token = Hashing.sha256().hashString(authorization.getAccessToken(), StandardCharsets.UTF_8).toString();
+      }
+    }
+    return Arrays.asList(cdsRequest.getFhirServer(), queryUrl, subject, token);
+  }
+}
@@ -1,11 +1,9 @@
 package org.hl7.davinci.endpoint.components;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Pattern;
 import org.apache.commons.beanutils.PropertyUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.cdshooks.CdsRequest;
 import org.hl7.davinci.FatalRequestIncompleteException;
 import org.hl7.davinci.FhirComponentsT;
@@ -13,6 +11,10 @@ import org.hl7.davinci.PrefetchTemplateElement;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.CdsService;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.r4.FhirRequestProcessor;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpMethod;
@@ -22,15 +24,22 @@ public class PrefetchHydrator {
   static final Logger logger =
       LoggerFactory.getLogger(PrefetchHydrator.class);
 
-  private static final String PREFETCH_TOKEN_DELIM_OPEN = "{{";
-  private static final String PREFETCH_TOKEN_DELIM_CLOSE = "}}";
-
   private CdsService<?> cdsService;
   private CdsRequest<?, ?> cdsRequest;
   private Object dataForPrefetchToken;
   private FhirComponentsT fhirComponents;
 
-  private String currentlyResolvingPrefetchToken;
+  private PrefetchQueryExecutor prefetchQueryExecutor;
+
+  private OutboundHttpClient httpClient;
+
+  private List<String> timedOutKeys = new ArrayList<>();
+
+  private boolean batch = false;
+
+  private PrefetchCache prefetchCache;
+
+  private boolean noCache = false;
 
   /**
    * Constructor should take in a service and a request that service is processing. This class can
@@ -42,60 +51,66 @@ public class PrefetchHydrator {
    * @param fhirComponents The fhir components object.
    */
   public PrefetchHydrator(CdsService cdsService, CdsRequest cdsRequest,
-      FhirComponentsT fhirComponents) {
+      FhirComponentsT fhirComponents, OutboundHttpClient httpClient) {
+    this(cdsService, cdsRequest, fhirComponents, httpClient, null);
+  }
+
+  /**
+   * Constructor that runs the missing prefetch queries in parallel.
+   *
+   * @param cdsService The service that is processing the request.
+   * @param cdsRequest The request in question, the prefetch will be hydrated if possible. Note that
+   *                   this object gets modified.
+   * @param fhirComponents The fhir components object.
+   * @param httpClient The client the queries are sent with.
+   * @param prefetchQueryExecutor runs the queries, null to run them one after another.
+   */
+  public PrefetchHydrator(CdsService cdsService, CdsRequest cdsRequest,
+      FhirComponentsT fhirComponents, OutboundHttpClient httpClient, PrefetchQueryExecutor prefetchQueryExecutor) {
     this.cdsService = cdsService;
     this.cdsRequest = cdsRequest;
     this.dataForPrefetchToken = cdsRequest.getDataForPrefetchToken();
     this.fhirComponents = fhirComponents;
+    this.httpClient = httpClient;
+    this.prefetchQueryExecutor = prefetchQueryExecutor;
   }
 
-  private void resolvePrefetchTokenRecursive(
-      Object object, List<String> pathList, List<String> elementList) {
-    if (object == null) {
-      return;
-    }
-    if (pathList.size() == 0) {
-      elementList.add(object.toString());
-      return;
-    }
-
-
-    // if a resource exists but has no id, throw an error rather than continuing
-    if (pathList.get(0).equals("id")) {
-      try {
-        //special logic for "id" since hapi puts the unqualified id part kind of deep
-        object = ((IBaseResource) object).getIdElement().getIdPart();
-      } catch (Exception e) {
-        return;
-      }
-      if (object == null) {
-        throw new FatalRequestIncompleteException("While attempting to resolve prefetch "
-            + "token '" + currentlyResolvingPrefetchToken + "', a resource was found without an ID.");
-      }
-    } else {
-      try {
-        object = PropertyUtils.getProperty(object, pathList.get(0));
-      } catch (Exception e) {
-        return;
-      }
-    }
-    List<String> remaingPathList = pathList.subList(1, pathList.size());
+  /**
+   * Send the missing prefetch queries to the fhir server as the GET entries of one batch Bundle, rather than one
+   * request each. The queries the server does not answer in the batch are sent on their own. The batch is held to
+   * the prefetch deadline like the queries, when it runs over all of its keys are reported as timed out.
+   * @param batch true to send the queries as a batch
+   */
+  public void setBatch(boolean batch) {
+    this.batch = batch;
+  }
 
-    if (object instanceof List) {
-      for (Object entry : (List) object) {
-        resolvePrefetchTokenRecursive(entry, remaingPathList, elementList);
-      }
-      return;
-    }
+  /**
+   * Take the results of queries sent recently for the same fhir server and authorization from the cache, and
+   * cache the results that are fetched.
+   * @param prefetchCache the cache
+   * @param noCache true to fetch every query even if it is cached, as asked by Cache-Control: no-cache
+   */
+  public void setCache(PrefetchCache prefetchCache, boolean noCache) {
+    this.prefetchCache = prefetchCache;
+    this.noCache = noCache;
+  }
 
-    resolvePrefetchTokenRecursive(object, remaingPathList, elementList);
+  /**
+   * @return the prefetch keys whose queries did not finish before the prefetch deadline
+   */
+  public List<String> getTimedOutKeys() {
+    return timedOutKeys;
   }
 
   /**
    * Attempt to hydrate missing prefetch elements, note that this modifies the request object.
+   * The queries for the missing elements are independent, so they are all sent at once and the results are set
+   * in the order of the prefetch templates once they are back.
    */
   public void hydrate() {
     Object crdResponse = cdsRequest.getPrefetch();
+    List<PrefetchQuery> queries = new ArrayList<>();
     for (PrefetchTemplateElement prefetchElement : cdsService.getPrefetchElements()) {
       String prefetchKey = prefetchElement.getKey();
       //check if the prefetch has already been populated with that key
@@ -108,8 +123,7 @@ public class PrefetchHydrator {
       }
       if (!alreadyIncluded) {
         // check if the bundle actually has element
-        String prefetchQuery = cdsService.prefetch.get(prefetchKey);
-        String hydratedPrefetchQuery = hydratePrefetchQuery(prefetchQuery);
+        String hydratedPrefetchQuery = cdsService.getPrefetchTemplate(prefetchKey).resolve(dataForPrefetchToken);
         // if we can't hydrate the query, it probably means we didnt get an apprpriate resource
         // e.g. this could be a query template for a medication order but we have a device request
         if (hydratedPrefetchQuery != null) {
@@ -117,38 +131,163 @@ public class PrefetchHydrator {
             throw new FatalRequestIncompleteException("Attempting to fill the prefetch, but no fhir "
                 + "server provided. Either provide a full prefetch or provide a fhir server.");
           }
-          try {
-            PropertyUtils
-                .setProperty(crdResponse, prefetchKey,
-                    prefetchElement.getReturnType().cast(FhirRequestProcessor.executeFhirQueryUrl(
-                      hydratedPrefetchQuery, cdsRequest, fhirComponents, HttpMethod.GET)));
-          } catch (Exception e) {
-            logger.warn("Failed to fill prefetch for key: " + prefetchKey, e);
+          queries.add(new PrefetchQuery(prefetchElement, hydratedPrefetchQuery));
+        }
+      }
+    }
+    if (queries.isEmpty()) {
+      return;
+    }
+
+    List<IBaseResource> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+    List<PrefetchQuery> remaining = queries;
+    boolean cached = prefetchCache != null && prefetchCache.isEnabled();
+    if (cached && !noCache) {
+      remaining = new ArrayList<>();
+      for (int i = 0; i < queries.size(); i++) {
+        IBaseResource result = prefetchCache.get(cdsRequest, queries.get(i).url);
+        if (result != null) {
+          results.set(i, result);
+        } else {
+          remaining.add(queries.get(i));
+        }
+      }
+    }
+
+    // the batch and the queries sent on their own share one prefetchTimeoutMs
+    long deadline = prefetchQueryExecutor == null ? Long.MAX_VALUE : prefetchQueryExecutor.deadline();
+    List<PrefetchQuery> timedOut = new ArrayList<>();
+
+    if (batch && remaining.size() > 1) {
+      List<PrefetchQuery> batchQueries = remaining;
+      List<IBaseResource> batchResults;
+      List<List<PrefetchQuery>> batchTimedOut = new ArrayList<>();
+      if (prefetchQueryExecutor == null) {
+        batchResults = fetchBatch(batchQueries);
+      } else {
+        batchResults = prefetchQueryExecutor.fetchAll(Collections.singletonList(batchQueries), this::fetchBatch,
+            batchTimedOut, deadline).get(0);
+      }
+      if (!batchTimedOut.isEmpty()) {
+        // there is no time left to send them on their own
+        timedOut.addAll(batchQueries);
+        remaining = new ArrayList<>();
+      } else if (batchResults != null) {
+        remaining = new ArrayList<>();
+        for (int i = 0; i < batchQueries.size(); i++) {
+          if (batchResults.get(i) == null) {
+            remaining.add(batchQueries.get(i));
+          } else {
+            results.set(queries.indexOf(batchQueries.get(i)), batchResults.get(i));
+            cacheResult(batchQueries.get(i), batchResults.get(i));
           }
         }
       }
     }
+
+    // anything not cached or answered in a batch is sent as a query of its own
+    List<IBaseResource> remainingResults;
+    if (prefetchQueryExecutor == null) {
+      remainingResults = new ArrayList<>();
+      for (PrefetchQuery query : remaining) {
+        remainingResults.add(fetch(query));
+      }
+    } else {
+      remainingResults = prefetchQueryExecutor.fetchAll(remaining, this::fetch, timedOut, deadline);
+    }
+    for (int i = 0; i < remaining.size(); i++) {
+      results.set(queries.indexOf(remaining.get(i)), remainingResults.get(i));
+      cacheResult(remaining.get(i), remainingResults.get(i));
+    }
+
+    for (int i = 0; i < queries.size(); i++) {
+      PrefetchQuery query = queries.get(i);
+      String prefetchKey = query.element.getKey();
+      if (timedOut.contains(query)) {
+        timedOutKeys.add(prefetchKey);
+        continue;
+      }
+      if (results.get(i) == null) {
+        continue;
+      }
+      try {
+        PropertyUtils.setProperty(crdResponse, prefetchKey, query.element.getReturnType().cast(results.get(i)));
+      } catch (Exception e) {
+        logger.warn("Failed to fill prefetch for key: " + prefetchKey, e);
+      }
+    }
+    if (!timedOutKeys.isEmpty()) {
+      logger.warn("PrefetchHydrator::hydrate(): prefetch timed out for keys: " + timedOutKeys);
+    }
   }
 
-  private String hydratePrefetchQuery(String prefetchQuery) {
-    String[] tokenList = StringUtils.substringsBetween(
-        prefetchQuery, PREFETCH_TOKEN_DELIM_OPEN, PREFETCH_TOKEN_DELIM_CLOSE);
-    for (String token : tokenList) {
-      String resolvedToken = resolvePrefetchToken(token);
-      if (resolvedToken.isEmpty()) {
-        return null;
+  private void cacheResult(PrefetchQuery query, IBaseResource result) {
+    if (prefetchCache != null && result != null) {
+      prefetchCache.put(cdsRequest, query.url, result);
+    }
+  }
+
+  private IBaseResource fetch(PrefetchQuery query) {
+    try {
+      return FhirRequestProcessor.executeFhirQueryUrl(query.url, cdsRequest, fhirComponents, HttpMethod.GET,
+          httpClient.getRestTemplate());
+    } catch (Exception e) {
+      logger.warn("Failed to fill prefetch for key: " + query.element.getKey(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Send all of the queries in one batch Bundle.
+   * @return the resource returned for each query, null for the entries that failed, or null if the server did not
+   *     answer the batch at all
+   */
+  private List<IBaseResource> fetchBatch(List<PrefetchQuery> queries) {
+    Bundle batchBundle = new Bundle();
+    batchBundle.setType(BundleType.BATCH);
+    for (PrefetchQuery query : queries) {
+      batchBundle.addEntry().getRequest().setMethod(HTTPVerb.GET).setUrl(query.url);
+    }
+    String batchBody = fhirComponents.getFhirContext().newJsonParser().encodeResourceToString(batchBundle);
+
+    IBaseResource response;
+    try {
+      response = FhirRequestProcessor.executeFhirQueryBody(batchBody, cdsRequest, fhirComponents, HttpMethod.POST,
+          httpClient.getRestTemplate());
+    } catch (Exception e) {
+      logger.warn("PrefetchHydrator::fetchBatch(): batch request failed, sending the queries one by one", e);
+      return null;
+    }
+    if (!(response instanceof Bundle) || ((Bundle) response).getType() != BundleType.BATCHRESPONSE
+        || ((Bundle) response).getEntry().size() != queries.size()) {
+      logger.warn("PrefetchHydrator::fetchBatch(): batch not supported by " + cdsRequest.getFhirServer()
+          + ", sending the queries one by one");
+      return null;
+    }
+
+    // the entries of a batch-response are in the same order as the entries of the batch
+    List<IBaseResource> results = new ArrayList<>();
+    for (BundleEntryComponent entry : ((Bundle) response).getEntry()) {
+      if (entry.hasResource() && entry.hasResponse() && entry.getResponse().getStatus() != null
+          && entry.getResponse().getStatus().startsWith("2")) {
+        results.add(entry.getResource());
+      } else {
+        results.add(null);
       }
-      prefetchQuery = prefetchQuery.replaceAll(Pattern.quote(
-          PREFETCH_TOKEN_DELIM_OPEN + token + PREFETCH_TOKEN_DELIM_CLOSE), resolvedToken);
     }
-    return prefetchQuery;
+    return results;
   }
 
-  private String resolvePrefetchToken(String prefetchToken) {
-    currentlyResolvingPrefetchToken = prefetchToken;
-    List<String> elementList = new ArrayList<>();
-    List<String> pathList = Arrays.asList(prefetchToken.split("\\."));
-    resolvePrefetchTokenRecursive(dataForPrefetchToken, pathList, elementList);
-    return String.join(",", elementList);
+  /**
+   * A missing prefetch element and the query that will fill it.
+   */
+  private static class PrefetchQuery {
+    final PrefetchTemplateElement element;
+    final String url;
+
+    PrefetchQuery(PrefetchTemplateElement element, String url) {
+      this.element = element;
+      this.url = url;
+    }
   }
 }
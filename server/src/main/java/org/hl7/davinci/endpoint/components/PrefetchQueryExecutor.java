@@ -0,0 +1,144 @@
+package org.hl7.davinci.endpoint.components;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the prefetch queries of a single hook request against the EHR in parallel. The pool is shared by all
+ * requests and bounded by prefetchThreads, with a bounded queue. Queries always run on the pool, even a single
+ * one, so the request thread can always stop waiting at the deadline. A query that does not fit in the queue is
+ * not sent and is reported as timed out.
+ *
+ * All of the queries of one request share a deadline (prefetchTimeoutMs), a query still running when it passes
+ * is cancelled and reported to the caller.
+ */
+@Component
+public class PrefetchQueryExecutor {
+
+  static final Logger logger = LoggerFactory.getLogger(PrefetchQueryExecutor.class);
+
+  private static final int QUEUE_PER_THREAD = 16;
+
+  @Autowired
+  private YamlConfig myConfig;
+
+  private ThreadPoolExecutor executor;
+
+  @PostConstruct
+  public void start() {
+    int threads = Math.max(myConfig.getPrefetchThreads(), 1);
+
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "prefetch-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    logger.info("PrefetchQueryExecutor: running prefetch queries on up to " + threads + " threads");
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the deadline (System.currentTimeMillis()) of prefetch queries started now, Long.MAX_VALUE for none
+   */
+  public long deadline() {
+    long timeoutMs = myConfig.getPrefetchTimeoutMs();
+    return timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+  }
+
+  /**
+   * Run every query, in parallel when there is more than one, and wait for them until the prefetchTimeoutMs after
+   * this call.
+   * @param queries the queries to run
+   * @param fetcher runs a single query, must not touch state shared with the other queries
+   * @param timedOut the queries that did not finish in time are added to this list
+   * @return the results, in the same order as the queries, null for the queries that timed out
+   */
+  public <T, R> List<R> fetchAll(List<T> queries, Function<T, R> fetcher, List<T> timedOut) {
+    return fetchAll(queries, fetcher, timedOut, deadline());
+  }
+
+  /**
+   * Run every query, in parallel when there is more than one, and wait for them until the deadline.
+   * @param queries the queries to run
+   * @param fetcher runs a single query, must not touch state shared with the other queries
+   * @param timedOut the queries that did not finish in time, or could not be started, are added to this list
+   * @param deadline time (System.currentTimeMillis()) to stop waiting, shared by earlier steps of the request
+   * @return the results, in the same order as the queries, null for the queries that timed out
+   */
+  public <T, R> List<R> fetchAll(List<T> queries, Function<T, R> fetcher, List<T> timedOut, long deadline) {
+    List<R> results = new ArrayList<>(queries.size());
+    List<Future<R>> futures = new ArrayList<>(queries.size());
+    for (T query : queries) {
+      try {
+        futures.add(executor.submit(() -> fetcher.apply(query)));
+      } catch (RejectedExecutionException e) {
+        logger.warn("PrefetchQueryExecutor::fetchAll() queue full, " + executor.getActiveCount()
+            + " of " + executor.getMaximumPoolSize() + " threads busy, query not sent");
+        futures.add(null);
+      }
+    }
+
+    try {
+      for (int i = 0; i < queries.size(); i++) {
+        Future<R> future = futures.get(i);
+        if (future == null) {
+          timedOut.add(queries.get(i));
+          results.add(null);
+          continue;
+        }
+        try {
+          if (deadline == Long.MAX_VALUE) {
+            results.add(future.get());
+          } else {
+            results.add(future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS));
+          }
+        } catch (TimeoutException e) {
+          future.cancel(true);
+          timedOut.add(queries.get(i));
+          results.add(null);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while fetching the prefetch", e);
+    } finally {
+      for (Future<R> future : futures) {
+        if (future != null) {
+          future.cancel(true);
+        }
+      }
+    }
+    return results;
+  }
+}
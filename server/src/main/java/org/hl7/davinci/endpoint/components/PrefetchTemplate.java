@@ -0,0 +1,138 @@
+package org.hl7.davinci.endpoint.components;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.hl7.davinci.FatalRequestIncompleteException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A prefetch query template, such as "DeviceRequest?_id={{context.draftOrders.DeviceRequest.id}}", parsed once
+ * into its literal parts and the paths of its {{tokens}}. Resolving it against the data of a request walks each
+ * path and builds the query in one pass, without parsing the template again.
+ *
+ * The data for the tokens is mostly maps (see CdsRequest.getDataForPrefetchToken()), those are looked up
+ * directly. Anything else falls back to the bean properties of PropertyUtils, as before.
+ */
+public class PrefetchTemplate {
+
+  private static final String PREFETCH_TOKEN_DELIM_OPEN = "{{";
+  private static final String PREFETCH_TOKEN_DELIM_CLOSE = "}}";
+
+  private final String template;
+
+  // literals.get(i) comes before tokens.get(i), the last literal follows the last token
+  private final List<String> literals = new ArrayList<>();
+  private final List<Token> tokens = new ArrayList<>();
+
+  /**
+   * Parse a prefetch query template.
+   * @param template the query, with {{tokens}} to fill in
+   */
+  public PrefetchTemplate(String template) {
+    this.template = template;
+    int start = 0;
+    while (true) {
+      int open = template.indexOf(PREFETCH_TOKEN_DELIM_OPEN, start);
+      int close = open < 0
+          ? -1 : template.indexOf(PREFETCH_TOKEN_DELIM_CLOSE, open + PREFETCH_TOKEN_DELIM_OPEN.length());
+      if (close < 0) {
+        break;
+      }
+      literals.add(template.substring(start, open));
+      tokens.add(new Token(template.substring(open + PREFETCH_TOKEN_DELIM_OPEN.length(), close)));
+      start = close + PREFETCH_TOKEN_DELIM_CLOSE.length();
+    }
+    literals.add(template.substring(start));
+  }
+
+  public String getTemplate() {
+    return template;
+  }
+
+  /**
+   * Fill in the tokens of the template. A token that resolves to several values is filled in with all of them,
+   * separated by commas.
+   * @param dataForPrefetchToken the data the tokens are resolved against
+   * @return the query, or null if a token has no value in the data
+   */
+  public String resolve(Object dataForPrefetchToken) {
+    StringBuilder query = new StringBuilder(template.length() + 16 * tokens.size());
+    for (int i = 0; i < tokens.size(); i++) {
+      query.append(literals.get(i));
+      int tokenStart = query.length();
+      tokens.get(i).resolve(dataForPrefetchToken, 0, query, tokenStart);
+      if (query.length() == tokenStart) {
+        return null;
+      }
+    }
+    query.append(literals.get(tokens.size()));
+    return query.toString();
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+
+  /**
+   * A {{token}}, split into the names along its path.
+   */
+  private static class Token {
+    private final String token;
+    private final String[] path;
+
+    Token(String token) {
+      this.token = token;
+      this.path = token.split("\\.");
+    }
+
+    /**
+     * Append the values found along the path from position, separated by commas.
+     * @param tokenStart where the values of this token start in the query
+     */
+    private void resolve(Object object, int position, StringBuilder query, int tokenStart) {
+      if (object == null) {
+        return;
+      }
+      if (position == path.length) {
+        if (query.length() > tokenStart) {
+          query.append(',');
+        }
+        query.append(object);
+        return;
+      }
+
+      String name = path[position];
+      if (name.equals("id")) {
+        //special logic for "id" since hapi puts the unqualified id part kind of deep
+        if (!(object instanceof IBaseResource)) {
+          return;
+        }
+        object = ((IBaseResource) object).getIdElement().getIdPart();
+        // if a resource exists but has no id, throw an error rather than continuing
+        if (object == null) {
+          throw new FatalRequestIncompleteException("While attempting to resolve prefetch "
+              + "token '" + token + "', a resource was found without an ID.");
+        }
+      } else if (object instanceof Map) {
+        object = ((Map<?, ?>) object).get(name);
+      } else {
+        try {
+          object = PropertyUtils.getProperty(object, name);
+        } catch (Exception e) {
+          return;
+        }
+      }
+
+      if (object instanceof List) {
+        for (Object entry : (List<?>) object) {
+          resolve(entry, position + 1, query, tokenStart);
+        }
+        return;
+      }
+      resolve(object, position + 1, query, tokenStart);
+    }
+  }
+}
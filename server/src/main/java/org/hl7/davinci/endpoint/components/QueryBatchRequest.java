@@ -37,9 +37,11 @@ public class QueryBatchRequest {
   private static final String PRACTIONER_ROLE = "PractitionerRole";
 
   private final FhirComponentsT fhirComponents;
+  private final OutboundHttpClient httpClient;
 
-  public QueryBatchRequest(FhirComponentsT fhirComponents) {
+  public QueryBatchRequest(FhirComponentsT fhirComponents, OutboundHttpClient httpClient) {
     this.fhirComponents = fhirComponents;
+    this.httpClient = httpClient;
   }
 
   /**
@@ -87,7 +89,8 @@ public class QueryBatchRequest {
     Bundle queryResponseBundle = null;
     try {
       logger.info("Executing Query Batch Request: " + queryBatchRequestBody);
-      queryResponseBundle = (Bundle) FhirRequestProcessor.executeFhirQueryBody(queryBatchRequestBody, cdsRequest, this.fhirComponents, HttpMethod.POST);
+      queryResponseBundle = (Bundle) FhirRequestProcessor.executeFhirQueryBody(queryBatchRequestBody, cdsRequest, this.fhirComponents, HttpMethod.POST,
+          httpClient.getRestTemplate());
       queryResponseBundle = extractNestedBundledResources(queryResponseBundle);
       logger.info("Extracted Query Batch Resources: "
           + (queryResponseBundle).getEntry().stream().map(entry -> entry.getResource()).collect(Collectors.toList()));
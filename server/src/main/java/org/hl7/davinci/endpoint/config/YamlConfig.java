@@ -37,10 +37,64 @@ public class YamlConfig {
 
   private String valueSetCachePath;
 
+  private String elmCachePath;
+
+  private String precompiledElmPath;
+
   private boolean urlEncodeAppContext;
 
   private boolean queryBatchRequest;
 
+  private int cqlEvaluationThreads = 4;
+
+  private long cqlTopicTimeoutMs;
+
+  private long cqlRequestTimeoutMs;
+
+  private boolean cqlRetrieveFromFhirServer;
+
+  private boolean requestLogWriteBehind = true;
+
+  private int requestLogQueueSize = 10000;
+
+  private int requestLogBatchSize = 100;
+
+  private boolean requestLogBody = true;
+
+  private boolean requestLogSuccessBody = true;
+
+  private long requestLogRetentionMinutes = 1440;
+
+  private int requestLogMaxRows = 10000;
+
+  private long requestLogMaxBodyBytes = 64L * 1024 * 1024;
+
+  private long requestLogPruneIntervalMs = 60000;
+
+  private int requestLogPageSize = 100;
+
+  private int authFailureLogSampling = 1;
+
+  private int prefetchThreads = 8;
+
+  private long prefetchTimeoutMs = 5000;
+
+  private boolean prefetchBatch = false;
+
+  private long prefetchCacheTtlMs = 60000;
+
+  private int prefetchCacheSize = 1000;
+
+  private long httpConnectTimeoutMs = 5000;
+
+  private long httpReadTimeoutMs = 15000;
+
+  private int httpPoolMaxTotal = 100;
+
+  private int httpPoolMaxPerRoute = 20;
+
+  private long httpMaxResponseBytes = 50L * 1024 * 1024;
+
   public boolean getCheckJwt() {
     return checkJwt;
   }
@@ -111,4 +165,112 @@ public class YamlConfig {
   public String getValueSetCachePath() { return valueSetCachePath; }
 
   public void setValueSetCachePath(String valueSetCachePath) { this.valueSetCachePath = valueSetCachePath; }
+
+  public String getElmCachePath() { return elmCachePath; }
+
+  public void setElmCachePath(String elmCachePath) { this.elmCachePath = elmCachePath; }
+
+  public int getCqlEvaluationThreads() { return cqlEvaluationThreads; }
+
+  public void setCqlEvaluationThreads(int cqlEvaluationThreads) { this.cqlEvaluationThreads = cqlEvaluationThreads; }
+
+  public long getCqlTopicTimeoutMs() { return cqlTopicTimeoutMs; }
+
+  public void setCqlTopicTimeoutMs(long cqlTopicTimeoutMs) { this.cqlTopicTimeoutMs = cqlTopicTimeoutMs; }
+
+  public long getCqlRequestTimeoutMs() { return cqlRequestTimeoutMs; }
+
+  public void setCqlRequestTimeoutMs(long cqlRequestTimeoutMs) { this.cqlRequestTimeoutMs = cqlRequestTimeoutMs; }
+
+  public boolean isCqlRetrieveFromFhirServer() { return cqlRetrieveFromFhirServer; }
+
+  public void setCqlRetrieveFromFhirServer(boolean cqlRetrieveFromFhirServer) { this.cqlRetrieveFromFhirServer = cqlRetrieveFromFhirServer; }
+
+  public boolean isRequestLogWriteBehind() { return requestLogWriteBehind; }
+
+  public void setRequestLogWriteBehind(boolean requestLogWriteBehind) { this.requestLogWriteBehind = requestLogWriteBehind; }
+
+  public int getRequestLogQueueSize() { return requestLogQueueSize; }
+
+  public void setRequestLogQueueSize(int requestLogQueueSize) { this.requestLogQueueSize = requestLogQueueSize; }
+
+  public int getRequestLogBatchSize() { return requestLogBatchSize; }
+
+  public void setRequestLogBatchSize(int requestLogBatchSize) { this.requestLogBatchSize = requestLogBatchSize; }
+
+  public boolean isRequestLogBody() { return requestLogBody; }
+
+  public void setRequestLogBody(boolean requestLogBody) { this.requestLogBody = requestLogBody; }
+
+  public boolean isRequestLogSuccessBody() { return requestLogSuccessBody; }
+
+  public void setRequestLogSuccessBody(boolean requestLogSuccessBody) { this.requestLogSuccessBody = requestLogSuccessBody; }
+
+  public long getRequestLogRetentionMinutes() { return requestLogRetentionMinutes; }
+
+  public void setRequestLogRetentionMinutes(long requestLogRetentionMinutes) { this.requestLogRetentionMinutes = requestLogRetentionMinutes; }
+
+  public int getRequestLogMaxRows() { return requestLogMaxRows; }
+
+  public void setRequestLogMaxRows(int requestLogMaxRows) { this.requestLogMaxRows = requestLogMaxRows; }
+
+  public long getRequestLogMaxBodyBytes() { return requestLogMaxBodyBytes; }
+
+  public void setRequestLogMaxBodyBytes(long requestLogMaxBodyBytes) { this.requestLogMaxBodyBytes = requestLogMaxBodyBytes; }
+
+  public long getRequestLogPruneIntervalMs() { return requestLogPruneIntervalMs; }
+
+  public void setRequestLogPruneIntervalMs(long requestLogPruneIntervalMs) { this.requestLogPruneIntervalMs = requestLogPruneIntervalMs; }
+
+  public int getRequestLogPageSize() { return requestLogPageSize; }
+
+  public void setRequestLogPageSize(int requestLogPageSize) { this.requestLogPageSize = requestLogPageSize; }
+
+  public int getAuthFailureLogSampling() { return authFailureLogSampling; }
+
+  public void setAuthFailureLogSampling(int authFailureLogSampling) { this.authFailureLogSampling = authFailureLogSampling; }
+
+  public int getPrefetchThreads() { return prefetchThreads; }
+
+  public void setPrefetchThreads(int prefetchThreads) { this.prefetchThreads = prefetchThreads; }
+
+  public long getPrefetchTimeoutMs() { return prefetchTimeoutMs; }
+
+  public void setPrefetchTimeoutMs(long prefetchTimeoutMs) { this.prefetchTimeoutMs = prefetchTimeoutMs; }
+
+  public long getHttpConnectTimeoutMs() { return httpConnectTimeoutMs; }
+
+  public void setHttpConnectTimeoutMs(long httpConnectTimeoutMs) { this.httpConnectTimeoutMs = httpConnectTimeoutMs; }
+
+  public long getHttpReadTimeoutMs() { return httpReadTimeoutMs; }
+
+  public void setHttpReadTimeoutMs(long httpReadTimeoutMs) { this.httpReadTimeoutMs = httpReadTimeoutMs; }
+
+  public int getHttpPoolMaxTotal() { return httpPoolMaxTotal; }
+
+  public void setHttpPoolMaxTotal(int httpPoolMaxTotal) { this.httpPoolMaxTotal = httpPoolMaxTotal; }
+
+  public int getHttpPoolMaxPerRoute() { return httpPoolMaxPerRoute; }
+
+  public void setHttpPoolMaxPerRoute(int httpPoolMaxPerRoute) { this.httpPoolMaxPerRoute = httpPoolMaxPerRoute; }
+
+  public long getHttpMaxResponseBytes() { return httpMaxResponseBytes; }
+
+  public void setHttpMaxResponseBytes(long httpMaxResponseBytes) { this.httpMaxResponseBytes = httpMaxResponseBytes; }
+
+  public boolean isPrefetchBatch() { return prefetchBatch; }
+
+  public void setPrefetchBatch(boolean prefetchBatch) { this.prefetchBatch = prefetchBatch; }
+
+  public long getPrefetchCacheTtlMs() { return prefetchCacheTtlMs; }
+
+  public void setPrefetchCacheTtlMs(long prefetchCacheTtlMs) { this.prefetchCacheTtlMs = prefetchCacheTtlMs; }
+
+  public int getPrefetchCacheSize() { return prefetchCacheSize; }
+
+  public void setPrefetchCacheSize(int prefetchCacheSize) { this.prefetchCacheSize = prefetchCacheSize; }
+
+  public String getPrecompiledElmPath() { return precompiledElmPath; }
+
+  public void setPrecompiledElmPath(String precompiledElmPath) { this.precompiledElmPath = precompiledElmPath; }
 }
@@ -11,13 +11,13 @@ import org.hl7.davinci.endpoint.files.FileResource;
 import org.hl7.davinci.endpoint.files.FileStore;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.view.RedirectView;
 
-import java.util.Arrays;
 
 import java.io.IOException;
 import java.util.logging.Logger;
@@ -55,18 +55,21 @@ public class DataController {
 
   }
 
+  /**
+   * The request logs, newest first, a page at a time. Every log is sent with its decompressed body, so a page is
+   * never larger than requestLogPageSize logs.
+   * @param page the page, 0 for the newest logs
+   * @param size the number of logs in a page, at most requestLogPageSize
+   * @return the logs in the page
+   */
   @GetMapping(value = "/api/requests")
   @CrossOrigin
-  public Iterable<RequestLog> showAllLogs() {
-    logger.info("showAll: GET /api/data");
-
-    boolean[] timelineTrue = new boolean[5];
-    Arrays.fill(timelineTrue, Boolean.TRUE);
-    boolean[] timelineFalse = new boolean[5];
-    Arrays.fill(timelineFalse, Boolean.FALSE);
-
-    Iterable<RequestLog> list = requestRepository.findAll();
-    return list;
+  public Iterable<RequestLog> showAllLogs(@RequestParam(name = "page", defaultValue = "0") int page,
+                                          @RequestParam(name = "size", required = false) Integer size) {
+    logger.info("showAllLogs: GET /api/requests?page=" + page);
+    int maxSize = Math.max(myConfig.getRequestLogPageSize(), 1);
+    int pageSize = size == null ? maxSize : Math.min(Math.max(size, 1), maxSize);
+    return requestRepository.findNewest(PageRequest.of(Math.max(page, 0), pageSize));
   }
 
   @GetMapping(value = "/api/data")
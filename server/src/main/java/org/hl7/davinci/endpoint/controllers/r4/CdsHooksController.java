@@ -58,7 +58,8 @@ public class CdsHooksController {
     if (request.getPrefetch() == null) {
       request.setPrefetch(new CrdPrefetch());
     }
-    return orderSelectService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest));
+    return orderSelectService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest),
+        Utils.isNoCache(httpServletRequest));
   }
 
   /**
@@ -74,6 +75,7 @@ public class CdsHooksController {
     if (request.getPrefetch() == null) {
       request.setPrefetch(new CrdPrefetch());
     }
-    return orderSignService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest));
+    return orderSignService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest),
+        Utils.isNoCache(httpServletRequest));
   }
 }
@@ -0,0 +1,52 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+/**
+ * A CqlRule that has already been translated to executable ELM. Holds the main rule library
+ * along with every library it includes (FHIRHelpers, etc.) so that an execution Context can be
+ * built without invoking the translator again. The libraries are only read during evaluation and
+ * may be shared between requests.
+ */
+public class CompiledCqlRule {
+
+  private final Library library;
+  private final Map<String, Library> dependencies;
+  private final String contentHash;
+
+  /**
+   * Build a compiled rule.
+   * @param library the translated main rule library
+   * @param dependencies the translated included libraries keyed by library id
+   * @param contentHash hash of the CQL sources the libraries were translated from
+   */
+  public CompiledCqlRule(Library library, Map<String, Library> dependencies, String contentHash) {
+    if (library == null) {
+      throw new IllegalArgumentException("library is null");
+    }
+    this.library = library;
+    this.dependencies = Collections.unmodifiableMap(new HashMap<>(dependencies));
+    this.contentHash = contentHash;
+  }
+
+  public Library getLibrary() {
+    return library;
+  }
+
+  public Map<String, Library> getDependencies() {
+    return dependencies;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public LibraryLoader getLibraryLoader() {
+    return new CompiledLibraryLoader(dependencies);
+  }
+}
@@ -0,0 +1,41 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+/**
+ * LibraryLoader that serves libraries which have already been translated, used with a CompiledCqlRule.
+ */
+public class CompiledLibraryLoader implements LibraryLoader {
+
+  private final Map<String, Library> libraries;
+
+  public CompiledLibraryLoader(Map<String, Library> libraries) {
+    if (libraries == null) {
+      throw new IllegalArgumentException("libraries is null");
+    }
+    this.libraries = libraries;
+  }
+
+  @Override
+  public Library load(VersionedIdentifier libraryIdentifier) {
+    if (libraryIdentifier == null || libraryIdentifier.getId() == null) {
+      throw new IllegalArgumentException("Library identifier is null.");
+    }
+
+    Library library = libraries.get(libraryIdentifier.getId());
+    if (library == null) {
+      throw new IllegalArgumentException(String.format("Could not load library %s, it was not compiled with the rule.",
+          libraryIdentifier.getId()));
+    }
+    if (libraryIdentifier.getVersion() != null
+        && !libraryIdentifier.getVersion().equals(library.getIdentifier().getVersion())) {
+      throw new IllegalArgumentException(String.format("Could not load library %s, version %s because version %s was compiled with the rule.",
+          libraryIdentifier.getId(), libraryIdentifier.getVersion(), library.getIdentifier().getVersion()));
+    }
+    return library;
+  }
+}
@@ -0,0 +1,11 @@
+package org.hl7.davinci.endpoint.cql;
+
+/**
+ * Thrown when a rule runs past its evaluation deadline or its evaluation is cancelled.
+ */
+public class CqlEvaluationTimeoutException extends RuntimeException {
+
+  public CqlEvaluationTimeoutException(String message) {
+    super(message);
+  }
+}
@@ -1,7 +1,6 @@
 package org.hl7.davinci.endpoint.cql;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import javax.xml.bind.JAXBException;
 import org.cqframework.cql.cql2elm.CqlTranslator;
@@ -12,38 +11,29 @@ import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.tracking.TrackBack;
-import org.fhir.ucum.UcumEssenceService;
-import org.fhir.ucum.UcumService;
-import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
 
 
 public class CqlExecution {
 
   public static String translateToElm(String cql, LibrarySourceProvider librarySourceProvider) throws Exception {
-    ModelManager modelManager = new ModelManager();
-    LibraryManager libraryManager = new LibraryManager(modelManager);
-    libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
-    if (librarySourceProvider != null) {
-      libraryManager.getLibrarySourceLoader().registerProvider(librarySourceProvider);
+    try (CqlRuntime.Translation translation = CqlRuntime.openTranslation(cql)) {
+      LibraryManager libraryManager = translation.getLibraryManager();
+      libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+      if (librarySourceProvider != null) {
+        libraryManager.getLibrarySourceLoader().registerProvider(librarySourceProvider);
+      }
+      return translateToElm(cql, translation);
     }
+  }
 
-    ArrayList<CqlTranslator.Options> options = new ArrayList<>();
-    options.add(CqlTranslator.Options.EnableDateRangeOptimization);
-
-    UcumService ucumService = new UcumEssenceService(UcumEssenceService.class.getResourceAsStream("/ucum-essence.xml"));
-    CqlTranslator translator = CqlTranslator.fromText(cql, modelManager, libraryManager, ucumService, options.toArray(new CqlTranslator.Options[options.size()]));
-    libraryManager.getLibrarySourceLoader().clearProviders();
+  /**
+   * Translate CQL to JSON ELM, resolving included libraries only from the LibraryManager of the translation.
+   */
+  public static String translateToElm(String cql, CqlRuntime.Translation translation) throws Exception {
+    CqlTranslator translator = CqlTranslator.fromText(cql, translation.getModelManager(),
+        translation.getLibraryManager(), CqlRuntime.getUcumService(), CqlRuntime.TRANSLATOR_OPTIONS);
 
-    if (translator.getErrors().size() > 0) {
-      ArrayList<String> errors = new ArrayList<>();
-      for (CqlTranslatorException error : translator.getErrors()) {
-        TrackBack tb = error.getLocator();
-        String lines = tb == null ? "[n/a]" : String.format("[%d:%d, %d:%d]",
-            tb.getStartLine(), tb.getStartChar(), tb.getEndLine(), tb.getEndChar());
-        errors.add(lines + error.getMessage());
-      }
-      throw new IllegalArgumentException(errors.toString());
-    }
+    checkErrors(translator);
 
     return translator.toJson();
   }
@@ -53,10 +43,30 @@ public class CqlExecution {
   }
 
   public static Library translate(String cql, LibraryManager libraryManager, ModelManager modelManager) throws Exception {
-    ArrayList<CqlTranslator.Options> options = new ArrayList<>();
-    options.add(CqlTranslator.Options.EnableDateRangeOptimization);
-    UcumService ucumService = new UcumEssenceService(UcumEssenceService.class.getResourceAsStream("/ucum-essence.xml"));
-    CqlTranslator translator = CqlTranslator.fromText(cql, modelManager, libraryManager, ucumService, options.toArray(new CqlTranslator.Options[options.size()]));
+    Library library = null;
+    try {
+      library = ElmLibraryConverter.toExecutionLibrary(translateToElmLibrary(cql, libraryManager, modelManager));
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (JAXBException e) {
+      e.printStackTrace();
+    }
+
+    return library;
+  }
+
+  /**
+   * Translate CQL to the translator's ELM library, before it is converted for the engine.
+   */
+  public static org.hl7.elm.r1.Library translateToElmLibrary(String cql, LibraryManager libraryManager,
+                                                             ModelManager modelManager) throws Exception {
+    CqlTranslator translator = CqlTranslator.fromText(cql, modelManager, libraryManager,
+        CqlRuntime.getUcumService(), CqlRuntime.TRANSLATOR_OPTIONS);
+    checkErrors(translator);
+    return translator.toELM();
+  }
+
+  private static void checkErrors(CqlTranslator translator) {
     if (translator.getErrors().size() > 0) {
       ArrayList<String> errors = new ArrayList<>();
       for (CqlTranslatorException error : translator.getErrors()) {
@@ -67,16 +77,5 @@ public class CqlExecution {
       }
       throw new IllegalArgumentException(errors.toString());
     }
-
-    Library library = null;
-    try {
-      library = CqlLibraryReader.read(new StringReader(translator.toXml()));
-    } catch (IOException e) {
-      e.printStackTrace();
-    } catch (JAXBException e) {
-      e.printStackTrace();
-    }
-
-    return library;
   }
 }
@@ -0,0 +1,150 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The results of the defines of a rule for one execution Context. Each define is evaluated at most once, the
+ * first time it is asked for, and the result is kept for later lookups. Defines the library does not have
+ * simply return null rather than throwing, so callers can check for optional defines with has().
+ *
+ * An optional deadline is checked before each define is evaluated. Once it has passed, or the evaluating thread
+ * has been interrupted, the snapshot throws a CqlEvaluationTimeoutException instead of evaluating anything else.
+ *
+ * Not thread safe, a snapshot belongs to the single Context it was built for.
+ */
+public class CqlResultSnapshot {
+
+  static final Logger logger = LoggerFactory.getLogger(CqlResultSnapshot.class);
+
+  private final Context context;
+  private final Set<String> defines;
+  private final Map<String, Object> results = new HashMap<>();
+  private final long deadline;
+
+  public CqlResultSnapshot(Context context) {
+    this(context, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param context the execution context of the rule
+   * @param deadline time in milliseconds (System.currentTimeMillis()) after which no more defines are evaluated
+   */
+  public CqlResultSnapshot(Context context, long deadline) {
+    this.context = context;
+    this.deadline = deadline;
+    this.defines = findDefines(context.getCurrentLibrary());
+  }
+
+  private static Set<String> findDefines(Library library) {
+    if (library == null || library.getStatements() == null) {
+      return Collections.emptySet();
+    }
+    Set<String> defines = new HashSet<>();
+    for (ExpressionDef def : library.getStatements().getDef()) {
+      defines.add(def.getName());
+    }
+    return defines;
+  }
+
+  /**
+   * @param define name of the define
+   * @return true if the library has the define
+   */
+  public boolean has(String define) {
+    return defines.contains(define);
+  }
+
+  /**
+   * Get the result of a define, evaluating it if it has not been evaluated yet.
+   * @param define name of the define
+   * @return the result, null if the library does not have the define or it failed to evaluate
+   */
+  public Object get(String define) {
+    if (!has(define)) {
+      return null;
+    }
+    if (results.containsKey(define)) {
+      return results.get(define);
+    }
+
+    checkDeadline(define);
+    Object result = null;
+    try {
+      result = context.resolveExpressionRef(define).evaluate(context);
+    } catch (Exception e) {
+      // a cancelled evaluation can surface as any exception from the engine
+      checkDeadline(define);
+      logger.error("CqlResultSnapshot::get() failed to evaluate " + define + ": " + e.toString());
+    }
+    checkDeadline(define);
+    results.put(define, result);
+    return result;
+  }
+
+  /**
+   * @return the result as a Boolean, null if missing or not a Boolean
+   */
+  public Boolean getBoolean(String define) {
+    return as(define, Boolean.class);
+  }
+
+  /**
+   * @return the result as a boolean, false if missing or not a Boolean
+   */
+  public boolean isTrue(String define) {
+    return Boolean.TRUE.equals(getBoolean(define));
+  }
+
+  /**
+   * @return the string form of the result, null if missing
+   */
+  public String getString(String define) {
+    Object result = get(define);
+    return result == null ? null : result.toString();
+  }
+
+  /**
+   * @return the result as a FHIR resource, null if missing or not a resource
+   */
+  public IBaseResource getResource(String define) {
+    return as(define, IBaseResource.class);
+  }
+
+  /**
+   * @return the result as a CQL Code, null if missing or not a Code
+   */
+  public Code getCode(String define) {
+    return as(define, Code.class);
+  }
+
+  private void checkDeadline(String define) {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new CqlEvaluationTimeoutException("evaluation cancelled at " + define);
+    }
+    if (System.currentTimeMillis() > deadline) {
+      throw new CqlEvaluationTimeoutException("evaluation deadline passed at " + define);
+    }
+  }
+
+  private <T> T as(String define, Class<T> type) {
+    Object result = get(define);
+    if (result != null && !type.isInstance(result)) {
+      logger.warn("CqlResultSnapshot::as() " + define + " is a " + result.getClass().getSimpleName()
+          + ", expected " + type.getSimpleName());
+      return null;
+    }
+    return type.cast(result);
+  }
+}
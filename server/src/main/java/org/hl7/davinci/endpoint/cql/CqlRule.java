@@ -2,8 +2,11 @@ package org.hl7.davinci.endpoint.cql;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.cqframework.cql.elm.execution.Library;
 import org.hl7.elm.r1.UsingDef;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
+import org.opencds.cqf.cql.engine.execution.JsonCqlLibraryReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,24 +14,36 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.xml.bind.JAXBException;
 
 public class CqlRule {
 
   static final Logger logger = LoggerFactory.getLogger(CqlRule.class);
 
+  /// extension of the file holding the elmSourceHash() an ELM file was built from ("FooRule-1.0.0.sha256")
+  public static final String ELM_HASH_EXTENSION = "sha256";
+
   private String fhirVersion;
   private String mainCqlLibraryName = "Rule";
 
   private boolean precompiled = false;
 
+  private String contentHash = "";
+
   private HashMap<String, HashMap<VersionedIdentifier, InputStream>> rawCqlLibraries = new HashMap<>();
+  private HashMap<String, HashMap<VersionedIdentifier, CqlLibrary>> elmLibraries = new HashMap<>();
   private HashMap<String, VersionedIdentifier> mainCqlLibraryId = new HashMap<>();
 
 
@@ -48,7 +63,30 @@ public class CqlRule {
     this.mainCqlLibraryName = mainCqlLibraryName;
     this.fhirVersion = fhirVersion;
 
-    build(cqlFiles, new HashMap<>(), new HashMap<>());
+    build(cqlFiles, new HashMap<>(), new HashMap<>(), new HashMap<>());
+  }
+
+  /**
+   * Build a CqlRule from a list of CQL Files and the ELM precompiled from them.
+   * @param mainCqlLibraryName
+   * @param cqlFiles
+   * @param elmFiles ELM (JSON or XML) and ELM hash files, named after the CQL file they were built from
+   * @param fhirVersion
+   */
+  public CqlRule(String mainCqlLibraryName, HashMap<String, byte[]> cqlFiles, HashMap<String, byte[]> elmFiles,
+                 String fhirVersion) {
+    logger.info("CqlRule::constructor() cqlFiles, elmFiles: fhirVersion: " + fhirVersion);
+    this.mainCqlLibraryName = mainCqlLibraryName;
+    this.fhirVersion = fhirVersion;
+
+    HashMap<String, byte[]> jsonElmFiles = new HashMap<>();
+    HashMap<String, byte[]> xmlElmFiles = new HashMap<>();
+    HashMap<String, byte[]> elmHashFiles = new HashMap<>();
+    for (String fileName : elmFiles.keySet()) {
+      sortElmFile(fileName, elmFiles.get(fileName), jsonElmFiles, xmlElmFiles, elmHashFiles);
+    }
+
+    build(cqlFiles, jsonElmFiles, xmlElmFiles, elmHashFiles);
   }
 
   /**
@@ -63,18 +101,17 @@ public class CqlRule {
     HashMap<String, byte[]> cqlFiles = new HashMap<>();
     HashMap<String, byte[]> jsonElmFiles = new HashMap<>();
     HashMap<String, byte[]> xmlElmFiles = new HashMap<>();
+    HashMap<String, byte[]> elmHashFiles = new HashMap<>();
 
-    // process all fo the files in the directory finding the CQL, ELM (JSON), ELM (XML)
+    // process all fo the files in the directory finding the CQL, ELM (JSON), ELM (XML), ELM hash
     File folder = new File(cqlRulePath);
     for (File file: folder.listFiles()) {
       if (file.isFile()) {
         try {
           if (FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("cql")) {
             cqlFiles.put(file.getName(), Files.readAllBytes(file.toPath()));
-          } else if (FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("json")) {
-            jsonElmFiles.put(file.getName(), Files.readAllBytes(file.toPath()));
-          } else if (FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("xml")) {
-            xmlElmFiles.put(file.getName(), Files.readAllBytes(file.toPath()));
+          } else {
+            sortElmFile(file.getName(), Files.readAllBytes(file.toPath()), jsonElmFiles, xmlElmFiles, elmHashFiles);
           }
         } catch (IOException e) {
           logger.warn("failed to open file: " + file.getAbsoluteFile());
@@ -82,12 +119,27 @@ public class CqlRule {
       }
     }
 
-    build(cqlFiles, jsonElmFiles, xmlElmFiles);
+    build(cqlFiles, jsonElmFiles, xmlElmFiles, elmHashFiles);
+  }
+
+  private static void sortElmFile(String fileName, byte[] data,
+                                  HashMap<String, byte[]> jsonElmFiles,
+                                  HashMap<String, byte[]> xmlElmFiles,
+                                  HashMap<String, byte[]> elmHashFiles) {
+    String extension = FilenameUtils.getExtension(fileName);
+    if (extension.equalsIgnoreCase("json")) {
+      jsonElmFiles.put(fileName, data);
+    } else if (extension.equalsIgnoreCase("xml")) {
+      xmlElmFiles.put(fileName, data);
+    } else if (extension.equalsIgnoreCase(ELM_HASH_EXTENSION)) {
+      elmHashFiles.put(fileName, data);
+    }
   }
 
   private void build(HashMap<String, byte[]> cqlFiles,
                      HashMap<String, byte[]> jsonElmFiles,
-                     HashMap<String, byte[]> xmlElmFiles) {
+                     HashMap<String, byte[]> xmlElmFiles,
+                     HashMap<String, byte[]> elmHashFiles) {
 
     // build a list of all of the CQL Libraries
     List<CqlRule.CqlLibrary> cqlLibraries = new ArrayList<>();
@@ -113,38 +165,51 @@ public class CqlRule {
           cqlLibrary.xlmElm = false;
           cqlLibrary.elm = jsonElmFiles.get(jsonElmName);
         }
+        String elmHashName = fileNameWithoutExtension + "." + ELM_HASH_EXTENSION;
+        if (elmHashFiles.containsKey(elmHashName)) {
+          cqlLibrary.elmSourceHash = new String(elmHashFiles.get(elmHashName), Charset.forName("UTF-8")).trim();
+        }
 
         cqlLibraries.add(cqlLibrary);
       }
     }
 
-    precompiled = false;
+    contentHash = computeContentHash(cqlFiles);
 
+    // only run the ELM if every library has ELM that was built from the CQL we have now
+    precompiled = !cqlLibraries.isEmpty();
     for (CqlLibrary cqlLibrary : cqlLibraries) {
-      if (precompiled) {
-        if (cqlLibrary.elm == null) {
-          throw new RuntimeException("Package indicated CQL was precompiled, but elm xml missing.");
-        }
-        // TODO: need to set rulePackage.elmLibraries and mainCqlLibraryId
+      if (cqlLibrary.elm == null) {
+        precompiled = false;
+      } else if (!elmSourceHash(cqlLibrary.cql).equalsIgnoreCase(cqlLibrary.elmSourceHash)) {
+        logger.info("CqlRule::build() ELM is stale or missing source hash for " + getIdFromCqlFile(cqlLibrary.cql).getId()
+            + ", will translate CQL");
+        precompiled = false;
+      }
+    }
+
+    for (CqlLibrary cqlLibrary : cqlLibraries) {
+      // always keep the CQL so the rule can be translated if the ELM fails to load
+      InputStream cqlStream = new ByteArrayInputStream(cqlLibrary.cql);
+      VersionedIdentifier id = getIdFromCqlFile(cqlLibrary.cql);
+      String fhirVersionFromFile = getFhirVersionFromCqlFile(cqlLibrary.cql);
+      logger.info("CqlRule::Constructor() add id: " + id.getId() + ", fhir version: " + fhirVersionFromFile);
+
+      if (rawCqlLibraries.containsKey(fhirVersionFromFile)) {
+        //logger.info("CqlRule::Constructor() add rawCqlLibraries add: " + id.getId());
+        rawCqlLibraries.get(fhirVersionFromFile).put(id, cqlStream);
       } else {
-        InputStream cqlStream = new ByteArrayInputStream(cqlLibrary.cql);
-        VersionedIdentifier id = getIdFromCqlFile(cqlLibrary.cql);
-        String fhirVersionFromFile = getFhirVersionFromCqlFile(cqlLibrary.cql);
-        logger.info("CqlRule::Constructor() add id: " + id.getId() + ", fhir version: " + fhirVersionFromFile);
-
-        if (rawCqlLibraries.containsKey(fhirVersionFromFile)) {
-          //logger.info("CqlRule::Constructor() add rawCqlLibraries add: " + id.getId());
-          rawCqlLibraries.get(fhirVersionFromFile).put(id, cqlStream);
-        } else {
-          HashMap<VersionedIdentifier, InputStream> map = new HashMap<>();
-          map.put(id, cqlStream);
-          //logger.info("CqlRule::Constructor() add rawCqlLibraries new: " + id.getId());
-          rawCqlLibraries.put(fhirVersionFromFile, map);
-        }
-        if (id.getId().equals(mainCqlLibraryName)) {
-          //logger.info("CqlRule::Constructor() add mainCqlLibraryId: " + id.getId());
-          mainCqlLibraryId.put(fhirVersionFromFile, id);
-        }
+        HashMap<VersionedIdentifier, InputStream> map = new HashMap<>();
+        map.put(id, cqlStream);
+        //logger.info("CqlRule::Constructor() add rawCqlLibraries new: " + id.getId());
+        rawCqlLibraries.put(fhirVersionFromFile, map);
+      }
+      if (id.getId().equals(mainCqlLibraryName)) {
+        //logger.info("CqlRule::Constructor() add mainCqlLibraryId: " + id.getId());
+        mainCqlLibraryId.put(fhirVersionFromFile, id);
+      }
+      if (precompiled) {
+        elmLibraries.computeIfAbsent(fhirVersionFromFile, k -> new HashMap<>()).put(id, cqlLibrary);
       }
     }
   }
@@ -153,6 +218,59 @@ public class CqlRule {
     return precompiled;
   }
 
+  /**
+   * Hash of the CQL source files this rule was built from. Used to detect when a cached
+   * translation of the rule no longer matches the source.
+   * @return hex encoded SHA-256 of the CQL sources, empty if the rule has no sources
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * Read the precompiled ELM of the main library.
+   * @param fhirVersion
+   * @return the executable main library, null if the rule is not precompiled for the version
+   */
+  public Library getMainElmLibrary(String fhirVersion) {
+    logger.info("CqlRule::getMainElmLibrary(): " + fhirVersion);
+    if (!precompiled || !mainCqlLibraryId.containsKey(fhirVersion) || !elmLibraries.containsKey(fhirVersion)) {
+      return null;
+    }
+    return readElm(elmLibraries.get(fhirVersion).get(mainCqlLibraryId.get(fhirVersion)));
+  }
+
+  /**
+   * Read the precompiled ELM of all the libraries other than the main library.
+   * @param fhirVersion
+   * @return the executable libraries keyed by library id
+   */
+  public Map<String, Library> getDependencyElmLibraries(String fhirVersion) {
+    logger.info("CqlRule::getDependencyElmLibraries(): " + fhirVersion);
+    Map<String, Library> libraries = new HashMap<>();
+    if (!precompiled || !elmLibraries.containsKey(fhirVersion)) {
+      return libraries;
+    }
+    for (Map.Entry<VersionedIdentifier, CqlLibrary> entry : elmLibraries.get(fhirVersion).entrySet()) {
+      if (!entry.getKey().equals(mainCqlLibraryId.get(fhirVersion))) {
+        libraries.put(entry.getKey().getId(), readElm(entry.getValue()));
+      }
+    }
+    return libraries;
+  }
+
+  private static Library readElm(CqlLibrary cqlLibrary) {
+    try {
+      if (cqlLibrary.xlmElm) {
+        return CqlLibraryReader.read(new StringReader(new String(cqlLibrary.elm, Charset.forName("UTF-8"))));
+      } else {
+        return JsonCqlLibraryReader.read(new StringReader(new String(cqlLibrary.elm, Charset.forName("UTF-8"))));
+      }
+    } catch (IOException | JAXBException e) {
+      throw new RuntimeException("Failed to read precompiled ELM: " + e.getMessage(), e);
+    }
+  }
+
   public RawCqlLibrarySourceProvider getRawCqlLibrarySourceProvider(String fhirVersion) {
     logger.info("CqlRule::getRawCqlLibrarySourceProvider(): " + fhirVersion);
     return new RawCqlLibrarySourceProvider(rawCqlLibraries.get(fhirVersion));
@@ -172,7 +290,56 @@ public class CqlRule {
     }
   }
 
-  private static String getFhirVersionFromCqlFile(byte[] cql) {
+  /**
+   * The hash ELM precompiled from some CQL is stored with. Covers the translator version and options as well as
+   * the CQL, so ELM built by another translator or with other options is not used.
+   * @param cql the CQL the ELM is built from
+   * @return hex encoded SHA-256
+   */
+  public static String elmSourceHash(byte[] cql) {
+    String hashSource = sha256(cql) + "|" + CqlRuntime.getTranslatorFingerprint();
+    return sha256(hashSource.getBytes(Charset.forName("UTF-8")));
+  }
+
+  /**
+   * @param data
+   * @return hex encoded SHA-256 of the data
+   */
+  public static String sha256(byte[] data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return toHex(digest.digest(data));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static String computeContentHash(HashMap<String, byte[]> cqlFiles) {
+    if (cqlFiles.isEmpty()) {
+      return "";
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      // sort by file name so the hash does not depend on the HashMap ordering
+      for (Map.Entry<String, byte[]> entry : new TreeMap<>(cqlFiles).entrySet()) {
+        digest.update(entry.getKey().getBytes(Charset.forName("UTF-8")));
+        digest.update(entry.getValue());
+      }
+      return toHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String getFhirVersionFromCqlFile(byte[] cql) {
     String fhirVersion = "";
     UsingDef usingDef = new UsingDef();
     Pattern pattern = Pattern.compile("using (.*?) version '(.*?)'");
@@ -193,7 +360,7 @@ public class CqlRule {
     return fhirVersion;
   }
 
-  private static VersionedIdentifier getIdFromCqlFile(byte[] cql){
+  static VersionedIdentifier getIdFromCqlFile(byte[] cql){
     VersionedIdentifier libraryIdentifier = new VersionedIdentifier();
     Pattern pattern = Pattern.compile("library (.*?) version '(.*?)'");
     Matcher matcher = pattern.matcher(new String(cql));
@@ -211,5 +378,7 @@ public class CqlRule {
     /// if true, elm is in XML format. If false, ELM is in JSON format.
     public boolean xlmElm;
     public byte[] elm;
+    /// hash of the CQL the ELM was built from
+    public String elmSourceHash;
   }
 }
@@ -0,0 +1,73 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory cache of compiled CQL rules, keyed by topic and FHIR version. The FileStore clears the cache on
+ * reload, which is the only time the CQL sources of a topic change, so a cached rule is returned without
+ * fetching or hashing its sources again.
+ *
+ * Each rule is compiled once. Requests that miss the same rule at the same time wait for the one compile
+ * instead of each compiling it.
+ */
+public class CqlRuleCache {
+
+  static final Logger logger = LoggerFactory.getLogger(CqlRuleCache.class);
+
+  private final ConcurrentMap<String, FutureTask<CompiledCqlRule>> compiledRules = new ConcurrentHashMap<>();
+
+  /**
+   * Get a compiled rule, compiling it if it is not cached.
+   * @param topic the rule topic
+   * @param fhirVersion the FHIR version of the rule
+   * @param compiler loads and compiles the rule, only called on a miss
+   * @return the compiled rule
+   */
+  public CompiledCqlRule get(String topic, String fhirVersion, Supplier<CompiledCqlRule> compiler) {
+    String key = key(topic, fhirVersion);
+    FutureTask<CompiledCqlRule> task = compiledRules.get(key);
+    if (task == null) {
+      FutureTask<CompiledCqlRule> newTask = new FutureTask<>(compiler::get);
+      task = compiledRules.putIfAbsent(key, newTask);
+      if (task == null) {
+        // this thread compiles, the others wait on the task
+        task = newTask;
+        task.run();
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      // do not keep the failure, the next request tries again
+      compiledRules.remove(key, task);
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for " + key + " to compile", e);
+    }
+  }
+
+  public void clear() {
+    logger.info("CqlRuleCache::clear()");
+    compiledRules.clear();
+  }
+
+  public int size() {
+    return compiledRules.size();
+  }
+
+  private static String key(String topic, String fhirVersion) {
+    return topic + "/" + fhirVersion;
+  }
+}
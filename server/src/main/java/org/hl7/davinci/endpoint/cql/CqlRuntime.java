@@ -0,0 +1,164 @@
+package org.hl7.davinci.endpoint.cql;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+import org.fhir.ucum.UcumService;
+import org.hl7.davinci.r4.FhirComponents;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Build the expensive CQL translation and execution objects once so they can be reused by every request.
+ *
+ * The UcumService, FhirContext, model resolver and search parameter resolver are only read once built and
+ * are safe to share between threads.
+ *
+ * A ModelManager is not: it holds a single version of each model and loads the models a translation asks for
+ * into a plain HashMap. So ModelManagers are pooled by FHIR model version, each preloaded with the System and
+ * FHIR models, and a translation borrows one for itself with openTranslation(). The LibraryManager of a
+ * translation holds its library sources and is never shared either.
+ */
+public class CqlRuntime {
+
+  static final Logger logger = LoggerFactory.getLogger(CqlRuntime.class);
+
+  public static final CqlTranslator.Options[] TRANSLATOR_OPTIONS = {
+      CqlTranslator.Options.EnableDateRangeOptimization
+  };
+
+  // the FHIR model version used for CQL that does not name one
+  public static final String DEFAULT_FHIR_MODEL_VERSION = "4.0.0";
+
+  // idle ModelManagers by FHIR model version
+  private static final Map<String, Queue<ModelManager>> idleModelManagers = new ConcurrentHashMap<>();
+
+  private static UcumService ucumService;
+  private static CqlTranslatorOptions translatorOptions;
+  private static FhirContext fhirContext;
+  private static R4FhirModelResolver modelResolver;
+  private static SearchParameterResolver searchParameterResolver;
+
+  static {
+    long startTime = System.nanoTime();
+
+    idleModelManagers(DEFAULT_FHIR_MODEL_VERSION).offer(newModelManager(DEFAULT_FHIR_MODEL_VERSION));
+
+    try {
+      ucumService = new UcumEssenceService(UcumEssenceService.class.getResourceAsStream("/ucum-essence.xml"));
+    } catch (UcumException e) {
+      throw new RuntimeException("Failed to load UCUM essence: " + e.getMessage(), e);
+    }
+
+    // the same options as TRANSLATOR_OPTIONS, for the included libraries resolved through a LibraryManager
+    translatorOptions = new CqlTranslatorOptions(TRANSLATOR_OPTIONS);
+
+    fhirContext = new FhirComponents().getFhirContext();
+    modelResolver = new R4FhirModelResolver();
+    searchParameterResolver = new SearchParameterResolver(fhirContext);
+
+    float seconds = (float) (System.nanoTime() - startTime) / (float) 1000000000;
+    logger.info("CqlRuntime: initialized in " + seconds + " seconds");
+  }
+
+  private CqlRuntime() { }
+
+  /**
+   * Start a translation of some CQL, with a ModelManager preloaded with the FHIR model version the CQL uses.
+   * @param cql the CQL to be translated, only read for its "using FHIR version" statement
+   * @return the translation, close it when done
+   */
+  public static Translation openTranslation(String cql) {
+    String fhirModelVersion = CqlRule.getFhirVersionFromCqlFile(cql.getBytes(StandardCharsets.UTF_8));
+    if (fhirModelVersion.isEmpty()) {
+      fhirModelVersion = DEFAULT_FHIR_MODEL_VERSION;
+    }
+    ModelManager modelManager = idleModelManagers(fhirModelVersion).poll();
+    if (modelManager == null) {
+      logger.info("CqlRuntime::openTranslation(): loading FHIR model " + fhirModelVersion);
+      modelManager = newModelManager(fhirModelVersion);
+    }
+    return new Translation(fhirModelVersion, modelManager);
+  }
+
+  private static Queue<ModelManager> idleModelManagers(String fhirModelVersion) {
+    return idleModelManagers.computeIfAbsent(fhirModelVersion, version -> new ConcurrentLinkedQueue<>());
+  }
+
+  private static ModelManager newModelManager(String fhirModelVersion) {
+    ModelManager modelManager = new ModelManager();
+    modelManager.resolveModel("System");
+    modelManager.resolveModel("FHIR", fhirModelVersion);
+    return modelManager;
+  }
+
+  /**
+   * @return the translator version and options, which change the ELM produced from the same CQL
+   */
+  public static String getTranslatorFingerprint() {
+    return CqlTranslator.class.getPackage().getImplementationVersion() + "|" + Arrays.toString(TRANSLATOR_OPTIONS);
+  }
+
+  public static UcumService getUcumService() {
+    return ucumService;
+  }
+
+  public static CqlTranslatorOptions getTranslatorOptions() {
+    return translatorOptions;
+  }
+
+  public static FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  public static R4FhirModelResolver getModelResolver() {
+    return modelResolver;
+  }
+
+  public static SearchParameterResolver getSearchParameterResolver() {
+    return searchParameterResolver;
+  }
+
+  /**
+   * A ModelManager borrowed by a single translation, and a new LibraryManager backed by it with no source
+   * providers registered. Closing the translation returns the ModelManager to the pool.
+   */
+  public static class Translation implements AutoCloseable {
+    private final String fhirModelVersion;
+    private final ModelManager modelManager;
+    private final LibraryManager libraryManager;
+
+    private Translation(String fhirModelVersion, ModelManager modelManager) {
+      this.fhirModelVersion = fhirModelVersion;
+      this.modelManager = modelManager;
+      this.libraryManager = new LibraryManager(modelManager);
+      this.libraryManager.getLibrarySourceLoader().clearProviders();
+    }
+
+    public ModelManager getModelManager() {
+      return modelManager;
+    }
+
+    public LibraryManager getLibraryManager() {
+      return libraryManager;
+    }
+
+    @Override
+    public void close() {
+      libraryManager.getLibrarySourceLoader().clearProviders();
+      idleModelManagers(fhirModelVersion).offer(modelManager);
+    }
+  }
+}
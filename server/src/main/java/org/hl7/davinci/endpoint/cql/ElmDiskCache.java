@@ -0,0 +1,131 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.cqframework.cql.elm.execution.Library;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk backed second tier for compiled CQL rules, so that a restart does not have to translate the CDS-Library
+ * again. Sits behind the in memory CqlRuleCache.
+ *
+ * Each compiled rule is stored as compact JSON ELM in its own folder, named by a key built from the hash of all of the
+ * CQL sources of the rule (the main library and every library it includes), the translator version and the
+ * translator options. A change to any of these produces a new key, so stale entries are never read.
+ */
+public class ElmDiskCache {
+
+  static final Logger logger = LoggerFactory.getLogger(ElmDiskCache.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // part of the key, so entries written in another format are never read
+  private static final String FORMAT = "json";
+  private static final String MAIN_LIBRARY_FILE = "main." + FORMAT;
+  private static final String DEPENDENCY_PREFIX = "include-";
+
+  private File cacheDir;
+
+  /**
+   * Initializes the cache, creating the cache folder if it doesn't exist.
+   *
+   * @param cachePath Location of the ELM cache folder.
+   */
+  public ElmDiskCache(String cachePath) {
+    this.cacheDir = new File(cachePath);
+    if (cacheDir.exists() && cacheDir.isDirectory()) {
+      logger.info("ElmDiskCache directory already exists at " + this.cacheDir.getAbsolutePath());
+    } else {
+      if (this.cacheDir.mkdirs()) {
+        logger.info("Created ElmDiskCache directory at " + this.cacheDir.getAbsolutePath());
+      } else {
+        logger.error("Failed to create ElmDiskCache directory at " + this.cacheDir.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Build the cache key of a rule.
+   * @param contentHash hash of every CQL source of the rule, see CqlRule.getContentHash()
+   * @param fhirVersion the FHIR version the rule was translated for
+   * @return the key
+   */
+  public static String key(String contentHash, String fhirVersion) {
+    String keySource = contentHash + "|" + fhirVersion + "|" + CqlRuntime.getTranslatorFingerprint() + "|" + FORMAT;
+    return CqlRule.sha256(keySource.getBytes(UTF8));
+  }
+
+  /**
+   * Load a compiled rule.
+   * @param key the key from key()
+   * @param contentHash hash of the CQL sources of the rule, recorded on the compiled rule
+   * @return the compiled rule, or null if it is not in the cache or could not be read
+   */
+  public CompiledCqlRule load(String key, String contentHash) {
+    File entryDir = new File(cacheDir, key);
+    File mainFile = new File(entryDir, MAIN_LIBRARY_FILE);
+    if (!mainFile.isFile()) {
+      return null;
+    }
+
+    try {
+      Library library = ElmLibraryConverter.fromJson(readString(mainFile));
+      Map<String, Library> dependencies = new HashMap<>();
+      for (File file : entryDir.listFiles()) {
+        String name = file.getName();
+        if (name.startsWith(DEPENDENCY_PREFIX)) {
+          String id = FilenameUtils.removeExtension(name.substring(DEPENDENCY_PREFIX.length()));
+          dependencies.put(id, ElmLibraryConverter.fromJson(readString(file)));
+        }
+      }
+      logger.info("ElmDiskCache::load() loaded " + library.getIdentifier().getId() + " from " + entryDir.getName());
+      return new CompiledCqlRule(library, dependencies, contentHash);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("ElmDiskCache::load() failed to read " + entryDir.getName() + ", will translate: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Store the ELM of a compiled rule. The entry is written to a temporary folder and then moved into place
+   * so a partially written entry is never loaded.
+   * @param key the key from key()
+   * @param mainElmJson the JSON ELM of the main library
+   * @param dependencyElmJson the JSON ELM of the included libraries, keyed by library id
+   */
+  public void store(String key, String mainElmJson, Map<String, String> dependencyElmJson) {
+    File entryDir = new File(cacheDir, key);
+    if (entryDir.exists()) {
+      return;
+    }
+
+    File tempDir = new File(cacheDir, key + ".tmp-" + Thread.currentThread().getId());
+    try {
+      FileUtils.deleteDirectory(tempDir);
+      Files.createDirectories(tempDir.toPath());
+      Files.write(new File(tempDir, MAIN_LIBRARY_FILE).toPath(), mainElmJson.getBytes(UTF8));
+      for (Map.Entry<String, String> entry : dependencyElmJson.entrySet()) {
+        Files.write(new File(tempDir, DEPENDENCY_PREFIX + entry.getKey() + "." + FORMAT).toPath(),
+            entry.getValue().getBytes(UTF8));
+      }
+      Files.move(tempDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      logger.info("ElmDiskCache::store() stored " + key);
+    } catch (IOException e) {
+      logger.warn("ElmDiskCache::store() failed to store " + key + ": " + e.getMessage());
+      FileUtils.deleteQuietly(tempDir);
+    }
+  }
+
+  private static String readString(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), UTF8);
+  }
+}
@@ -0,0 +1,81 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.cql_annotations.r1.Annotation;
+import org.hl7.elm.r1.ObjectFactory;
+import org.opencds.cqf.cql.engine.execution.JsonCqlLibraryReader;
+
+/**
+ * Converts a library produced by the translator (org.hl7.elm.r1) into the library the engine executes
+ * (org.cqframework.cql.elm.execution).
+ *
+ * The engine uses its own ELM class hierarchy, so the library has to pass through its serialized form. That form
+ * is compact JSON ELM, the same format the precompiled rules are stored in and read with JsonCqlLibraryReader, and
+ * smaller and quicker to read than ELM XML. The JAXBContext is expensive to build and thread safe, so it is built
+ * once. The library is written without formatting and never touches the disk.
+ */
+public class ElmLibraryConverter {
+
+  // the translator's ELM classes ship a jaxb.properties that makes this an EclipseLink MOXy context, which can
+  // write JSON (the translator's own toJson() relies on the same)
+  private static final String MEDIA_TYPE_PROPERTY = "eclipselink.media-type";
+  private static final String MEDIA_TYPE_JSON = "application/json";
+
+  private static JAXBContext jaxbContext;
+  private static ObjectFactory objectFactory = new ObjectFactory();
+
+  static {
+    try {
+      jaxbContext = JAXBContext.newInstance(org.hl7.elm.r1.Library.class, Annotation.class);
+    } catch (JAXBException e) {
+      throw new RuntimeException("Failed to create ELM JAXBContext: " + e.getMessage(), e);
+    }
+  }
+
+  private ElmLibraryConverter() { }
+
+  /**
+   * Convert a translated ELM library to an executable library.
+   * @param elmLibrary the library from the translator
+   * @return the library for the engine
+   * @throws IOException if the library could not be read by the engine
+   * @throws JAXBException if the library could not be serialized
+   */
+  public static Library toExecutionLibrary(org.hl7.elm.r1.Library elmLibrary) throws IOException, JAXBException {
+    return fromJson(toJson(elmLibrary));
+  }
+
+  /**
+   * Serialize a translated ELM library to JSON ELM, without formatting.
+   * @param elmLibrary the library from the translator
+   * @return the JSON ELM
+   * @throws JAXBException if the library could not be serialized
+   */
+  public static String toJson(org.hl7.elm.r1.Library elmLibrary) throws JAXBException {
+    // Marshallers are not thread safe, create one per conversion from the shared context
+    Marshaller marshaller = jaxbContext.createMarshaller();
+    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+    marshaller.setProperty(MEDIA_TYPE_PROPERTY, MEDIA_TYPE_JSON);
+
+    StringWriter writer = new StringWriter();
+    marshaller.marshal(objectFactory.createLibrary(elmLibrary), writer);
+    return writer.toString();
+  }
+
+  /**
+   * Read JSON ELM into an executable library.
+   * @param elmJson the JSON ELM
+   * @return the library for the engine
+   * @throws IOException if the library could not be read by the engine
+   */
+  public static Library fromJson(String elmJson) throws IOException {
+    return JsonCqlLibraryReader.read(new StringReader(elmJson));
+  }
+}
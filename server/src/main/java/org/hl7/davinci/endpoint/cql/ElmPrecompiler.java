@@ -0,0 +1,170 @@
+package org.hl7.davinci.endpoint.cql;
+
+import org.apache.commons.io.FilenameUtils;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Translates the CQL in a CDS-Library into ELM at build time so that CqlRule can load it without invoking the
+ * translator. This is run by the precompileCdsLibrary gradle task.
+ *
+ * Every "*Rule-x.y.z.cql" file and every library in a "Shared" topic is translated with the same options used at
+ * runtime. The ELM is written below the output folder at the path of the CQL relative to the parent of its
+ * CDS-Library folder (CDS-Library/Topic/R4/files/...), whether that folder is given as a relative or an absolute
+ * path, which is where CommonFileStore looks for it. Each file is written as "<name>.json" along with
+ * "<name>.sha256" holding CqlRule.elmSourceHash() of the CQL, translator version and options it was built with.
+ * The CDS-Library checkout itself is not modified. Files whose hash is unchanged are skipped. Included libraries
+ * are resolved from the CQL found in the same CDS-Library. Exits with a non-zero status if any file fails to
+ * translate.
+ */
+public class ElmPrecompiler {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // library id -> version -> cql
+  private final Map<String, Map<String, byte[]>> libraries = new HashMap<>();
+  // CQL file to translate -> its path below the output folder
+  private final Map<File, String> targets = new LinkedHashMap<>();
+  private final File outputDir;
+
+  private int translated = 0;
+  private int skipped = 0;
+  private final List<String> errors = new ArrayList<>();
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: ElmPrecompiler <output folder> <CDS-Library folder> [<CDS-Library folder> ...]");
+      System.exit(2);
+    }
+
+    ElmPrecompiler precompiler = new ElmPrecompiler(new File(args[0]));
+    for (int i = 1; i < args.length; i++) {
+      precompiler.scan(new File(args[i]));
+    }
+    precompiler.translateAll();
+
+    System.out.println("ElmPrecompiler: translated " + precompiler.translated + ", up to date "
+        + precompiler.skipped + ", failed " + precompiler.errors.size());
+    if (!precompiler.errors.isEmpty()) {
+      for (String error : precompiler.errors) {
+        System.err.println("ElmPrecompiler: " + error);
+      }
+      System.exit(1);
+    }
+  }
+
+  private ElmPrecompiler(File outputDir) {
+    this.outputDir = outputDir;
+  }
+
+  /**
+   * Index all of the CQL found in the "files" folders below the root.
+   */
+  private void scan(File root) throws IOException {
+    if (!root.isDirectory()) {
+      System.out.println("ElmPrecompiler: " + root + " does not exist, skipping");
+      return;
+    }
+
+    Path rootPath = root.getAbsoluteFile().toPath().normalize();
+    List<File> cqlFiles;
+    try (Stream<Path> paths = Files.walk(root.toPath())) {
+      cqlFiles = paths
+          .filter(path -> path.toString().indexOf(File.separator + ".") == -1)
+          .map(Path::toFile)
+          .filter(file -> file.isFile() && file.getParentFile().getName().equalsIgnoreCase("files"))
+          .filter(file -> FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("cql"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+
+    for (File file : cqlFiles) {
+      byte[] cql = Files.readAllBytes(file.toPath());
+      VersionedIdentifier id = CqlRule.getIdFromCqlFile(cql);
+      libraries.computeIfAbsent(id.getId(), k -> new HashMap<>()).put(id.getVersion(), cql);
+
+      if (isRule(file) || isShared(file)) {
+        Path relative = rootPath.relativize(file.getAbsoluteFile().toPath().normalize());
+        targets.put(file, rootPath.getFileName().resolve(relative).toString());
+      }
+    }
+  }
+
+  private static boolean isRule(File file) {
+    return file.getName().matches(".*Rule-[0-9.]+\\.cql");
+  }
+
+  private static boolean isShared(File file) {
+    // <topic>/<fhirVersion>/files/<file>.cql
+    File topic = file.getParentFile().getParentFile().getParentFile();
+    return topic != null && topic.getName().equalsIgnoreCase("Shared");
+  }
+
+  private void translateAll() {
+    for (Map.Entry<File, String> target : targets.entrySet()) {
+      File file = target.getKey();
+      String basePath = FilenameUtils.removeExtension(target.getValue());
+      File elmFile = new File(outputDir, basePath + ".json");
+      File hashFile = new File(outputDir, basePath + "." + CqlRule.ELM_HASH_EXTENSION);
+
+      try {
+        byte[] cql = Files.readAllBytes(file.toPath());
+        String hash = CqlRule.elmSourceHash(cql);
+
+        if (elmFile.exists() && hashFile.exists()
+            && new String(Files.readAllBytes(hashFile.toPath()), UTF8).trim().equalsIgnoreCase(hash)) {
+          skipped++;
+          continue;
+        }
+
+        String cqlText = new String(cql, UTF8);
+        String elm;
+        try (CqlRuntime.Translation translation = CqlRuntime.openTranslation(cqlText)) {
+          LibraryManager libraryManager = translation.getLibraryManager();
+          libraryManager.getLibrarySourceLoader().registerProvider(new IndexedLibrarySourceProvider());
+          elm = CqlExecution.translateToElm(cqlText, translation);
+        }
+
+        Files.createDirectories(elmFile.getParentFile().toPath());
+        Files.write(elmFile.toPath(), elm.getBytes(UTF8));
+        Files.write(hashFile.toPath(), hash.getBytes(UTF8));
+        translated++;
+      } catch (Exception e) {
+        errors.add(file.getPath() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Resolves includes from the libraries found while scanning.
+   */
+  private class IndexedLibrarySourceProvider implements LibrarySourceProvider {
+    @Override
+    public InputStream getLibrarySource(VersionedIdentifier libraryIdentifier) {
+      Map<String, byte[]> versions = libraries.get(libraryIdentifier.getId());
+      if (versions == null) {
+        return null;
+      }
+      byte[] cql = libraryIdentifier.getVersion() == null
+          ? versions.values().iterator().next()
+          : versions.get(libraryIdentifier.getVersion());
+      return cql == null ? null : new ByteArrayInputStream(cql);
+    }
+  }
+}
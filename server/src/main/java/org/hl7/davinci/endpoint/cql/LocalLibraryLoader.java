@@ -1,24 +1,16 @@
 package org.hl7.davinci.endpoint.cql;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
-import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
-import org.hl7.cql_annotations.r1.Annotation;
-import org.hl7.elm.r1.ObjectFactory;
-import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 
 /**
@@ -38,6 +30,9 @@ public class LocalLibraryLoader implements LibraryLoader {
 
   private Map<String, Library> libraries = new HashMap<>();
 
+  // JSON ELM of each library translated by this loader, keyed by library id
+  private Map<String, String> elmJson = new HashMap<>();
+
   private Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
     if (libraryIdentifier == null) {
       throw new IllegalArgumentException("Library identifier is null.");
@@ -67,25 +62,14 @@ public class LocalLibraryLoader implements LibraryLoader {
         .withSystem(libraryIdentifier.getSystem())
         .withVersion(libraryIdentifier.getVersion());
 
-    CqlTranslatorOptions options = new CqlTranslatorOptions();
-    org.cqframework.cql.cql2elm.model.TranslatedLibrary translatedLibrary = libraryManager.resolveLibrary(identifier, options, errors);
-
-    String xml;
-    try {
-      JAXBContext jc = JAXBContext.newInstance(org.hl7.elm.r1.Library.class, Annotation.class);
-      Marshaller marshaller = jc.createMarshaller();
-      marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-
-      StringWriter writer = new StringWriter();
-      marshaller.marshal(new ObjectFactory().createLibrary(translatedLibrary.getLibrary()), writer);
-      xml = writer.getBuffer().toString();
-    } catch (JAXBException e) {
-      throw new RuntimeException(String.format("Errors encountered while loading library %s: %s", libraryIdentifier.getId(), e.getMessage()));
-    }
+    org.cqframework.cql.cql2elm.model.TranslatedLibrary translatedLibrary = libraryManager.resolveLibrary(identifier,
+        CqlRuntime.getTranslatorOptions(), errors);
 
     Library library = null;
     try {
-      library = CqlLibraryReader.read(new StringReader(xml));
+      String json = ElmLibraryConverter.toJson(translatedLibrary.getLibrary());
+      library = ElmLibraryConverter.fromJson(json);
+      elmJson.put(libraryIdentifier.getId(), json);
     } catch (IOException | JAXBException e) {
       throw new RuntimeException(String.format("Errors encountered while loading library %s: %s", libraryIdentifier.getId(), e.getMessage()));
     }
@@ -93,6 +77,14 @@ public class LocalLibraryLoader implements LibraryLoader {
     return library;
   }
 
+  /**
+   * The JSON ELM of every library this loader has translated, so it can be written to the ElmDiskCache.
+   * @return JSON ELM keyed by library id
+   */
+  public Map<String, String> getElmJson() {
+    return elmJson;
+  }
+
   @Override
   public Library load(VersionedIdentifier libraryIdentifier) {
     return resolveLibrary(libraryIdentifier);
@@ -1,10 +1,15 @@
 package org.hl7.davinci.endpoint.cql.r4;
 
-import ca.uhn.fhir.context.FhirContext;
 import org.cqframework.cql.cql2elm.LibraryManager;
-import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.IncludeDef;
 import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.davinci.endpoint.cql.CompiledCqlRule;
+import org.hl7.davinci.endpoint.cql.CompiledLibraryLoader;
 import org.hl7.davinci.endpoint.cql.CqlExecution;
+import org.hl7.davinci.endpoint.cql.CqlRuntime;
+import org.hl7.davinci.endpoint.cql.ElmDiskCache;
+import org.hl7.davinci.endpoint.cql.ElmLibraryConverter;
 import org.hl7.davinci.endpoint.cql.LocalLibraryLoader;
 import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.fhir.r4.model.Resource;
@@ -12,53 +17,153 @@ import org.hl7.fhir.r4.model.Resource;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
-import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
-import org.opencds.cqf.cql.engine.fhir.retrieve.RestFhirRetrieveProvider;
-import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 import java.util.Map;
 
 public class CqlExecutionContextBuilder {
 
+  static final Logger logger = LoggerFactory.getLogger(CqlExecutionContextBuilder.class);
+
   public static String CQL_VERSION = "4.0.0";
 
   public static Context getExecutionContext(CqlRule cqlRule, HashMap<String, Resource> cqlParams, String baseUrl) {
-    ModelManager modelManager = new ModelManager();
-    LibraryManager libraryManager = new LibraryManager(modelManager);
-    libraryManager.getLibrarySourceLoader().clearProviders();
+    return getExecutionContext(compileRule(cqlRule), cqlParams, baseUrl);
+  }
+
+  /**
+   * Build an execution context from a rule that has already been translated. This does not invoke
+   * the translator so it is cheap enough to do on every request.
+   */
+  public static Context getExecutionContext(CompiledCqlRule compiledRule, HashMap<String, Resource> cqlParams, String baseUrl) {
+    return getExecutionContext(compiledRule, cqlParams, baseUrl, PrefetchRetrieveProvider.empty());
+  }
+
+  /**
+   * Build an execution context from a rule that has already been translated, answering retrieves with
+   * the given provider, normally a PrefetchRetrieveProvider over the resources sent with the request.
+   */
+  public static Context getExecutionContext(CompiledCqlRule compiledRule, HashMap<String, Resource> cqlParams, String baseUrl,
+                                            RetrieveProvider retrieveProvider) {
+    Context context = new Context(compiledRule.getLibrary());
+    context.registerLibraryLoader(compiledRule.getLibraryLoader());
+    context.setExpressionCaching(true);
+
+    CompositeDataProvider provider = new CompositeDataProvider(CqlRuntime.getModelResolver(), retrieveProvider);
+    context.registerDataProvider("http://hl7.org/fhir", provider);
+
+    for (Map.Entry<String, org.hl7.fhir.r4.model.Resource> entry : cqlParams.entrySet()) {
+      context.setParameter(null, entry.getKey(), entry.getValue());
+    }
+
+    context.setParameter(null, "base_url", baseUrl);
 
-    Library library = null;
-    LibraryLoader libraryLoader = null;
+    return context;
+  }
 
+  /**
+   * Translate the CQL of a rule, along with all of the libraries it includes, into executable ELM.
+   * @param cqlRule the rule to translate
+   * @return the compiled rule
+   */
+  public static CompiledCqlRule compileRule(CqlRule cqlRule) {
+    return compileRule(cqlRule, null);
+  }
+
+  /**
+   * Translate the CQL of a rule, along with all of the libraries it includes, into executable ELM. ELM shipped
+   * with the rule is used first, then the ELM cache, and only then is the CQL translated.
+   * @param cqlRule the rule to translate
+   * @param elmDiskCache cache of previous translations, may be null
+   * @return the compiled rule
+   */
+  public static CompiledCqlRule compileRule(CqlRule cqlRule, ElmDiskCache elmDiskCache) {
     if (cqlRule.isPrecompiled()) {
-      //todo
-    } else {
+      try {
+        return loadPrecompiledRule(cqlRule);
+      } catch (RuntimeException e) {
+        logger.warn("CqlExecutionContextBuilder::compileRule() failed to load precompiled ELM, translating CQL: "
+            + e.getMessage());
+      }
+    }
+
+    String cacheKey = null;
+    if (elmDiskCache != null) {
+      cacheKey = ElmDiskCache.key(cqlRule.getContentHash(), CQL_VERSION);
+      CompiledCqlRule cachedRule = elmDiskCache.load(cacheKey, cqlRule.getContentHash());
+      if (cachedRule != null) {
+        return cachedRule;
+      }
+    }
+
+    String mainCql = cqlRule.getRawMainCqlLibrary(CQL_VERSION);
+    if (mainCql == null) {
+      throw new RuntimeException("Failed to translate main CQL library");
+    }
+    String elmJson;
+    Library library;
+    Map<String, Library> dependencies = new HashMap<>();
+    LocalLibraryLoader libraryLoader;
+    try (CqlRuntime.Translation translation = CqlRuntime.openTranslation(mainCql)) {
+      LibraryManager libraryManager = translation.getLibraryManager();
       libraryManager.getLibrarySourceLoader().registerProvider(cqlRule.getRawCqlLibrarySourceProvider(CQL_VERSION));
-      libraryLoader = new LocalLibraryLoader(libraryManager);
+
       try {
-        library = CqlExecution.translate(cqlRule.getRawMainCqlLibrary(CQL_VERSION), libraryManager, modelManager);
+        elmJson = ElmLibraryConverter.toJson(CqlExecution.translateToElmLibrary(
+            mainCql, libraryManager, translation.getModelManager()));
+        library = ElmLibraryConverter.fromJson(elmJson);
       } catch (Exception e){
         throw new RuntimeException(e);
       }
+      if (library == null) {
+        throw new RuntimeException("Failed to translate main CQL library");
+      }
+
+      // resolve the included libraries now so they are not translated again for each request
+      libraryLoader = new LocalLibraryLoader(libraryManager);
+      resolveDependencies(library, libraryLoader, dependencies);
     }
 
-    FhirContext fhirContext = FhirContext.forR4();
-    Context context = new Context(library);
-    context.registerLibraryLoader(libraryLoader);
-    context.setExpressionCaching(true);
+    if (elmDiskCache != null) {
+      elmDiskCache.store(cacheKey, elmJson, libraryLoader.getElmJson());
+    }
 
-    R4FhirModelResolver modelResolver = new R4FhirModelResolver();
-    RestFhirRetrieveProvider retrieveProvider = new RestFhirRetrieveProvider(new SearchParameterResolver(fhirContext), fhirContext.newRestfulGenericClient("http://fhirtest.uhn.ca/baseR4"));
-    CompositeDataProvider provider = new CompositeDataProvider(modelResolver, retrieveProvider);
-    context.registerDataProvider("http://hl7.org/fhir", provider);
+    return new CompiledCqlRule(library, dependencies, cqlRule.getContentHash());
+  }
 
-    for (Map.Entry<String, org.hl7.fhir.r4.model.Resource> entry : cqlParams.entrySet()) {
-      context.setParameter(null, entry.getKey(), entry.getValue());
+  /**
+   * Load the ELM shipped with a rule without invoking the translator.
+   */
+  private static CompiledCqlRule loadPrecompiledRule(CqlRule cqlRule) {
+    Library library = cqlRule.getMainElmLibrary(CQL_VERSION);
+    if (library == null) {
+      throw new RuntimeException("main library ELM missing");
     }
 
-    context.setParameter(null, "base_url", baseUrl);
+    // make sure every included library was shipped as ELM too
+    Map<String, Library> dependencies = new HashMap<>();
+    resolveDependencies(library, new CompiledLibraryLoader(cqlRule.getDependencyElmLibraries(CQL_VERSION)), dependencies);
 
-    return context;
+    logger.info("CqlExecutionContextBuilder::loadPrecompiledRule() loaded ELM for " + library.getIdentifier().getId());
+    return new CompiledCqlRule(library, dependencies, cqlRule.getContentHash());
+  }
+
+  private static void resolveDependencies(Library library, LibraryLoader libraryLoader, Map<String, Library> dependencies) {
+    if (library.getIncludes() == null) {
+      return;
+    }
+    for (IncludeDef include : library.getIncludes().getDef()) {
+      if (dependencies.containsKey(include.getPath())) {
+        continue;
+      }
+      Library dependency = libraryLoader.load(new VersionedIdentifier()
+          .withId(include.getPath())
+          .withVersion(include.getVersion()));
+      dependencies.put(include.getPath(), dependency);
+      resolveDependencies(dependency, libraryLoader, dependencies);
+    }
   }
 }
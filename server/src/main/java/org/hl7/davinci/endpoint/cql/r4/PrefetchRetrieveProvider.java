@@ -0,0 +1,287 @@
+package org.hl7.davinci.endpoint.cql.r4;
+
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import org.apache.http.client.HttpClient;
+import org.hl7.davinci.endpoint.cql.CqlRuntime;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.cql.engine.fhir.retrieve.RestFhirRetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers CQL retrieves from the resources sent with the hook request (the prefetch bundles and the draft
+ * orders) instead of a remote FHIR server.
+ *
+ * The resources are indexed by resource type up front, and by code the first time a type is retrieved by a
+ * given code path. Date ranges are checked against the candidates that are left. If no resources of the
+ * retrieved type were sent with the request, the retrieve can optionally be sent to the request's own
+ * fhirServer with its bearer token, through the shared pooled HttpClient (see OutboundHttpClient).
+ *
+ * There is no terminology service to expand value sets with, so a retrieve filtered by a value set always goes to
+ * the fhirServer, even for a type that was sent with the request. Without a fhirServer it finds nothing, and a
+ * warning is logged.
+ *
+ * One provider is built per request and shared by all of the rules evaluated for it, so it is thread safe.
+ */
+public class PrefetchRetrieveProvider implements RetrieveProvider {
+
+  static final Logger logger = LoggerFactory.getLogger(PrefetchRetrieveProvider.class);
+
+  // resource type -> resources
+  private final Map<String, List<IBaseResource>> resourcesByType;
+
+  // resource type + code path -> code -> resources
+  private final Map<String, Map<String, List<IBaseResource>>> resourcesByCode = new ConcurrentHashMap<>();
+
+  private final RetrieveProvider fallback;
+
+  /**
+   * A provider with no resources that never leaves the server.
+   */
+  public static PrefetchRetrieveProvider empty() {
+    return new PrefetchRetrieveProvider(Collections.emptyList(), null);
+  }
+
+  /**
+   * @param bundles the bundles sent with the request, null entries are ignored
+   * @param fhirServer the fhirServer of the request, null to never leave the prefetch
+   * @param accessToken bearer token for the fhirServer, may be null
+   * @param httpClient the client the fhirServer is queried with, only used when there is a fhirServer
+   */
+  public PrefetchRetrieveProvider(List<Bundle> bundles, String fhirServer, String accessToken,
+                                  HttpClient httpClient) {
+    this(bundles, fhirServer == null ? null : fhirServerRetrieveProvider(fhirServer, accessToken, httpClient));
+  }
+
+  /**
+   * @param bundles the bundles sent with the request, null entries are ignored
+   * @param fallback where the retrieves that can not be answered from the bundles go, null for nowhere
+   */
+  PrefetchRetrieveProvider(List<Bundle> bundles, RetrieveProvider fallback) {
+    Map<String, IBaseResource> resources = new LinkedHashMap<>();
+    for (Bundle bundle : bundles) {
+      if (bundle == null) {
+        continue;
+      }
+      for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+        Resource resource = entry.getResource();
+        if (resource != null) {
+          // the same resource is often in several bundles, keep the first copy
+          String id = resource.getIdElement().getIdPart();
+          String key = resource.fhirType() + "/" + (id != null ? id : System.identityHashCode(resource));
+          resources.putIfAbsent(key, resource);
+        }
+      }
+    }
+
+    Map<String, List<IBaseResource>> byType = new HashMap<>();
+    for (IBaseResource resource : resources.values()) {
+      byType.computeIfAbsent(resource.fhirType(), k -> new ArrayList<>()).add(resource);
+    }
+    this.resourcesByType = byType;
+    this.fallback = fallback;
+  }
+
+  private static RetrieveProvider fhirServerRetrieveProvider(String fhirServer, String accessToken,
+                                                             HttpClient httpClient) {
+    ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(CqlRuntime.getFhirContext());
+    clientFactory.setHttpClient(httpClient);
+    // a factory lives for a single request, do not fetch the server's metadata every time
+    clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    IGenericClient client = clientFactory.newGenericClient(fhirServer);
+    if (accessToken != null) {
+      client.registerInterceptor(new BearerTokenAuthInterceptor(accessToken));
+    }
+    return new RestFhirRetrieveProvider(CqlRuntime.getSearchParameterResolver(), client);
+  }
+
+  @Override
+  public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                                   String templateId, String codePath, Iterable<Code> codes, String valueSet,
+                                   String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+    List<IBaseResource> candidates = resourcesByType.get(dataType);
+    if (candidates == null) {
+      if (fallback != null) {
+        logger.info("PrefetchRetrieveProvider::retrieve() no " + dataType + " in prefetch, querying fhirServer");
+        return fallback.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+            datePath, dateLowPath, dateHighPath, dateRange);
+      }
+      return Collections.emptyList();
+    }
+
+    if (codePath != null && codes != null) {
+      candidates = filterByCodes(dataType, codePath, codes);
+    } else if (codePath != null && valueSet != null) {
+      // there is no terminology service to expand the value set with, the fhirServer can filter by it instead
+      if (fallback != null) {
+        logger.info("PrefetchRetrieveProvider::retrieve() " + dataType + " by value set " + valueSet
+            + ", querying fhirServer");
+        return fallback.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+            datePath, dateLowPath, dateHighPath, dateRange);
+      }
+      logger.warn("PrefetchRetrieveProvider::retrieve() cannot filter " + dataType + " by value set " + valueSet
+          + " without a fhirServer, no resources returned");
+      return Collections.emptyList();
+    }
+
+    List<Object> results = new ArrayList<>();
+    for (IBaseResource resource : candidates) {
+      if (inContext(resource, contextPath, contextValue)
+          && inDateRange(resource, datePath, dateLowPath, dateHighPath, dateRange)) {
+        results.add(resource);
+      }
+    }
+    return results;
+  }
+
+  private List<IBaseResource> filterByCodes(String dataType, String codePath, Iterable<Code> codes) {
+    Map<String, List<IBaseResource>> index = resourcesByCode.computeIfAbsent(dataType + "." + codePath,
+        k -> indexByCode(resourcesByType.get(dataType), codePath));
+
+    // a resource may match several of the codes, keep each one once and in order
+    Map<IBaseResource, Boolean> matches = new LinkedHashMap<>();
+    for (Code code : codes) {
+      for (IBaseResource resource : index.getOrDefault(code.getCode(), Collections.emptyList())) {
+        if (hasCode(resolve(resource, codePath), code)) {
+          matches.put(resource, true);
+        }
+      }
+    }
+    return new ArrayList<>(matches.keySet());
+  }
+
+  private static Map<String, List<IBaseResource>> indexByCode(List<IBaseResource> resources, String codePath) {
+    Map<String, List<IBaseResource>> index = new HashMap<>();
+    for (IBaseResource resource : resources) {
+      for (Coding coding : toCodings(resolve(resource, codePath))) {
+        List<IBaseResource> indexed = index.computeIfAbsent(coding.getCode(), k -> new ArrayList<>());
+        if (!indexed.contains(resource)) {
+          indexed.add(resource);
+        }
+      }
+    }
+    return index;
+  }
+
+  private static boolean hasCode(Object value, Code code) {
+    for (Coding coding : toCodings(value)) {
+      if (coding.getCode() != null && coding.getCode().equals(code.getCode())
+          && (code.getSystem() == null || coding.getSystem() == null || code.getSystem().equals(coding.getSystem()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<Coding> toCodings(Object value) {
+    List<Coding> codings = new ArrayList<>();
+    if (value instanceof Iterable) {
+      for (Object item : (Iterable<?>) value) {
+        codings.addAll(toCodings(item));
+      }
+    } else if (value instanceof CodeableConcept) {
+      codings.addAll(((CodeableConcept) value).getCoding());
+    } else if (value instanceof Coding) {
+      codings.add((Coding) value);
+    } else if (value instanceof PrimitiveType) {
+      codings.add(new Coding().setCode(((PrimitiveType<?>) value).getValueAsString()));
+    }
+    return codings;
+  }
+
+  private static boolean inContext(IBaseResource resource, String contextPath, Object contextValue) {
+    if (contextPath == null || contextValue == null) {
+      return true;
+    }
+    Object value = resolve(resource, contextPath);
+    String id = null;
+    if (value instanceof Reference) {
+      id = ((Reference) value).getReferenceElement().getIdPart();
+    } else if (value instanceof IdType) {
+      id = ((IdType) value).getIdPart();
+    } else if (value instanceof PrimitiveType) {
+      id = new IdType(((PrimitiveType<?>) value).getValueAsString()).getIdPart();
+    } else if (value instanceof String) {
+      id = new IdType((String) value).getIdPart();
+    }
+    // keep resources whose context can not be determined, everything in the prefetch is for the same patient
+    return id == null || id.equals(new IdType(contextValue.toString()).getIdPart());
+  }
+
+  private static boolean inDateRange(IBaseResource resource, String datePath, String dateLowPath,
+                                     String dateHighPath, Interval dateRange) {
+    if (dateRange == null) {
+      return true;
+    }
+    java.util.Date low = null;
+    java.util.Date high = null;
+    if (datePath != null) {
+      Object value = resolve(resource, datePath);
+      if (value instanceof Period) {
+        low = ((Period) value).getStart();
+        high = ((Period) value).getEnd();
+      } else if (value instanceof BaseDateTimeType) {
+        low = ((BaseDateTimeType) value).getValue();
+        high = low;
+      } else {
+        return true;
+      }
+    } else if (dateLowPath != null || dateHighPath != null) {
+      low = toDate(dateLowPath == null ? null : resolve(resource, dateLowPath));
+      high = toDate(dateHighPath == null ? null : resolve(resource, dateHighPath));
+    } else {
+      return true;
+    }
+
+    java.util.Date rangeLow = toDate(dateRange.getStart());
+    java.util.Date rangeHigh = toDate(dateRange.getEnd());
+    // open ended on either side overlaps everything on that side
+    boolean startsBeforeRangeEnds = low == null || rangeHigh == null || !low.after(rangeHigh);
+    boolean endsAfterRangeStarts = high == null || rangeLow == null || !high.before(rangeLow);
+    return startsBeforeRangeEnds && endsAfterRangeStarts;
+  }
+
+  private static java.util.Date toDate(Object value) {
+    if (value instanceof DateTime) {
+      return ((DateTime) value).toJavaDate();
+    } else if (value instanceof Date) {
+      return ((Date) value).toJavaDate();
+    } else if (value instanceof BaseDateTimeType) {
+      return ((BaseDateTimeType) value).getValue();
+    }
+    return null;
+  }
+
+  private static Object resolve(IBaseResource resource, String path) {
+    try {
+      return CqlRuntime.getModelResolver().resolvePath(resource, path);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.hl7.davinci.endpoint.database;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import java.util.Objects;
+
+/**
+ * An inclusive range of codes, such as the HCPCS codes E0424 to E0486. A code is in the range if it is the
+ * same length as the bounds and sorts between them, which suits fixed width code systems like HCPCS and CPT.
+ */
+@Embeddable
+public class CodeRange {
+
+  @JsonProperty("low")
+  @Column(name = "low_code", nullable = false)
+  private String low;
+
+  @JsonProperty("high")
+  @Column(name = "high_code", nullable = false)
+  private String high;
+
+  public CodeRange() { }
+
+  public CodeRange(String low, String high) {
+    this.low = low;
+    this.high = high;
+  }
+
+  public String getLow() { return low; }
+  public void setLow(String low) { this.low = low; }
+
+  public String getHigh() { return high; }
+  public void setHigh(String high) { this.high = high; }
+
+  /**
+   * @return true if the bounds are set, the same length and in order
+   */
+  public boolean isValid() {
+    return low != null && high != null && low.length() == high.length() && low.compareTo(high) <= 0;
+  }
+
+  public boolean contains(String code) {
+    return code != null && code.length() == low.length() && low.compareTo(code) <= 0 && code.compareTo(high) <= 0;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (obj == null || getClass() != obj.getClass()) return false;
+    CodeRange range = (CodeRange) obj;
+    return Objects.equals(low, range.low) && Objects.equals(high, range.high);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(low, high);
+  }
+
+  @Override
+  public String toString() {
+    return low + ".." + high;
+  }
+}
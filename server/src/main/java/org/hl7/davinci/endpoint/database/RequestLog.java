@@ -3,11 +3,16 @@ package org.hl7.davinci.endpoint.database;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -17,21 +22,18 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Lob;
+import javax.persistence.Transient;
 
-import com.jayway.jsonpath.Configuration;
-import com.jayway.jsonpath.JsonPath;
-// import com.jayway.jsonpath.Option;
-// import com.jayway.jsonpath.spi.json.JacksonJsonProvider;
-import com.jayway.jsonpath.Option;
-import org.joda.time.DateTime;
-import org.joda.time.Period;
-
+import org.cdshooks.CdsRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-// request_body: BLOB
+// request_body: BLOB (gzip)
+// request_body_size: integer
 // timestamp: timestamp
 // patient_age: integer
 // patient_gender: string
@@ -47,15 +49,31 @@ import org.slf4j.LoggerFactory;
 public class RequestLog {
   static final Logger logger = LoggerFactory.getLogger(RequestLog.class);
 
+  // ObjectWriter is immutable and thread safe, so one is shared by every request
+  private static final ObjectWriter REQUEST_WRITER = new ObjectMapper().writer();
+
+  // stored when the request body is not kept, the column is not nullable
+  private static final byte[] EMPTY_BODY = "{}".getBytes();
+
+  // stored when the request could not be written to JSON
+  private static final byte[] ERROR_BODY = "error".getBytes();
+
   @Id
   @GeneratedValue(strategy = GenerationType.IDENTITY)
   @Column(name = "id", updatable = false, nullable = false)
   private long id;
 
+  // gzip compressed, filled in from body when the log is saved
   @Lob
   @Column(name = "request_body", nullable = false)
   private byte[] requestBody;
 
+  @Column(name = "request_body_size")
+  private int requestBodySize;
+
+  @Transient
+  private RequestBody body;
+
   @Column(name = "timestamp", nullable = false)
   private long timestamp;
 
@@ -110,10 +128,15 @@ public class RequestLog {
   }
 
   public RequestLog(Object request, long timestamp, String fhirVersion,
-                    String hookType, RequestService requestService, int sections) {
+                    String hookType, RequestService requestService, int sections, boolean captureBody) {
     // parse and assign to RequestLog all the relevant information from the request
     // object
-    String requestStr = this.setFromRequest(request);
+    this.setFromRequest(request);
+    if (captureBody) {
+      this.setRequestBodyFromRequest(request);
+    } else {
+      setRequestBody(EMPTY_BODY);
+    }
 
     // override what is in the request with what is passed in
     setHookType(hookType); // note: this may be different than what is specified in request
@@ -133,79 +156,30 @@ public class RequestLog {
   /**
    * sets members of this object using the data in the request object
    * @param request
-   * @return the JSON string version of the request object
    */
-  public String setFromRequest( Object request ) {
-    String requestStr;
-    try {
-      ObjectMapper mapper = new ObjectMapper();
-      ObjectWriter w = mapper.writer();
-      requestStr = w.writeValueAsString(request);
-      Object reqDoc = Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS).jsonProvider().parse(requestStr);
-      String jStr;
-      List<String> jList;
-
-      // set data from main section of request
-
-      jStr = JsonPath.read(reqDoc, "$.hook");
-      this.setHookType( jStr );  // note that this is usually overridden in the constructor
-
-
-      // jList = JsonPath.read(reqDoc, "$..code");  // easiest, but least robust---works only if document contains the code you want first
-      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='DeviceRequest')].codeCodeableConcept.coding[*].code");
-      if (jList.isEmpty()) {
-        // Assume ServiceRequest if the coding information could not be found in a DeviceRequest
-        jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='ServiceRequest')].code.coding[*].code");
-      }
-      if (!jList.isEmpty()) {
-        this.setCode( jList.get(0) );
-      }
-
-      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='DeviceRequest')].codeCodeableConcept.coding[*].system");
-      if (jList.isEmpty()) {
-        // Assume ServiceRequest if the coding information could not be found in a DeviceRequest
-        jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='ServiceRequest')].code.coding[*].system");
-      }
-      if (!jList.isEmpty()) {
-        this.setCodeSystem( jList.get(0) );
-      }
-
-      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Location')].address.state");
-      if (jList.isEmpty()) {
-        // Set a dummy provider state if it could not be found
-        this.setProviderAddressState("N/A");
-      } else {
-        this.setProviderAddressState(jList.get(0));
-      }
-
-      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Patient')].address[*].state");
-      if (jList.isEmpty()) {
-        this.setPatientAddressState("N/A");
-      } else {
-        this.setPatientAddressState(jList.get(0));
-      }
-
-      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Patient')].gender");
-      if (jList.isEmpty()) {
-        this.setPatientGender("N/A");
-      } else {
-        this.setPatientGender(jList.get(0));
-      }
-
-      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Patient')].birthDate");
-      if (jList.isEmpty()) {
-        this.setPatientAge(-100);
-      } else {
-        Period period = new Period(new DateTime(jList.get(0)), new DateTime());
-        this.setPatientAge(period.getYears());
-      }
+  public void setFromRequest( Object request ) {
+    if (request instanceof CdsRequest) {
+      RequestLogExtractor.extract((CdsRequest<?, ?>) request, this);
+    } else {
+      logger.warn("RequestLog::setFromRequest(): unsupported request type "
+          + (request == null ? null : request.getClass().getName()));
+    }
+  }
 
+  /**
+   * stores the JSON version of the request object as the request body. The JSON is written now, on the request
+   * thread, so it is the request as it was received; it is only compressed when the log is first saved.
+   * @param request
+   */
+  public void setRequestBodyFromRequest( Object request ) {
+    byte[] json;
+    try {
+      json = REQUEST_WRITER.writeValueAsBytes(request);
     } catch (Exception e) {
       logger.error("failed to write request json: " + e.getMessage());
-      requestStr = "error";
+      json = ERROR_BODY;
     }
-    setRequestBody(requestStr.getBytes());
-    return requestStr;
+    setRequestBody(json);
   }
 
   public void advanceTimeline(RequestService requestService) {
@@ -220,9 +194,7 @@ public class RequestLog {
     String newStr;
     try {
 
-      ObjectMapper mapper = new ObjectMapper();
-      ObjectWriter w = mapper.writer();
-      newStr = w.writeValueAsString(cards);
+      newStr = REQUEST_WRITER.writeValueAsString(cards);
 
     }
 
@@ -250,6 +222,37 @@ public class RequestLog {
     }
 
   }
+
+  /**
+   * Copy the current state of the log so it can be written while the request carries on updating this one.
+   * The request body is shared, so it is compressed once, by whichever copy is saved first. The arrays that are
+   * updated in place are copied.
+   * @return the copy
+   */
+  public RequestLog snapshot() {
+    RequestLog copy = new RequestLog();
+    copy.body = this.body;
+    copy.requestBody = this.requestBody;
+    copy.requestBodySize = this.requestBodySize;
+    copy.timestamp = this.timestamp;
+    copy.id = this.id;
+    copy.cardList = this.cardList;
+    copy.patientAge = this.patientAge;
+    copy.patientGender = this.patientGender;
+    copy.patientAddressState = this.patientAddressState;
+    copy.providerAddressState = this.providerAddressState;
+    copy.code = this.code;
+    copy.codeSystem = this.codeSystem;
+    copy.hookType = this.hookType;
+    copy.fhirVersion = this.fhirVersion;
+    copy.results = this.results;
+    copy.timeline = this.timeline == null ? null : this.timeline.clone();
+    copy.topics = this.topics == null ? null : this.topics.clone();
+    copy.timelineCounter = this.timelineCounter;
+    copy.topicCounter = this.topicCounter;
+    return copy;
+  }
+
   /**
    * Returns the name of the fields for dynamic generation of html files.
    *
@@ -272,12 +275,104 @@ public class RequestLog {
     this.id = id;
   }
 
+  /**
+   * @return the uncompressed request body
+   */
   public byte[] getRequestBody() {
-    return requestBody;
+    if (body != null) {
+      return body.getUncompressed();
+    }
+    return decompress(requestBody);
   }
 
+  /**
+   * Set the uncompressed request body, it is compressed when the log is saved.
+   * @param requestBody the request body
+   */
   public void setRequestBody(byte[] requestBody) {
-    this.requestBody = requestBody;
+    this.body = new RequestBody(requestBody);
+    this.requestBody = null;
+  }
+
+  /**
+   * Drop the request body and keep only the metadata of the request.
+   */
+  public void clearRequestBody() {
+    setRequestBody(EMPTY_BODY);
+  }
+
+  /**
+   * @return the size of the stored, compressed, request body
+   */
+  public int getRequestBodySize() {
+    return requestBodySize;
+  }
+
+  @PrePersist
+  @PreUpdate
+  void compressRequestBody() {
+    if (requestBody == null) {
+      requestBody = (body == null ? new RequestBody(EMPTY_BODY) : body).getCompressed();
+      requestBodySize = requestBody.length;
+    }
+  }
+
+  /**
+   * The request body, shared by a log and its snapshots. It is compressed the first time one of the copies is
+   * saved, on the writer thread when the logs are written behind, and only once.
+   */
+  static class RequestBody {
+    private final byte[] uncompressed;
+    private byte[] compressed;
+
+    RequestBody(byte[] uncompressed) {
+      this.uncompressed = uncompressed;
+    }
+
+    byte[] getUncompressed() {
+      return uncompressed;
+    }
+
+    synchronized byte[] getCompressed() {
+      if (compressed == null) {
+        compressed = compress(uncompressed);
+      }
+      return compressed;
+    }
+  }
+
+  private static byte[] compress(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(body);
+    } catch (IOException e) {
+      // not expected writing to memory
+      logger.error("RequestLog::compress(): failed to compress request body: " + e.getMessage());
+      return body;
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] body) {
+    if (body == null) {
+      return null;
+    }
+    // a body that failed to compress was stored as is
+    if (body.length < 2 || (body[0] & 0xff) != 0x1f || (body[1] & 0xff) != 0x8b) {
+      return body;
+    }
+    try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = gzip.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      logger.error("RequestLog::decompress(): failed to decompress request body: " + e.getMessage());
+      return body;
+    }
   }
 
   public long getTimestamp() {
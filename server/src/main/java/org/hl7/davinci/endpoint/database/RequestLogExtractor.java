@@ -0,0 +1,156 @@
+package org.hl7.davinci.endpoint.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cdshooks.CdsRequest;
+import org.hl7.davinci.SharedUtilities;
+import org.hl7.davinci.r4.crdhook.CrdPrefetch;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DeviceRequest;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+
+/**
+ * Reads the fields of a RequestLog straight from the typed request: the hook, the first requested code and its
+ * system, the patient gender, age and state, and the provider state. The resources are looked for in the draft
+ * orders of the context and then in each of the prefetch bundles, the same order they appear in the request json.
+ */
+public class RequestLogExtractor {
+
+  private RequestLogExtractor() { }
+
+  /**
+   * Set the fields of the log from the request. Fields that can not be found get the same placeholders the log
+   * has always used.
+   * @param request the hook request
+   * @param requestLog the log to fill in
+   */
+  public static void extract(CdsRequest<?, ?> request, RequestLog requestLog) {
+    if (request.getHook() != null) {
+      requestLog.setHookType(request.getHook().toString());
+    }
+
+    List<Resource> resources = getResources(request);
+
+    // DeviceRequest codes first, then ServiceRequest codes
+    Coding coding = null;
+    for (Resource resource : resources) {
+      if (resource instanceof DeviceRequest && ((DeviceRequest) resource).hasCodeCodeableConcept()) {
+        coding = firstCoding(((DeviceRequest) resource).getCodeCodeableConcept());
+      }
+      if (coding != null) {
+        break;
+      }
+    }
+    if (coding == null) {
+      for (Resource resource : resources) {
+        if (resource instanceof ServiceRequest && ((ServiceRequest) resource).hasCode()) {
+          coding = firstCoding(((ServiceRequest) resource).getCode());
+        }
+        if (coding != null) {
+          break;
+        }
+      }
+    }
+    if (coding != null) {
+      requestLog.setCode(coding.getCode());
+      requestLog.setCodeSystem(coding.getSystem());
+    }
+
+    requestLog.setProviderAddressState("N/A");
+    for (Resource resource : resources) {
+      if (resource instanceof Location && ((Location) resource).getAddress().hasState()) {
+        requestLog.setProviderAddressState(((Location) resource).getAddress().getState());
+        break;
+      }
+    }
+
+    // each patient field is taken from the first patient that has it
+    List<Patient> patients = new ArrayList<>();
+    for (Resource resource : resources) {
+      if (resource instanceof Patient) {
+        patients.add((Patient) resource);
+      }
+    }
+    requestLog.setPatientAddressState("N/A");
+    for (Patient patient : patients) {
+      String state = getState(patient);
+      if (state != null) {
+        requestLog.setPatientAddressState(state);
+        break;
+      }
+    }
+    requestLog.setPatientGender("N/A");
+    for (Patient patient : patients) {
+      if (patient.hasGender()) {
+        requestLog.setPatientGender(patient.getGender().toCode());
+        break;
+      }
+    }
+    requestLog.setPatientAge(-100);
+    for (Patient patient : patients) {
+      if (patient.hasBirthDate()) {
+        requestLog.setPatientAge(SharedUtilities.calculateAge(patient.getBirthDate()));
+        break;
+      }
+    }
+  }
+
+  private static List<Resource> getResources(CdsRequest<?, ?> request) {
+    List<Resource> resources = new ArrayList<>();
+    if (request.getContext() != null) {
+      addResources(resources, request.getContext().getDraftOrders());
+    }
+    if (request.getPrefetch() instanceof CrdPrefetch) {
+      CrdPrefetch prefetch = (CrdPrefetch) request.getPrefetch();
+      addResources(resources, prefetch.getDeviceRequestBundle());
+      addResources(resources, prefetch.getMedicationRequestBundle());
+      addResources(resources, prefetch.getNutritionOrderBundle());
+      addResources(resources, prefetch.getServiceRequestBundle());
+      addResources(resources, prefetch.getSupplyRequestBundle());
+      addResources(resources, prefetch.getAppointmentBundle());
+      addResources(resources, prefetch.getEncounterBundle());
+      addResources(resources, prefetch.getMedicationDispenseBundle());
+      addResources(resources, prefetch.getMedicationStatementBundle());
+    }
+    return resources;
+  }
+
+  private static void addResources(List<Resource> resources, Bundle bundle) {
+    if (bundle == null) {
+      return;
+    }
+    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+      if (entry.hasResource()) {
+        resources.add(entry.getResource());
+      }
+    }
+  }
+
+  private static Coding firstCoding(CodeableConcept concept) {
+    for (Coding coding : concept.getCoding()) {
+      if (coding.hasCode()) {
+        return coding;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the state of the first address with a state, whatever its use
+   */
+  private static String getState(Patient patient) {
+    for (Address address : patient.getAddress()) {
+      if (address.hasState()) {
+        return address.getState();
+      }
+    }
+    return null;
+  }
+}
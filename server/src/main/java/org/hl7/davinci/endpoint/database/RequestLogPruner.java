@@ -0,0 +1,96 @@
+package org.hl7.davinci.endpoint.database;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the request_log table bounded. Every requestLogPruneIntervalMs it deletes the logs older than
+ * requestLogRetentionMinutes, and then the oldest logs beyond requestLogMaxRows rows or requestLogMaxBodyBytes of
+ * stored (compressed) request bodies. A limit of 0 turns that limit off.
+ */
+@Component
+public class RequestLogPruner {
+
+  static final Logger logger = LoggerFactory.getLogger(RequestLogPruner.class);
+
+  @Autowired
+  private YamlConfig myConfig;
+
+  @Autowired
+  private RequestRepository requestRepository;
+
+  private ScheduledExecutorService scheduler;
+
+  @PostConstruct
+  public void start() {
+    long interval = myConfig.getRequestLogPruneIntervalMs();
+    if (interval <= 0) {
+      logger.info("RequestLogPruner: request logs are not pruned");
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "request-log-pruner");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::prune, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Delete the logs that are too old or over the row and size limits.
+   * @return the number of logs deleted
+   */
+  public int prune() {
+    int deleted = 0;
+    try {
+      long retentionMinutes = myConfig.getRequestLogRetentionMinutes();
+      if (retentionMinutes > 0) {
+        deleted += requestRepository.deleteOlderThan(
+            System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(retentionMinutes));
+      }
+
+      int maxRows = myConfig.getRequestLogMaxRows();
+      long maxBodyBytes = myConfig.getRequestLogMaxBodyBytes();
+      if (maxRows > 0 || maxBodyBytes > 0) {
+        // only the newest maxRows + 1 rows are needed to find where to cut
+        Pageable newest = maxRows > 0 ? PageRequest.of(0, maxRows + 1) : Pageable.unpaged();
+        List<Object[]> rows = requestRepository.findIdsAndBodySizes(newest);
+        long bodyBytes = 0;
+        for (int i = 0; i < rows.size(); i++) {
+          Number size = (Number) rows.get(i)[1];
+          bodyBytes += size == null ? 0 : size.longValue();
+          if ((maxRows > 0 && i >= maxRows) || (maxBodyBytes > 0 && bodyBytes > maxBodyBytes)) {
+            // this row and every older one goes
+            deleted += requestRepository.deleteUpToId(((Number) rows.get(i)[0]).longValue());
+            break;
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("RequestLogPruner::prune() failed to prune request logs: " + e.getMessage());
+    }
+    if (deleted > 0) {
+      logger.info("RequestLogPruner::prune() deleted " + deleted + " request logs");
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,182 @@
+package org.hl7.davinci.endpoint.database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes request logs to the database in the background. Each create or edit of a RequestLog queues a snapshot
+ * of it, and a single writer thread drains the queue, keeps only the latest snapshot of each log, and saves them
+ * in one saveAll transaction per batch. The request body is compressed by the writer thread, not the request.
+ *
+ * The queue is bounded by requestLogQueueSize. When it is full the update is dropped rather than making the
+ * request wait, a later update of the same log still writes its whole state. The queue size and the written,
+ * dropped and failed counts are published as crd.requestlog.* metrics.
+ */
+@Component
+public class RequestLogWriter {
+
+  static final Logger logger = LoggerFactory.getLogger(RequestLogWriter.class);
+
+  private static final long POLL_MS = 1000;
+
+  @Autowired
+  private YamlConfig myConfig;
+
+  @Autowired
+  private RequestRepository requestRepository;
+
+  @Autowired(required = false)
+  private MeterRegistry meterRegistry;
+
+  private BlockingQueue<Update> queue;
+
+  // the id each log was inserted with, only used by the writer thread
+  private final Map<RequestLog, Long> ids = new WeakHashMap<>();
+
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  private Thread writer;
+  private volatile boolean running = false;
+
+  private static class Update {
+    final RequestLog log;
+    final RequestLog snapshot;
+
+    Update(RequestLog log) {
+      this.log = log;
+      this.snapshot = log.snapshot();
+    }
+  }
+
+  @PostConstruct
+  public void start() {
+    queue = new ArrayBlockingQueue<>(Math.max(myConfig.getRequestLogQueueSize(), 1));
+    if (meterRegistry != null) {
+      Gauge.builder("crd.requestlog.queue.size", queue, BlockingQueue::size).register(meterRegistry);
+      FunctionCounter.builder("crd.requestlog.written", written, AtomicLong::get).register(meterRegistry);
+      FunctionCounter.builder("crd.requestlog.dropped", dropped, AtomicLong::get).register(meterRegistry);
+      FunctionCounter.builder("crd.requestlog.failed", failed, AtomicLong::get).register(meterRegistry);
+    }
+
+    running = true;
+    writer = new Thread(this::run, "request-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    logger.info("RequestLogWriter: writing request logs in the background");
+  }
+
+  @PreDestroy
+  public void stop() {
+    running = false;
+    writer.interrupt();
+    try {
+      writer.join(POLL_MS * 5);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // write whatever is left before the database goes away
+    List<Update> updates = new ArrayList<>();
+    queue.drainTo(updates);
+    write(updates);
+  }
+
+  /**
+   * Queue the current state of the log to be written.
+   * @param log the log
+   * @return false if the queue is full and the update was dropped
+   */
+  public boolean submit(RequestLog log) {
+    if (queue.offer(new Update(log))) {
+      return true;
+    }
+    if (dropped.incrementAndGet() % 1000 == 1) {
+      logger.warn("RequestLogWriter::submit() queue full, " + dropped.get() + " updates dropped so far");
+    }
+    return false;
+  }
+
+  public int getQueueSize() { return queue.size(); }
+
+  public long getWrittenCount() { return written.get(); }
+
+  public long getDroppedCount() { return dropped.get(); }
+
+  public long getFailedCount() { return failed.get(); }
+
+  private void run() {
+    int batchSize = Math.max(myConfig.getRequestLogBatchSize(), 1);
+    while (running) {
+      List<Update> updates = new ArrayList<>(batchSize);
+      try {
+        Update first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        updates.add(first);
+        queue.drainTo(updates, batchSize - 1);
+      } catch (InterruptedException e) {
+        // stopping, stop() writes what is left
+        return;
+      }
+      write(updates);
+    }
+  }
+
+  private synchronized void write(List<Update> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+
+    // keep the latest snapshot of each log, RequestLog uses identity for equals
+    Map<RequestLog, RequestLog> latest = new LinkedHashMap<>();
+    for (Update update : updates) {
+      latest.put(update.log, update.snapshot);
+    }
+
+    List<RequestLog> logs = new ArrayList<>(latest.keySet());
+    List<RequestLog> snapshots = new ArrayList<>(latest.size());
+    for (RequestLog log : logs) {
+      RequestLog snapshot = latest.get(log);
+      Long id = ids.get(log);
+      if (id != null) {
+        // update the row the first snapshot was inserted as
+        snapshot.setId(id);
+      }
+      // compress here, an update merges the snapshot into another instance that does not carry the body
+      snapshot.compressRequestBody();
+      snapshots.add(snapshot);
+    }
+
+    try {
+      List<RequestLog> saved = new ArrayList<>();
+      requestRepository.saveAll(snapshots).forEach(saved::add);
+      for (int i = 0; i < logs.size(); i++) {
+        ids.put(logs.get(i), saved.get(i).getId());
+      }
+      written.addAndGet(saved.size());
+    } catch (RuntimeException e) {
+      failed.addAndGet(snapshots.size());
+      logger.error("RequestLogWriter::write() failed to write " + snapshots.size() + " request logs: " + e.getMessage());
+    }
+  }
+}
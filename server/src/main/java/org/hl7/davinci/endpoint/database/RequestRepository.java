@@ -1,10 +1,15 @@
 package org.hl7.davinci.endpoint.database;
 
 import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.CrossOrigin;
 
 
@@ -16,4 +21,34 @@ public interface RequestRepository extends CrudRepository<RequestLog, Long> {
   @Query(
       "SELECT r FROM RequestLog r")
   List<RequestLog> findLogs();
+
+  /**
+   * @return a page of the logs, newest first
+   */
+  @RestResource(exported = false)
+  @Query(
+      "SELECT r FROM RequestLog r ORDER BY r.id DESC")
+  List<RequestLog> findNewest(Pageable pageable);
+
+  /**
+   * @return the id and stored body size of each log, newest first, without loading the bodies
+   */
+  @RestResource(exported = false)
+  @Query(
+      "SELECT r.id, r.requestBodySize FROM RequestLog r ORDER BY r.id DESC")
+  List<Object[]> findIdsAndBodySizes(Pageable pageable);
+
+  @RestResource(exported = false)
+  @Transactional
+  @Modifying
+  @Query(
+      "DELETE FROM RequestLog r WHERE r.timestamp < :timestamp")
+  int deleteOlderThan(@Param("timestamp") long timestamp);
+
+  @RestResource(exported = false)
+  @Transactional
+  @Modifying
+  @Query(
+      "DELETE FROM RequestLog r WHERE r.id <= :id")
+  int deleteUpToId(@Param("id") long id);
 }
@@ -1,5 +1,6 @@
 package org.hl7.davinci.endpoint.database;
 
+import org.hl7.davinci.endpoint.config.YamlConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,6 +19,12 @@ public class RequestServiceImpl implements RequestService {
   @Autowired
   private RequestRepository requestRepository;
 
+  @Autowired
+  private RequestLogWriter requestLogWriter;
+
+  @Autowired
+  private YamlConfig myConfig;
+
   @Override
   public Iterable<RequestLog> findAll() {
     return this.requestRepository.findAll();
@@ -30,11 +37,21 @@ public class RequestServiceImpl implements RequestService {
 
   @Override
   public RequestLog create(RequestLog rule) {
-    return this.requestRepository.save(rule);
+    return save(rule);
   }
 
   @Override
   public RequestLog edit(RequestLog rule) {
+    return save(rule);
+  }
+
+  private RequestLog save(RequestLog rule) {
+    if (myConfig.isRequestLogWriteBehind()) {
+      // written later by the writer thread, the request does not wait on the database
+      requestLogWriter.submit(rule);
+      return rule;
+    }
+    rule.compressRequestBody();
     return this.requestRepository.save(rule);
   }
 
@@ -5,8 +5,17 @@ import org.apache.commons.lang.StringUtils;
 import javax.persistence.*;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * One mapping of a topic for one FHIR version: a code system, the codes and code ranges in it and the payers the
+ * topic applies to. The codes and payers are held in their own indexed tables rather than as one row per
+ * combination. Codes from value sets are added to the codes when the rules are loaded.
+ */
 @Entity
 @Table(name = "rule_mapping")
 public class RuleMapping {
@@ -16,14 +25,24 @@ public class RuleMapping {
   @Column(name = "id", updatable = false, nullable = false)
   private long id;
 
+  @ElementCollection(fetch = FetchType.EAGER)
+  @CollectionTable(name = "rule_mapping_payer", joinColumns = @JoinColumn(name = "rule_mapping_id"),
+      indexes = @Index(columnList = "payer"))
   @Column(name = "payer", nullable = false)
-  private String payer;
+  private Set<String> payers = new LinkedHashSet<>();
 
   @Column(name = "code_system", nullable = false)
   private String codeSystem;
 
+  @ElementCollection(fetch = FetchType.EAGER)
+  @CollectionTable(name = "rule_mapping_code", joinColumns = @JoinColumn(name = "rule_mapping_id"),
+      indexes = @Index(columnList = "code"))
   @Column(name = "code", nullable = false)
-  private String code;
+  private Set<String> codes = new LinkedHashSet<>();
+
+  @ElementCollection(fetch = FetchType.EAGER)
+  @CollectionTable(name = "rule_mapping_code_range", joinColumns = @JoinColumn(name = "rule_mapping_id"))
+  private Set<CodeRange> codeRanges = new LinkedHashSet<>();
 
   @Column(name = "fhir_version", nullable = false)
   private String fhirVersion;
@@ -53,15 +72,22 @@ public class RuleMapping {
     return this;
   }
 
-  public String getPayer() {
-    return payer;
+  public Set<String> getPayers() {
+    return payers;
   }
 
-  public RuleMapping setPayer(String payer) {
-    this.payer = payer;
+  public RuleMapping setPayers(Collection<String> payers) {
+    this.payers = new LinkedHashSet<>(payers);
     return this;
   }
 
+  /**
+   * @return the payers as a single string for display
+   */
+  public String getPayer() {
+    return String.join(", ", payers);
+  }
+
   public String getCodeSystem() {
     return codeSystem;
   }
@@ -71,15 +97,39 @@ public class RuleMapping {
     return this;
   }
 
-  public String getCode() {
-    return code;
+  public Set<String> getCodes() {
+    return codes;
   }
 
-  public RuleMapping setCode(String code) {
-    this.code = code;
+  public RuleMapping setCodes(Collection<String> codes) {
+    this.codes = new LinkedHashSet<>(codes);
     return this;
   }
 
+  public RuleMapping setCodes(String[] codes) {
+    return setCodes(Arrays.asList(codes));
+  }
+
+  public Set<CodeRange> getCodeRanges() {
+    return codeRanges;
+  }
+
+  public RuleMapping setCodeRanges(Collection<CodeRange> codeRanges) {
+    this.codeRanges = new LinkedHashSet<>(codeRanges);
+    return this;
+  }
+
+  /**
+   * @return the codes and code ranges as a single string for display
+   */
+  public String getCode() {
+    List<String> display = new ArrayList<>(codes);
+    for (CodeRange range : codeRanges) {
+      display.add(range.toString());
+    }
+    return String.join(", ", display);
+  }
+
   public String getFhirVersion() {
     return fhirVersion;
   }
@@ -127,7 +177,7 @@ public class RuleMapping {
 
   @Override
   public String toString() {
-    return String.format("(row id: %d) Payer: %s, CodeSystem: %s, Code: %s, FHIR Version: %s, Topic: %s", id, payer, codeSystem, code, fhirVersion, topic);
+    return String.format("(row id: %d) Payers: %s, CodeSystem: %s, Codes: %d, Code Ranges: %d, FHIR Version: %s, Topic: %s", id, getPayer(), codeSystem, codes.size(), codeRanges.size(), fhirVersion, topic);
   }
 
   public String getLink() {
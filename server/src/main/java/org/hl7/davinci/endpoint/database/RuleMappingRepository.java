@@ -16,9 +16,9 @@ import org.springframework.web.bind.annotation.CrossOrigin;
 public interface RuleMappingRepository extends CrudRepository<RuleMapping, Long> {
 
   @Query(
-      "SELECT r FROM RuleMapping r WHERE "
-          + "r.payer = :#{#criteria.payor} "
-          + "and r.code = :#{#criteria.code} "
+      "SELECT DISTINCT r FROM RuleMapping r WHERE "
+          + ":#{#criteria.payor} MEMBER OF r.payers "
+          + "and :#{#criteria.code} MEMBER OF r.codes "
           + "and r.codeSystem = :#{#criteria.codeSystem} "
           + "and r.fhirVersion = :#{#criteria.fhirVersion}")
   List<RuleMapping> findRules(
@@ -0,0 +1,95 @@
+package org.hl7.davinci.endpoint.files;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.hl7.davinci.endpoint.database.CodeRange;
+
+/**
+ * Finds the values whose code ranges contain a code. At build time the ranges are cut into segments that do not
+ * overlap, and each segment holds every value whose range covers it. The segments are built in one sweep over the
+ * sorted range ends. A lookup is then a single floor search in a sorted map, however many ranges there are.
+ *
+ * All of the ranges in one index are expected to be the same length as the codes looked up in it.
+ */
+class CodeRangeIndex<T> {
+
+  // segment start -> values covering the codes from the start up to the next segment
+  private final TreeMap<String, List<T>> segments;
+
+  private CodeRangeIndex(TreeMap<String, List<T>> segments) {
+    this.segments = segments;
+  }
+
+  /**
+   * @param code the code to look up
+   * @return the values whose ranges contain the code, empty if there are none
+   */
+  List<T> find(String code) {
+    Map.Entry<String, List<T>> segment = segments.floorEntry(code);
+    return segment == null ? Collections.emptyList() : segment.getValue();
+  }
+
+  static class Builder<T> {
+    private final List<CodeRange> ranges = new ArrayList<>();
+    private final List<T> values = new ArrayList<>();
+
+    Builder<T> add(CodeRange range, T value) {
+      ranges.add(range);
+      values.add(value);
+      return this;
+    }
+
+    CodeRangeIndex<T> build() {
+      // a segment starts at each low and just after each high, "\0" sorts after the high and before anything else
+      TreeSet<String> starts = new TreeSet<>();
+      for (CodeRange range : ranges) {
+        starts.add(range.getLow());
+        starts.add(range.getHigh() + "\0");
+      }
+
+      // sweep the starts in order, keeping the ranges that are open at each one: a range opens at its low and is
+      // dropped from the queue, ordered by high, once a start passes its high
+      List<Integer> byLow = new ArrayList<>();
+      for (int i = 0; i < ranges.size(); i++) {
+        byLow.add(i);
+      }
+      byLow.sort(Comparator.comparing((Integer i) -> ranges.get(i).getLow()));
+      PriorityQueue<Integer> byHigh =
+          new PriorityQueue<>(Comparator.comparing((Integer i) -> ranges.get(i).getHigh()));
+      // the open ranges in the order they were added, so the values come out in that order
+      TreeSet<Integer> open = new TreeSet<>();
+      int next = 0;
+
+      TreeMap<String, List<T>> segments = new TreeMap<>();
+      for (String start : starts) {
+        while (next < byLow.size() && ranges.get(byLow.get(next)).getLow().compareTo(start) <= 0) {
+          open.add(byLow.get(next));
+          byHigh.add(byLow.get(next));
+          next++;
+        }
+        while (!byHigh.isEmpty() && ranges.get(byHigh.peek()).getHigh().compareTo(start) < 0) {
+          open.remove(byHigh.poll());
+        }
+
+        List<T> covering = new ArrayList<>();
+        Set<T> seen = new HashSet<>();
+        for (int i : open) {
+          if (seen.add(values.get(i))) {
+            covering.add(values.get(i));
+          }
+        }
+        segments.put(start, Collections.unmodifiableList(covering));
+      }
+      return new CodeRangeIndex<>(segments);
+    }
+  }
+}
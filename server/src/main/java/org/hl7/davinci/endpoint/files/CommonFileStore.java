@@ -3,11 +3,16 @@ package org.hl7.davinci.endpoint.files;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.hl7.ShortNameMaps;
 import org.hl7.davinci.SuppressParserErrorHandler;
 import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.endpoint.cql.CompiledCqlRule;
 import org.hl7.davinci.endpoint.cql.CqlRule;
+import org.hl7.davinci.endpoint.cql.CqlRuleCache;
+import org.hl7.davinci.endpoint.cql.ElmDiskCache;
+import org.hl7.davinci.endpoint.cql.r4.CqlExecutionContextBuilder;
 import org.hl7.davinci.endpoint.database.*;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
 import org.hl7.davinci.endpoint.vsac.ValueSetCache;
@@ -24,9 +29,16 @@ import org.springframework.core.io.InputStreamResource;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.processing.Filer;
 
@@ -48,6 +60,19 @@ public abstract class CommonFileStore implements FileStore {
 
   private ValueSetCache valueSetCache;
 
+  protected CqlRuleCache cqlRuleCache = new CqlRuleCache();
+
+  private ElmDiskCache elmDiskCache;
+
+  // whether a CQL file without precompiled ELM has been logged yet
+  private final AtomicBoolean missingElmLogged = new AtomicBoolean(false);
+
+  // the rule mappings being loaded by the current reload, published once the reload is done
+  private RuleMappingIndex.Builder pendingRuleMappings = new RuleMappingIndex.Builder();
+
+  // null until the first reload has been published, lookups go to the database until then
+  private volatile RuleMappingIndex ruleMappingIndex;
+
   private QuestionnaireValueSetProcessor questionnaireValueSetProcessor;
   private SubQuestionnaireProcessor subQuestionnaireProcessor;
   private LibraryContentProcessor libraryContentProcessor;
@@ -72,6 +97,18 @@ public abstract class CommonFileStore implements FileStore {
 
   public abstract FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert);
 
+  /**
+   * Get the translated CqlRule for a topic. The CQL sources are only fetched and translated the first time the
+   * topic is asked for after a reload, the rule is cached until the next reload. If elmCachePath is configured
+   * translations are also kept on disk and reused after a restart.
+   */
+  public CompiledCqlRule getCompiledCqlRule(String topic, String fhirVersion) {
+    return cqlRuleCache.get(topic, fhirVersion, () -> {
+      logger.info("CommonFileStore::getCompiledCqlRule(): compiling " + topic + "/" + fhirVersion);
+      return CqlExecutionContextBuilder.compileRule(getCqlRule(topic, fhirVersion), getElmDiskCache());
+    });
+  }
+
   protected abstract String readFhirResourceFromFile(FhirResource fhirResource, String fhirVersion);
 
   protected FileResource readFhirResourceFromFiles(FhirResource fhirResource, String fhirVersion,
@@ -310,7 +347,106 @@ public abstract class CommonFileStore implements FileStore {
   // from RuleFinder
   public List<RuleMapping> findRules(CoverageRequirementRuleCriteria criteria) {
     logger.info("CommonFileStore::findRules(): " + criteria.toString());
-    return ruleFinder.findRules(criteria);
+    RuleMappingIndex index = ruleMappingIndex;
+    if (index == null) {
+      // the database only matches listed codes, code ranges are matched by the index
+      return ruleFinder.findRules(criteria);
+    }
+    return index.find(criteria);
+  }
+
+  public List<List<RuleMapping>> findRules(List<CoverageRequirementRuleCriteria> criteriaList) {
+    logger.info("CommonFileStore::findRules(): " + criteriaList.size() + " criteria");
+    RuleMappingIndex index = ruleMappingIndex;
+    if (index != null) {
+      return index.find(criteriaList);
+    }
+
+    // not loaded yet, query the database once for each distinct criteria
+    Map<List<String>, List<RuleMapping>> found = new HashMap<>();
+    List<List<RuleMapping>> results = new ArrayList<>(criteriaList.size());
+    for (CoverageRequirementRuleCriteria criteria : criteriaList) {
+      results.add(new ArrayList<>(found.computeIfAbsent(RuleMappingIndex.key(criteria),
+          k -> ruleFinder.findRules(criteria))));
+    }
+    return results;
+  }
+
+  public boolean mayHaveRules(String codeSystem, String code) {
+    RuleMappingIndex index = ruleMappingIndex;
+    // nothing is known about the rules before the first reload
+    return index == null || index.mayMatch(codeSystem, code);
+  }
+
+  /**
+   * Clear the rule mapping lookup table at the start of a reload. The published index keeps answering lookups
+   * until the reload calls publishRuleMappings().
+   */
+  protected void clearRuleMappings() {
+    lookupTable.deleteAll();
+    pendingRuleMappings = new RuleMappingIndex.Builder();
+  }
+
+  /**
+   * Save a rule mapping to the lookup table and to the index being built by the current reload.
+   */
+  protected void saveRuleMapping(RuleMapping ruleMappingEntry) {
+    pendingRuleMappings.add(lookupTable.save(ruleMappingEntry));
+  }
+
+  /**
+   * Create a rule mapping with the code system, codes and code ranges of a TopicMetadata mapping. The codes of
+   * any value sets the mapping references are fetched through the ValueSetCache and added to its codes.
+   */
+  protected RuleMapping createRuleMapping(Mapping mapping) {
+    String codeSystem = ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.get(mapping.getCodeSystem());
+
+    Set<String> codes = new LinkedHashSet<>(Arrays.asList(mapping.getCodes()));
+    if (codeSystem != null) {
+      for (String valueSet : mapping.getValueSets()) {
+        String oid = valueSet.startsWith(ValueSetCache.VSAC_CANONICAL_BASE)
+            ? valueSet.substring(ValueSetCache.VSAC_CANONICAL_BASE.length()) : valueSet;
+        codes.addAll(this.getValueSetCache().getValueSetCodes(oid, codeSystem));
+      }
+    }
+
+    List<CodeRange> codeRanges = new ArrayList<>();
+    for (CodeRange codeRange : mapping.getCodeRanges()) {
+      if (codeRange.isValid()) {
+        codeRanges.add(codeRange);
+      } else {
+        logger.warn("CommonFileStore::createRuleMapping(): skipping invalid code range: " + codeRange);
+      }
+    }
+
+    return new RuleMapping().setCodeSystem(codeSystem).setCodes(codes).setCodeRanges(codeRanges);
+  }
+
+  /**
+   * Map the payer short names from a TopicMetadata to the full names the rules are looked up by.
+   */
+  protected static List<String> getPayerFullNames(String[] payers) {
+    List<String> fullNames = new ArrayList<>();
+    for (String payer : payers) {
+      String fullName = ShortNameMaps.PAYOR_SHORT_NAME_TO_FULL_NAME.get(payer);
+      if (fullName == null) {
+        logger.warn("CommonFileStore::getPayerFullNames(): unknown payer: " + payer);
+      } else {
+        fullNames.add(fullName);
+      }
+    }
+    return fullNames;
+  }
+
+  /**
+   * Swap in the index built by the current reload. The compiled rules are dropped again, as a request during the
+   * reload may have compiled a rule from the sources being replaced.
+   */
+  protected void publishRuleMappings() {
+    ruleMappingIndex = pendingRuleMappings.build();
+    pendingRuleMappings = new RuleMappingIndex.Builder();
+    cqlRuleCache.clear();
+    logger.info("CommonFileStore::publishRuleMappings(): " + ruleMappingIndex.size() + " rule mappings");
   }
 
   public List<RuleMapping> findAllRules() {
@@ -369,32 +505,28 @@ public abstract class CommonFileStore implements FileStore {
                 // convert to object
                 TopicMetadata metadata = objectMapper.readValue(content, TopicMetadata.class);
 
-                for (Mapping mapping : metadata.getMappings()) {
-                  for (String code : mapping.getCodes()) {
-                    for (String payer : metadata.getPayers()) {
-                      for (String fhirVersion : metadata.getFhirVersions()) {
-
-                        String mainCqlLibraryName = metadata.getTopic() + "Rule";
-                        File mainCqlFile = findFile(path, metadata.getTopic(), fhirVersion, mainCqlLibraryName,
-                            FileStore.CQL_EXTENSION);
-                        if (mainCqlFile == null) {
-                          logger.warn("CommonFileStore::reloadFromFolder(): failed to find main CQL file for topic: "
-                              + metadata.getTopic());
-                        } else {
-                          logger.info("    Added: " + metadata.getTopic() + ": " + payer + ", "
-                              + mapping.getCodeSystem() + ", " + code + " (" + fhirVersion + ")");
-
-                          // create table entry and store it back to the table
-                          RuleMapping ruleMappingEntry = new RuleMapping();
-                          ruleMappingEntry.setPayer(ShortNameMaps.PAYOR_SHORT_NAME_TO_FULL_NAME.get(payer))
-                              .setCodeSystem(
-                                  ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.get(mapping.getCodeSystem()))
-                              .setCode(code).setFhirVersion(fhirVersion).setTopic(metadata.getTopic())
-                              .setRuleFile(mainCqlFile.getName());
-                          lookupTable.save(ruleMappingEntry);
-                        }
-                      }
-                    }
+                List<String> payers = getPayerFullNames(metadata.getPayers());
+                for (String fhirVersion : metadata.getFhirVersions()) {
+
+                  // the main CQL file only depends on the topic and version
+                  String mainCqlLibraryName = metadata.getTopic() + "Rule";
+                  File mainCqlFile = findFile(path, metadata.getTopic(), fhirVersion, mainCqlLibraryName,
+                      FileStore.CQL_EXTENSION);
+                  if (mainCqlFile == null) {
+                    logger.warn("CommonFileStore::reloadFromFolder(): failed to find main CQL file for topic: "
+                        + metadata.getTopic());
+                    continue;
+                  }
+
+                  for (Mapping mapping : metadata.getMappings()) {
+                    // create table entry and store it back to the table
+                    RuleMapping ruleMappingEntry = createRuleMapping(mapping);
+                    ruleMappingEntry.setPayers(payers).setFhirVersion(fhirVersion).setTopic(metadata.getTopic())
+                        .setRuleFile(mainCqlFile.getName());
+                    logger.info("    Added: " + metadata.getTopic() + ": " + payers + ", " + mapping.getCodeSystem()
+                        + ", " + ruleMappingEntry.getCodes().size() + " codes, "
+                        + ruleMappingEntry.getCodeRanges().size() + " code ranges (" + fhirVersion + ")");
+                    saveRuleMapping(ruleMappingEntry);
                   }
                 }
 
@@ -566,6 +698,19 @@ public abstract class CommonFileStore implements FileStore {
     return this.valueSetCache;
   }
 
+  /**
+   * Gets or sets up and returns the ElmDiskCache.
+   *
+   * @return The ElmDiskCache, null if no elmCachePath is configured.
+   */
+  protected synchronized ElmDiskCache getElmDiskCache() {
+    String elmCachePath = this.config.getElmCachePath();
+    if (this.elmDiskCache == null && elmCachePath != null && !elmCachePath.isEmpty()) {
+      this.elmDiskCache = new ElmDiskCache(elmCachePath);
+    }
+    return this.elmDiskCache;
+  }
+
   /**
    * Looks for ValueSet references in Library.dataRequirement.codeFilter entries
    * that point to a VSAC ValueSet by OID and have the cache fetch the ValueSet.
@@ -640,6 +785,60 @@ public abstract class CommonFileStore implements FileStore {
     return null;
   }
 
+  /**
+   * Read the ELM (JSON or XML) and ELM hash files that were precompiled for a CQL file. They are looked for next
+   * to the CQL and then below precompiledElmPath, where the build writes them (see precompiledElmDir()).
+   * @param libraryPath the root of the library the CQL file was found in, such as the localPath
+   * @param cqlFile the CQL file
+   * @param elmFiles map of file name to contents to add the ELM files to
+   */
+  protected void readElmFiles(String libraryPath, File cqlFile, HashMap<String, byte[]> elmFiles) {
+    String baseName = FilenameUtils.getBaseName(cqlFile.getName());
+    File precompiledDir = precompiledElmDir(config.getPrecompiledElmPath(), libraryPath, cqlFile);
+    boolean foundElm = false;
+    for (String extension : new String[] { "json", "xml", CqlRule.ELM_HASH_EXTENSION }) {
+      File elmFile = new File(cqlFile.getParentFile(), baseName + "." + extension);
+      if (!elmFile.isFile() && precompiledDir != null) {
+        elmFile = new File(precompiledDir, baseName + "." + extension);
+      }
+      if (elmFile.isFile()) {
+        try {
+          elmFiles.put(elmFile.getName(), Files.readAllBytes(elmFile.toPath()));
+          foundElm = foundElm || !extension.equals(CqlRule.ELM_HASH_EXTENSION);
+        } catch (IOException e) {
+          logger.warn("CommonFileStore::readElmFiles(): failed to open ELM file: " + e.getMessage());
+        }
+      }
+    }
+    if (!foundElm && precompiledDir != null && !missingElmLogged.getAndSet(true)) {
+      // only once, a library that was not precompiled would otherwise log this for every rule
+      logger.warn("CommonFileStore::readElmFiles(): no precompiled ELM for " + cqlFile.getPath() + " in "
+          + precompiledDir.getPath() + ", rules without it are translated when first used");
+    }
+  }
+
+  /**
+   * The folder the build writes the ELM of a CQL file to (see ElmPrecompiler): the folder of the CQL relative to
+   * the parent of its library root, below precompiledElmPath. For CDS-Library/Topic/R4/files/TopicRule-0.1.0.cql
+   * that is build/elm/CDS-Library/Topic/R4/files, whether the library root is given as a relative or an absolute
+   * path.
+   * @param precompiledElmPath where the build writes the ELM, may be null or empty
+   * @param libraryPath the root of the library the CQL file was found in
+   * @param cqlFile the CQL file
+   * @return the folder, or null if precompiledElmPath is not set or the CQL file is not below the library root
+   */
+  static File precompiledElmDir(String precompiledElmPath, String libraryPath, File cqlFile) {
+    if (precompiledElmPath == null || precompiledElmPath.isEmpty() || libraryPath == null) {
+      return null;
+    }
+    Path root = new File(libraryPath).getAbsoluteFile().toPath().normalize();
+    Path cqlDir = cqlFile.getAbsoluteFile().toPath().normalize().getParent();
+    if (root.getFileName() == null || cqlDir == null || !cqlDir.startsWith(root)) {
+      return null;
+    }
+    return new File(precompiledElmPath, root.getFileName().resolve(root.relativize(cqlDir)).toString());
+  }
+
   protected String stripNameFromResourceFilename(String filename, String fhirVersion) {
     // example filename: Library-R4-HomeOxygenTherapy-prepopulation.json
     int fhirIndex = filename.toUpperCase().indexOf(fhirVersion.toUpperCase());
@@ -2,6 +2,7 @@ package org.hl7.davinci.endpoint.files;
 
 import java.util.List;
 
+import org.hl7.davinci.endpoint.cql.CompiledCqlRule;
 import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
 import org.hl7.fhir.r4.model.Bundle;
@@ -21,6 +22,9 @@ public interface FileStore {
 
   CqlRule getCqlRule(String topic, String fhirVersion);
 
+  // translated CqlRule, cached until the next reload
+  CompiledCqlRule getCompiledCqlRule(String topic, String fhirVersion);
+
   FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert);
 
   // Get FHIR Resources as FileResource
@@ -38,6 +42,10 @@ public interface FileStore {
 
   // from RuleFinder
   List<RuleMapping> findRules(CoverageRequirementRuleCriteria criteria);
+  // the rules for each of the criteria, in the same order, identical criteria are only looked up once
+  List<List<RuleMapping>> findRules(List<CoverageRequirementRuleCriteria> criteriaList);
+  // false if no rule can match the code for any payer, may be true for a code without rules
+  boolean mayHaveRules(String codeSystem, String code);
   List<RuleMapping> findAllRules();
 
   List<FhirResource> findAllFhirResources();
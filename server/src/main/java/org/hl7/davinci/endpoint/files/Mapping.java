@@ -1,17 +1,32 @@
 package org.hl7.davinci.endpoint.files;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hl7.davinci.endpoint.database.CodeRange;
 
 public class Mapping {
   @JsonProperty("codeSystem")
   private String codeSystem;
 
   @JsonProperty("codes")
-  private String[] codes;
+  private String[] codes = new String[0];
+
+  // inclusive ranges of codes, such as HCPCS E0424 to E0486
+  @JsonProperty("codeRanges")
+  private CodeRange[] codeRanges = new CodeRange[0];
+
+  // VSAC value set OIDs or canonical urls, the codes from the code system of the mapping are used
+  @JsonProperty("valueSets")
+  private String[] valueSets = new String[0];
 
   public String getCodeSystem() { return codeSystem; }
   public void setCodeSystem(String codeSystem) { this.codeSystem = codeSystem; }
 
   public String[] getCodes() { return codes; }
   public void setCodes(String[] codes) { this.codes = codes; }
+
+  public CodeRange[] getCodeRanges() { return codeRanges; }
+  public void setCodeRanges(CodeRange[] codeRanges) { this.codeRanges = codeRanges; }
+
+  public String[] getValueSets() { return valueSets; }
+  public void setValueSets(String[] valueSets) { this.valueSets = valueSets; }
 }
@@ -0,0 +1,195 @@
+package org.hl7.davinci.endpoint.files;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import org.hl7.davinci.endpoint.database.CodeRange;
+import org.hl7.davinci.endpoint.database.RuleMapping;
+import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
+
+/**
+ * An immutable in-memory copy of the rule mapping lookup table, keyed by (payer, codeSystem, code, fhirVersion).
+ * It is built up with a Builder while the rules are reloaded and then swapped in as a whole, so a lookup never
+ * sees a half loaded table and never has to go to the database.
+ *
+ * Code ranges are kept in a CodeRangeIndex per (payer, codeSystem, fhirVersion) and code length, so matching a
+ * code against them is a single search in a sorted map.
+ *
+ * A Bloom filter over every (codeSystem, code) in the index lets a request whose codes have no rules at all be
+ * turned away before any work is done for it. Codes that only fall in a range are checked against the ranges.
+ */
+public class RuleMappingIndex {
+
+  // false positive rate of the code filter
+  private static final double CODE_FILTER_FPP = 0.01;
+
+  private final Map<List<String>, List<RuleMapping>> rules;
+  // payer, codeSystem, fhirVersion, code length -> ranges
+  private final Map<List<String>, CodeRangeIndex<RuleMapping>> ranges;
+  // codeSystem, code length -> ranges, for any payer or FHIR version
+  private final Map<List<String>, CodeRangeIndex<RuleMapping>> codeSystemRanges;
+  private final int size;
+  private final BloomFilter<CharSequence> codeFilter;
+
+  private RuleMappingIndex(Map<List<String>, List<RuleMapping>> rules,
+                           Map<List<String>, CodeRangeIndex<RuleMapping>> ranges,
+                           Map<List<String>, CodeRangeIndex<RuleMapping>> codeSystemRanges,
+                           int size, BloomFilter<CharSequence> codeFilter) {
+    this.rules = rules;
+    this.ranges = ranges;
+    this.codeSystemRanges = codeSystemRanges;
+    this.size = size;
+    this.codeFilter = codeFilter;
+  }
+
+  private static String codeKey(String codeSystem, String code) {
+    return codeSystem + "|" + code;
+  }
+
+  /**
+   * Check whether any rule could be mapped to the code, for any payer or FHIR version. There are no false
+   * negatives, but a small fraction of codes without rules will also return true.
+   * @param codeSystem the full code system url
+   * @param code the code
+   * @return false if no rule is mapped to the code
+   */
+  public boolean mayMatch(String codeSystem, String code) {
+    if (codeSystem == null || code == null) {
+      return false;
+    }
+    if (codeFilter.mightContain(codeKey(codeSystem, code))) {
+      return true;
+    }
+    CodeRangeIndex<RuleMapping> rangeIndex = codeSystemRanges.get(
+        Arrays.asList(codeSystem, String.valueOf(code.length())));
+    return rangeIndex != null && !rangeIndex.find(code).isEmpty();
+  }
+
+  /**
+   * @return the key the criteria are looked up by, equal for criteria that always match the same rules
+   */
+  static List<String> key(CoverageRequirementRuleCriteria criteria) {
+    return key(criteria.getPayor(), criteria.getCodeSystem(), criteria.getCode(), criteria.getFhirVersion());
+  }
+
+  private static List<String> key(String payer, String codeSystem, String code, String fhirVersion) {
+    return Arrays.asList(payer, codeSystem, code, fhirVersion);
+  }
+
+  private static List<String> rangeKey(String payer, String codeSystem, String fhirVersion, int length) {
+    return Arrays.asList(payer, codeSystem, fhirVersion, String.valueOf(length));
+  }
+
+  /**
+   * Find the rules matching the criteria, by code or by code range.
+   * @param criteria The search criteria object
+   * @return List of matching RuleMapping entries
+   */
+  public List<RuleMapping> find(CoverageRequirementRuleCriteria criteria) {
+    if (criteria.getPayor() == null || criteria.getCodeSystem() == null || criteria.getCode() == null
+        || criteria.getFhirVersion() == null) {
+      // the database query never matches a null
+      return new ArrayList<>();
+    }
+    List<RuleMapping> found = new ArrayList<>(rules.getOrDefault(key(criteria), Collections.emptyList()));
+    CodeRangeIndex<RuleMapping> rangeIndex = ranges.get(rangeKey(criteria.getPayor(), criteria.getCodeSystem(),
+        criteria.getFhirVersion(), criteria.getCode().length()));
+    if (rangeIndex != null) {
+      for (RuleMapping rule : rangeIndex.find(criteria.getCode())) {
+        // a code may be both listed and in a range of the same mapping
+        if (!found.contains(rule)) {
+          found.add(rule);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Find the rules matching each of the criteria in one pass, looking up identical criteria only once.
+   * @param criteriaList The search criteria objects
+   * @return the matching RuleMapping entries for each of the criteria, in the same order as the criteria
+   */
+  public List<List<RuleMapping>> find(List<CoverageRequirementRuleCriteria> criteriaList) {
+    Map<List<String>, List<RuleMapping>> found = new HashMap<>();
+    List<List<RuleMapping>> results = new ArrayList<>(criteriaList.size());
+    for (CoverageRequirementRuleCriteria criteria : criteriaList) {
+      results.add(new ArrayList<>(found.computeIfAbsent(key(criteria), k -> find(criteria))));
+    }
+    return results;
+  }
+
+  /**
+   * @return the number of rule mapping records in the index
+   */
+  public int size() {
+    return size;
+  }
+
+  public static class Builder {
+    private final Map<List<String>, List<RuleMapping>> rules = new HashMap<>();
+    private final Map<List<String>, CodeRangeIndex.Builder<RuleMapping>> ranges = new HashMap<>();
+    private final Map<List<String>, CodeRangeIndex.Builder<RuleMapping>> codeSystemRanges = new HashMap<>();
+    private int size = 0;
+
+    public Builder add(RuleMapping rule) {
+      if (rule.getCodeSystem() != null && rule.getFhirVersion() != null) {
+        // the same record is indexed under each of its payer and code pairs
+        for (String payer : rule.getPayers()) {
+          for (String code : rule.getCodes()) {
+            rules.computeIfAbsent(key(payer, rule.getCodeSystem(), code, rule.getFhirVersion()),
+                k -> new ArrayList<>()).add(rule);
+          }
+          for (CodeRange range : rule.getCodeRanges()) {
+            int length = range.getLow().length();
+            ranges.computeIfAbsent(rangeKey(payer, rule.getCodeSystem(), rule.getFhirVersion(), length),
+                k -> new CodeRangeIndex.Builder<>()).add(range, rule);
+          }
+        }
+        for (CodeRange range : rule.getCodeRanges()) {
+          codeSystemRanges.computeIfAbsent(Arrays.asList(rule.getCodeSystem(), String.valueOf(range.getLow().length())),
+              k -> new CodeRangeIndex.Builder<>()).add(range, rule);
+        }
+        size++;
+      }
+      return this;
+    }
+
+    public RuleMappingIndex build() {
+      Map<List<String>, List<RuleMapping>> copy = new HashMap<>();
+      Set<String> codes = new HashSet<>();
+      for (Map.Entry<List<String>, List<RuleMapping>> entry : rules.entrySet()) {
+        copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        // key is payer, codeSystem, code, fhirVersion
+        codes.add(codeKey(entry.getKey().get(1), entry.getKey().get(2)));
+      }
+
+      BloomFilter<CharSequence> codeFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+          Math.max(codes.size(), 1), CODE_FILTER_FPP);
+      for (String code : codes) {
+        codeFilter.put(code);
+      }
+      return new RuleMappingIndex(Collections.unmodifiableMap(copy), buildRanges(ranges),
+          buildRanges(codeSystemRanges), size, codeFilter);
+    }
+
+    private static Map<List<String>, CodeRangeIndex<RuleMapping>> buildRanges(
+        Map<List<String>, CodeRangeIndex.Builder<RuleMapping>> builders) {
+      Map<List<String>, CodeRangeIndex<RuleMapping>> built = new HashMap<>();
+      for (Map.Entry<List<String>, CodeRangeIndex.Builder<RuleMapping>> entry : builders.entrySet()) {
+        built.put(entry.getKey(), entry.getValue().build());
+      }
+      return Collections.unmodifiableMap(built);
+    }
+  }
+}
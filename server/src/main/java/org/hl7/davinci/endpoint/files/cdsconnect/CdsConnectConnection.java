@@ -1,7 +1,5 @@
 package org.hl7.davinci.endpoint.files.cdsconnect;
 
-import java.net.InetSocketAddress;
-import java.net.Proxy;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -13,6 +11,7 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import org.hl7.davinci.endpoint.components.OutboundHttpClient;
 import org.hl7.davinci.endpoint.config.YamlConfig;
 import org.hl7.davinci.endpoint.config.CdsConnect;
 import org.slf4j.Logger;
@@ -24,7 +23,6 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -54,7 +52,7 @@ public class CdsConnectConnection {
   private RestTemplate restTemplate;
 
   @Autowired
-  public CdsConnectConnection(YamlConfig myConfig) {
+  public CdsConnectConnection(YamlConfig myConfig, OutboundHttpClient httpClient) {
     CdsConnect cdsConnectConfig = myConfig.getCdsConnect();
     this.baseUrl = cdsConnectConfig.getUrl();
     this.username = cdsConnectConfig.getUsername();
@@ -73,16 +71,11 @@ public class CdsConnectConnection {
     if ((cdsConnectConfig.getProxyHost() != null) && (cdsConnectConfig.getProxyPort() != null)) {
       logger.info("using proxy: " + cdsConnectConfig.getProxyHost() + ":" + cdsConnectConfig.getProxyPort());
 
-      SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
-
-      Proxy proxy = new Proxy(java.net.Proxy.Type.HTTP,
-          new InetSocketAddress(cdsConnectConfig.getProxyHost(), cdsConnectConfig.getProxyPort()));
-      requestFactory.setProxy(proxy);
-
-      this.restTemplate = new RestTemplate(requestFactory);
+      this.restTemplate = httpClient.createRestTemplate(cdsConnectConfig.getProxyHost(),
+          cdsConnectConfig.getProxyPort());
 
     } else {
-      this.restTemplate = new RestTemplate();
+      this.restTemplate = httpClient.getRestTemplate();
     }
 
    logger.info("CdsConnectConnection(): " + baseUrl);
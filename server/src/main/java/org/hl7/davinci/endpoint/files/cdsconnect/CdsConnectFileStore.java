@@ -5,7 +5,6 @@ import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
-import org.hl7.ShortNameMaps;
 import org.hl7.davinci.SuppressParserErrorHandler;
 import org.hl7.davinci.endpoint.cql.CqlExecution;
 import org.hl7.davinci.endpoint.cql.CqlRule;
@@ -43,8 +42,9 @@ public class CdsConnectFileStore extends CommonFileStore {
     boolean success = true;
 
     // clear the database first
-    lookupTable.deleteAll();
+    clearRuleMappings();
     fhirResources.deleteAll();
+    cqlRuleCache.clear();
 
     logger.info("CdsConnectFileStore::reload()");
 
@@ -92,15 +92,13 @@ public class CdsConnectFileStore extends CommonFileStore {
 
             // create table entry and store it back to the table
             RuleMapping ruleMappingEntry = new RuleMapping();
-            ruleMappingEntry.setPayer("")
-                .setCodeSystem("")
-                .setCode("")
+            ruleMappingEntry.setCodeSystem("")
                 .setFhirVersion(fhirVersion)
                 .setTopic(metadata.getTopic())
                 .setRuleFile(mainCqlFilename)
                 .setRuleFilePath(mainCqlFile)
                 .setNode(artifact.getId());
-            lookupTable.save(ruleMappingEntry);
+            saveRuleMapping(ruleMappingEntry);
           }
 
         } else {
@@ -115,28 +113,22 @@ public class CdsConnectFileStore extends CommonFileStore {
                 + metadata.getTopic());
           } else {
 
+            List<String> payers = getPayerFullNames(metadata.getPayers());
             for (String fhirVersion : metadata.getFhirVersions()) {
               for (Mapping mapping : metadata.getMappings()) {
-                for (String code : mapping.getCodes()) {
-                  for (String payer : metadata.getPayers()) {
-
-                    logger.info("    Added: " + metadata.getTopic() + ": " + payer + ", "
-                        + mapping.getCodeSystem() + ", " + code + " (" + fhirVersion + ")");
-
-                    // create table entry and store it back to the table
-                    RuleMapping ruleMappingEntry = new RuleMapping();
-                    ruleMappingEntry.setPayer(ShortNameMaps.PAYOR_SHORT_NAME_TO_FULL_NAME.get(payer))
-                        .setCodeSystem(
-                            ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.get(mapping.getCodeSystem()))
-                        .setCode(code)
-                        .setFhirVersion(fhirVersion)
-                        .setTopic(metadata.getTopic())
-                        .setRuleFile(mainCqlFilename)
-                        .setRuleFilePath(mainCqlFile)
-                        .setNode(artifact.getId());
-                    lookupTable.save(ruleMappingEntry);
-                  }
-                }
+
+                // create table entry and store it back to the table
+                RuleMapping ruleMappingEntry = createRuleMapping(mapping);
+                logger.info("    Added: " + metadata.getTopic() + ": " + payers + ", " + mapping.getCodeSystem()
+                    + ", " + ruleMappingEntry.getCodes().size() + " codes, "
+                    + ruleMappingEntry.getCodeRanges().size() + " code ranges (" + fhirVersion + ")");
+                ruleMappingEntry.setPayers(payers)
+                    .setFhirVersion(fhirVersion)
+                    .setTopic(metadata.getTopic())
+                    .setRuleFile(mainCqlFilename)
+                    .setRuleFilePath(mainCqlFile)
+                    .setNode(artifact.getId());
+                saveRuleMapping(ruleMappingEntry);
               }
             }
           }
@@ -158,6 +150,8 @@ public class CdsConnectFileStore extends CommonFileStore {
     }
     */
 
+    publishRuleMappings();
+
     long endTime = System.nanoTime();
     long timeElapsed = endTime - startTime;
     float seconds = (float) timeElapsed / (float) 1000000000;
@@ -207,6 +201,7 @@ public class CdsConnectFileStore extends CommonFileStore {
     logger.info("CdsConnectFileStore::getCqlRule(): " + topic + "/" + fhirVersion);
 
     // load CQL files needed for the CRD Rule
+    // CDS Connect artifacts only hold the CQL, so these rules are always translated (once per reload)
     HashMap<String, byte[]> cqlFiles = new HashMap<>();
 
     String mainCqlLibraryName = topic + "Rule";
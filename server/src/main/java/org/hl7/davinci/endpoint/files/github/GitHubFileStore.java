@@ -6,7 +6,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
-import org.hl7.ShortNameMaps;
 import org.hl7.davinci.SuppressParserErrorHandler;
 import org.hl7.davinci.endpoint.cql.CqlExecution;
 import org.hl7.davinci.endpoint.cql.CqlRule;
@@ -52,8 +51,9 @@ public class GitHubFileStore extends CommonFileStore {
     boolean success = true;
 
     // clear the database first
-    lookupTable.deleteAll();
+    clearRuleMappings();
     fhirResources.deleteAll();
+    cqlRuleCache.clear();
 
     if (config.getGitHubConfig().getUseZipForReload()) {
       success = reloadFromZip();
@@ -69,6 +69,8 @@ public class GitHubFileStore extends CommonFileStore {
       }
     }
 
+    publishRuleMappings();
+
     long endTime = System.nanoTime();
     long timeElapsed = endTime - startTime;
     float seconds = (float) timeElapsed / (float) 1000000000;
@@ -170,31 +172,28 @@ public class GitHubFileStore extends CommonFileStore {
                 // convert to object
                 TopicMetadata metadata = objectMapper.readValue(content, TopicMetadata.class);
 
-                for (Mapping mapping : metadata.getMappings()) {
-                  for (String code : mapping.getCodes()) {
-                    for (String payer : metadata.getPayers()) {
-                      for (String fhirVersion : metadata.getFhirVersions()) {
-
-                        String mainCqlLibraryName = metadata.getTopic() + "Rule";
-                        String mainCqlFile = findGitHubFile(metadata.getTopic(), fhirVersion, mainCqlLibraryName, FileStore.CQL_EXTENSION);
-                        if (mainCqlFile == null) {
-                          logger.warn("GitHubFileStore::reloadFromGitHub(): failed to find main CQL file for topic: " + metadata.getTopic());
-                        } else {
-                          logger.info("    Added: " + metadata.getTopic() + ": " + payer + ", "
-                              + mapping.getCodeSystem() + ", " + code + " (" + fhirVersion + ")");
-
-                          // create table entry and store it back to the table
-                          RuleMapping ruleMappingEntry = new RuleMapping();
-                          ruleMappingEntry.setPayer(ShortNameMaps.PAYOR_SHORT_NAME_TO_FULL_NAME.get(payer))
-                              .setCodeSystem(ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.get(mapping.getCodeSystem()))
-                              .setCode(code)
-                              .setFhirVersion(fhirVersion)
-                              .setTopic(metadata.getTopic())
-                              .setRuleFile(mainCqlFile);
-                          lookupTable.save(ruleMappingEntry);
-                        }
-                      }
-                    }
+                List<String> payers = getPayerFullNames(metadata.getPayers());
+                for (String fhirVersion : metadata.getFhirVersions()) {
+
+                  // the main CQL file only depends on the topic and version
+                  String mainCqlLibraryName = metadata.getTopic() + "Rule";
+                  String mainCqlFile = findGitHubFile(metadata.getTopic(), fhirVersion, mainCqlLibraryName, FileStore.CQL_EXTENSION);
+                  if (mainCqlFile == null) {
+                    logger.warn("GitHubFileStore::reloadFromGitHub(): failed to find main CQL file for topic: " + metadata.getTopic());
+                    continue;
+                  }
+
+                  for (Mapping mapping : metadata.getMappings()) {
+                    // create table entry and store it back to the table
+                    RuleMapping ruleMappingEntry = createRuleMapping(mapping);
+                    logger.info("    Added: " + metadata.getTopic() + ": " + payers + ", " + mapping.getCodeSystem()
+                        + ", " + ruleMappingEntry.getCodes().size() + " codes, "
+                        + ruleMappingEntry.getCodeRanges().size() + " code ranges (" + fhirVersion + ")");
+                    ruleMappingEntry.setPayers(payers)
+                        .setFhirVersion(fhirVersion)
+                        .setTopic(metadata.getTopic())
+                        .setRuleFile(mainCqlFile);
+                    saveRuleMapping(ruleMappingEntry);
                   }
                 }
 
@@ -266,8 +265,9 @@ public class GitHubFileStore extends CommonFileStore {
   public CqlRule getCqlRule(String topic, String fhirVersion) {
     logger.info("GitHubFileStore::getCqlRule(): " + topic + "/" + fhirVersion);
 
-    // load CQL files needed for the CRD Rule
+    // load CQL files needed for the CRD Rule, along with any ELM precompiled from them
     HashMap<String, byte[]> cqlFiles = new HashMap<>();
+    HashMap<String, byte[]> elmFiles = new HashMap<>();
 
     String rulePath = config.getGitHubConfig().getRulePath();
     String examplesPath = config.getGitHubConfig().getExamplesPath();
@@ -287,6 +287,7 @@ public class GitHubFileStore extends CommonFileStore {
         }
         cqlFiles.put(mainCqlFile, IOUtils.toByteArray(inputStream));
         logger.info("GitHubFileStore::getCqlRule(): added mainCqlFile: " + mainCqlFile);
+        readGitHubElmFiles(mainCqlFilePath, elmFiles);
       } catch (IOException e) {
         logger.warn("GitHubFileStore::getCqlRule(): failed to open main cql file: " + e.getMessage());
       }
@@ -306,12 +307,33 @@ public class GitHubFileStore extends CommonFileStore {
         }
         cqlFiles.put(helperCqlFile, IOUtils.toByteArray(inputStream));
         logger.info("GitHubFileStore::getCqlRule(): added helperCqlFile: " + helperCqlFile);
+        readGitHubElmFiles(helperCqlFilePath, elmFiles);
       } catch (IOException e) {
         logger.warn("GitHubFileStore::getCqlRule(): failed to open file FHIR helper cql file: " + e.getMessage());
       }
     }
 
-    return new CqlRule(mainCqlLibraryName, cqlFiles, fhirVersion);
+    return new CqlRule(mainCqlLibraryName, cqlFiles, elmFiles, fhirVersion);
+  }
+
+  /**
+   * Fetch the ELM (JSON) and ELM hash files that were precompiled next to a CQL file in the repository, if any.
+   * @param cqlFilePath the path of the CQL file in the repository
+   * @param elmFiles map of file name to contents to add the ELM files to
+   */
+  private void readGitHubElmFiles(String cqlFilePath, HashMap<String, byte[]> elmFiles) {
+    String basePath = FilenameUtils.removeExtension(cqlFilePath);
+    for (String extension : new String[] { "json", CqlRule.ELM_HASH_EXTENSION }) {
+      String elmFilePath = basePath + "." + extension;
+      InputStream inputStream = connection.getFile(elmFilePath);
+      if (inputStream != null) {
+        try {
+          elmFiles.put(FilenameUtils.getName(elmFilePath), IOUtils.toByteArray(inputStream));
+        } catch (IOException e) {
+          logger.warn("GitHubFileStore::readGitHubElmFiles(): failed to open ELM file: " + e.getMessage());
+        }
+      }
+    }
   }
 
   public FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert) {
@@ -38,8 +38,9 @@ public class LocalFileStore extends CommonFileStore {
     long startTime = System.nanoTime();
 
     // clear the database first
-    lookupTable.deleteAll();
+    clearRuleMappings();
     fhirResources.deleteAll();
+    cqlRuleCache.clear();
 
     String path = config.getLocalDb().getPath();
     logger.info("LocalFileStore::reload(): " + path);
@@ -62,6 +63,8 @@ public class LocalFileStore extends CommonFileStore {
       System.exit(1);
     }
 
+    publishRuleMappings();
+
     long endTime = System.nanoTime();
     long timeElapsed = endTime - startTime;
     float seconds = (float)timeElapsed / (float)1000000000;
@@ -72,16 +75,19 @@ public class LocalFileStore extends CommonFileStore {
   public CqlRule getCqlRule(String topic, String fhirVersion) {
     logger.info("LocalFileStore::getCqlRule(): " + topic + "/" + fhirVersion);
 
-    // load CQL files needed for the CRD Rule
+    // load CQL files needed for the CRD Rule, along with any ELM precompiled from them
     HashMap<String, byte[]> cqlFiles = new HashMap<>();
+    HashMap<String, byte[]> elmFiles = new HashMap<>();
     String localPath = config.getLocalDb().getPath();
     String examplesPath = config.getLocalDb().getExamplesPath();
 
     String mainCqlLibraryName = topic + "Rule";
+    String mainCqlPath = localPath;
     File mainCqlFile = findFile(localPath, topic, fhirVersion, mainCqlLibraryName, FileStore.CQL_EXTENSION);
 
     // look for the main cql file in the examples path as well
     if (mainCqlFile == null) {
+      mainCqlPath = examplesPath;
       mainCqlFile = findFile(examplesPath, topic, fhirVersion, mainCqlLibraryName, FileStore.CQL_EXTENSION);
     }
     if (mainCqlFile == null) {
@@ -90,15 +96,18 @@ public class LocalFileStore extends CommonFileStore {
       try {
         cqlFiles.put(mainCqlFile.getName(), Files.readAllBytes(mainCqlFile.toPath()));
         logger.info("LocalFileStore::getCqlRule(): added mainCqlFile: " + mainCqlFile.toPath());
+        readElmFiles(mainCqlPath, mainCqlFile, elmFiles);
       } catch (IOException e) {
         logger.warn("LocalFileStore::getCqlRule(): failed to open main cql file: " + e.getMessage());
       }
     }
 
+    String helperCqlPath = localPath;
     File helperCqlFile = findFile(localPath, FileStore.SHARED_TOPIC, fhirVersion, FileStore.FHIR_HELPERS_FILENAME, FileStore.CQL_EXTENSION);
 
     // look for the helper cql file in the examples path as well
     if (helperCqlFile == null) {
+      helperCqlPath = examplesPath;
       helperCqlFile = findFile(examplesPath, FileStore.SHARED_TOPIC, fhirVersion, FileStore.FHIR_HELPERS_FILENAME, FileStore.CQL_EXTENSION);
     }
     if (helperCqlFile == null) {
@@ -107,12 +116,13 @@ public class LocalFileStore extends CommonFileStore {
       try {
         cqlFiles.put(helperCqlFile.getName(), Files.readAllBytes(helperCqlFile.toPath()));
         logger.info("LocalFileStore::getCqlRule(): added helperCqlFile: " + helperCqlFile.toPath());
+        readElmFiles(helperCqlPath, helperCqlFile, elmFiles);
       } catch (IOException e) {
         logger.warn("LocalFileStore::getCqlRule(): failed to open file FHIR helper cql file: " + e.getMessage());
       }
     }
 
-    return new CqlRule(mainCqlLibraryName, cqlFiles, fhirVersion);
+    return new CqlRule(mainCqlLibraryName, cqlFiles, elmFiles, fhirVersion);
   }
 
   public FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert) {
@@ -5,7 +5,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.hl7.davinci.endpoint.database.FhirResource;
 import org.hl7.davinci.endpoint.database.FhirResourceCriteria;
@@ -175,6 +178,49 @@ public class ValueSetCache {
     }
   }
 
+  /**
+   * Fetch a ValueSet, as fetchValueSet does, and return the codes it holds from a single code system. The codes
+   * are taken from the expansion and from concepts listed directly in the compose.
+   * @param oid The VSAC OID of the ValueSet to fetch.
+   * @param codeSystem The code system url to take the codes from.
+   * @return the codes, empty if the ValueSet could not be fetched.
+   */
+  public Set<String> getValueSetCodes(String oid, String codeSystem) {
+    Set<String> codes = new LinkedHashSet<>();
+    if (!this.fetchValueSet(oid)) {
+      return codes;
+    }
+
+    ValueSet valueSet;
+    try (InputStream inputStream = new FileInputStream(this.pathForOID(oid))) {
+      valueSet = (ValueSet) this.fhirContext.newJsonParser().parseResource(inputStream);
+    } catch (IOException | DataFormatException e) {
+      logger.error("            ValueSet (" + oid + ") could not be read from cache dir: " + e.getMessage());
+      return codes;
+    }
+
+    addExpansionCodes(valueSet.getExpansion().getContains(), codeSystem, codes);
+    for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+      if (codeSystem.equals(include.getSystem())) {
+        for (ValueSet.ConceptReferenceComponent concept : include.getConcept()) {
+          codes.add(concept.getCode());
+        }
+      }
+    }
+    logger.info("            ValueSet (" + oid + ") has " + codes.size() + " codes from " + codeSystem);
+    return codes;
+  }
+
+  private void addExpansionCodes(List<ValueSet.ValueSetExpansionContainsComponent> contains, String codeSystem,
+      Set<String> codes) {
+    for (ValueSet.ValueSetExpansionContainsComponent concept : contains) {
+      if (codeSystem.equals(concept.getSystem()) && concept.hasCode()) {
+        codes.add(concept.getCode());
+      }
+      addExpansionCodes(concept.getContains(), codeSystem, codes);
+    }
+  }
+
   /**
    * Fetches a ValueSet already in the cache dir and adds it to the FhirResourceRepository.
    * 
@@ -0,0 +1,117 @@
+package org.hl7.davinci.endpoint.cdshooks.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.davinci.endpoint.components.CqlEvaluationExecutor;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.endpoint.cql.CqlEvaluationTimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class CqlEvaluationExecutorTest {
+
+  private CqlEvaluationExecutor executor;
+
+  private CqlEvaluationExecutor start(int threads, long topicTimeoutMs, long requestTimeoutMs) {
+    YamlConfig config = new YamlConfig();
+    config.setCqlEvaluationThreads(threads);
+    config.setCqlTopicTimeoutMs(topicTimeoutMs);
+    config.setCqlRequestTimeoutMs(requestTimeoutMs);
+    executor = new CqlEvaluationExecutor();
+    ReflectionTestUtils.setField(executor, "myConfig", config);
+    executor.start();
+    return executor;
+  }
+
+  @AfterEach
+  public void stop() {
+    if (executor != null) {
+      executor.stop();
+    }
+  }
+
+  @Test
+  public void testResultsInOrder() {
+    start(4, 0, 0);
+    List<String> results = executor.evaluateAll(Arrays.asList("a", "b", "c"),
+        (item, deadline) -> item.toUpperCase(), item -> "fallback");
+    assertEquals(Arrays.asList("A", "B", "C"), results);
+  }
+
+  @Test
+  public void testSingleItemTimesOutToFallback() {
+    start(1, 100, 0);
+    List<String> results = executor.evaluateAll(Collections.singletonList("slow"),
+        (item, deadline) -> sleep(5000), item -> "fallback");
+    assertEquals(Collections.singletonList("fallback"), results);
+  }
+
+  @Test
+  public void testRequestTimeoutCapsEveryItem() {
+    start(2, 0, 100);
+    long start = System.currentTimeMillis();
+    List<String> results = executor.evaluateAll(Arrays.asList("fast", "slow"),
+        (item, deadline) -> item.equals("fast") ? item : sleep(5000), item -> "fallback");
+    assertEquals(Arrays.asList("fast", "fallback"), results);
+    assertEquals(true, System.currentTimeMillis() - start < 5000);
+  }
+
+  @Test
+  public void testTimeoutExceptionFromEvaluatorFallsBack() {
+    start(2, 0, 0);
+    List<String> results = executor.evaluateAll(Arrays.asList("ok", "late"),
+        (item, deadline) -> {
+          if (item.equals("late")) {
+            throw new CqlEvaluationTimeoutException("deadline passed");
+          }
+          return item;
+        }, item -> "fallback");
+    assertEquals(Arrays.asList("ok", "fallback"), results);
+  }
+
+  @Test
+  public void testFullQueueFallsBack() {
+    start(1, 0, 0);
+    // one item runs, 16 wait in the queue and the last does not fit
+    List<Integer> items = new ArrayList<>();
+    for (int i = 0; i < 18; i++) {
+      items.add(i);
+    }
+    CountDownLatch release = new CountDownLatch(1);
+    Thread releaser = new Thread(() -> {
+      sleep(500);
+      release.countDown();
+    });
+    releaser.start();
+
+    List<String> results = executor.evaluateAll(items, (item, deadline) -> {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "done";
+    }, item -> "fallback");
+
+    assertEquals("done", results.get(0));
+    assertEquals("done", results.get(16));
+    assertEquals("fallback", results.get(17));
+  }
+
+  private static String sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return "slept";
+  }
+}
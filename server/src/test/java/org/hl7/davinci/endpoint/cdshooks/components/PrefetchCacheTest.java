@@ -0,0 +1,125 @@
+package org.hl7.davinci.endpoint.cdshooks.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Calendar;
+
+import org.cdshooks.FhirAuthorization;
+import org.hl7.davinci.endpoint.components.PrefetchCache;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.r4.CrdRequestCreator;
+import org.hl7.davinci.r4.crdhook.ordersign.OrderSignRequest;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PrefetchCacheTest {
+
+  private static final String FHIR_SERVER = "http://ehr.example.org/fhir";
+  private static final String QUERY = "DeviceRequest?_id=1";
+
+  private PrefetchCache cache;
+
+  @BeforeEach
+  public void setUp() {
+    cache = cache(60000, 100);
+  }
+
+  private static PrefetchCache cache(long ttlMs, int size) {
+    YamlConfig config = new YamlConfig();
+    config.setPrefetchCacheTtlMs(ttlMs);
+    config.setPrefetchCacheSize(size);
+    PrefetchCache cache = new PrefetchCache();
+    ReflectionTestUtils.setField(cache, "myConfig", config);
+    cache.start();
+    return cache;
+  }
+
+  private static OrderSignRequest request(String fhirServer, String subject, String accessToken) {
+    Calendar cal = Calendar.getInstance();
+    cal.set(1970, Calendar.JULY, 4);
+    OrderSignRequest request = CrdRequestCreator.createOrderSignRequest(Enumerations.AdministrativeGender.MALE,
+        cal.getTime(), "MA", "MA");
+    request.setFhirServer(fhirServer);
+    if (subject != null || accessToken != null) {
+      FhirAuthorization authorization = new FhirAuthorization();
+      authorization.setSubject(subject);
+      authorization.setAccessToken(accessToken);
+      request.setFhirAuthorization(authorization);
+    }
+    return request;
+  }
+
+  private static Bundle result(String id) {
+    Bundle bundle = new Bundle();
+    bundle.setId(id);
+    bundle.setType(Bundle.BundleType.SEARCHSET);
+    return bundle;
+  }
+
+  @Test
+  public void testHitWithSameToken() {
+    cache.put(request(FHIR_SERVER, "user", "token-a"), QUERY, result("a"));
+    Bundle cached = (Bundle) cache.get(request(FHIR_SERVER, "user", "token-a"), QUERY);
+    assertNotNull(cached);
+    assertEquals("a", cached.getIdElement().getIdPart());
+  }
+
+  @Test
+  public void testMissWithOtherToken() {
+    cache.put(request(FHIR_SERVER, "user", "token-a"), QUERY, result("a"));
+    assertNull(cache.get(request(FHIR_SERVER, "user", "token-b"), QUERY));
+    assertNull(cache.get(request(FHIR_SERVER, "user", null), QUERY));
+    assertNull(cache.get(request(FHIR_SERVER, null, null), QUERY));
+  }
+
+  @Test
+  public void testMissWithOtherSubject() {
+    cache.put(request(FHIR_SERVER, "user", "token-a"), QUERY, result("a"));
+    assertNull(cache.get(request(FHIR_SERVER, "other", "token-a"), QUERY));
+  }
+
+  @Test
+  public void testMissWithOtherServerOrQuery() {
+    cache.put(request(FHIR_SERVER, "user", "token-a"), QUERY, result("a"));
+    assertNull(cache.get(request("http://other.example.org/fhir", "user", "token-a"), QUERY));
+    assertNull(cache.get(request(FHIR_SERVER, "user", "token-a"), "DeviceRequest?_id=2"));
+  }
+
+  @Test
+  public void testEachTokenKeepsItsOwnResult() {
+    cache.put(request(FHIR_SERVER, "user", "token-a"), QUERY, result("a"));
+    cache.put(request(FHIR_SERVER, "user", "token-b"), QUERY, result("b"));
+    cache.put(request(FHIR_SERVER, null, null), QUERY, result("none"));
+
+    assertEquals("a", cache.get(request(FHIR_SERVER, "user", "token-a"), QUERY).getIdElement().getIdPart());
+    assertEquals("b", cache.get(request(FHIR_SERVER, "user", "token-b"), QUERY).getIdElement().getIdPart());
+    assertEquals("none", cache.get(request(FHIR_SERVER, null, null), QUERY).getIdElement().getIdPart());
+  }
+
+  @Test
+  public void testResultsAreCopied() {
+    Bundle put = result("a");
+    cache.put(request(FHIR_SERVER, "user", "token-a"), QUERY, put);
+    put.setTotal(5);
+
+    Bundle got = (Bundle) cache.get(request(FHIR_SERVER, "user", "token-a"), QUERY);
+    assertFalse(got.hasTotal());
+    got.setTotal(7);
+
+    assertFalse(((Bundle) cache.get(request(FHIR_SERVER, "user", "token-a"), QUERY)).hasTotal());
+  }
+
+  @Test
+  public void testDisabled() {
+    PrefetchCache disabled = cache(0, 100);
+    assertFalse(disabled.isEnabled());
+    disabled.put(request(FHIR_SERVER, "user", "token-a"), QUERY, result("a"));
+    assertNull(disabled.get(request(FHIR_SERVER, "user", "token-a"), QUERY));
+  }
+}
@@ -0,0 +1,232 @@
+package org.hl7.davinci.endpoint.cdshooks.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import org.hl7.davinci.PrefetchTemplateElement;
+import org.hl7.davinci.endpoint.cdshooks.services.crd.CdsService;
+import org.hl7.davinci.endpoint.components.OutboundHttpClient;
+import org.hl7.davinci.endpoint.components.PrefetchHydrator;
+import org.hl7.davinci.endpoint.components.PrefetchQueryExecutor;
+import org.hl7.davinci.endpoint.components.PrefetchTemplate;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.r4.CrdRequestCreator;
+import org.hl7.davinci.r4.FhirComponents;
+import org.hl7.davinci.r4.crdhook.CrdPrefetch;
+import org.hl7.davinci.r4.crdhook.ordersign.OrderSignRequest;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+public class PrefetchHydratorTest {
+
+  private static final String FHIR_SERVER = "http://ehr.example.org/fhir";
+
+  private static final List<PrefetchTemplateElement> ELEMENTS = Arrays.asList(
+      new PrefetchTemplateElement("deviceRequestBundle", "DeviceRequest?_id=1", Bundle.class),
+      new PrefetchTemplateElement("serviceRequestBundle", "ServiceRequest?_id=2", Bundle.class),
+      new PrefetchTemplateElement("medicationRequestBundle", "MedicationRequest?_id=3", Bundle.class));
+
+  private final FhirComponents fhirComponents = new FhirComponents();
+  private PrefetchQueryExecutor executor;
+  private FakeRestTemplate restTemplate;
+  private OrderSignRequest request;
+
+  /**
+   * Answers each exchange with the function given to it, and keeps the method and url of every call.
+   */
+  private static class FakeRestTemplate extends RestTemplate {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    BiFunction<HttpMethod, String, String> answer;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
+                                          Class<T> responseType, Object... uriVariables) {
+      calls.add(method + " " + url);
+      return (ResponseEntity<T>) new ResponseEntity<>(answer.apply(method, url), HttpStatus.OK);
+    }
+  }
+
+  @BeforeEach
+  public void setUp() {
+    YamlConfig config = new YamlConfig();
+    config.setPrefetchThreads(4);
+    config.setPrefetchTimeoutMs(500);
+    executor = new PrefetchQueryExecutor();
+    ReflectionTestUtils.setField(executor, "myConfig", config);
+    executor.start();
+
+    restTemplate = new FakeRestTemplate();
+
+    Calendar cal = Calendar.getInstance();
+    cal.set(1970, Calendar.JULY, 4);
+    request = CrdRequestCreator.createOrderSignRequest(Enumerations.AdministrativeGender.MALE, cal.getTime(),
+        "MA", "MA");
+    request.setPrefetch(new CrdPrefetch());
+    request.setFhirServer(FHIR_SERVER);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.stop();
+  }
+
+  private PrefetchHydrator hydrator(boolean batch) {
+    CdsService<?> cdsService = mock(CdsService.class);
+    when(cdsService.getPrefetchElements()).thenReturn(ELEMENTS);
+    for (PrefetchTemplateElement element : ELEMENTS) {
+      when(cdsService.getPrefetchTemplate(element.getKey())).thenReturn(new PrefetchTemplate(element.getQuery()));
+    }
+    OutboundHttpClient httpClient = mock(OutboundHttpClient.class);
+    when(httpClient.getRestTemplate()).thenReturn(restTemplate);
+
+    PrefetchHydrator hydrator = new PrefetchHydrator(cdsService, request, fhirComponents, httpClient, executor);
+    hydrator.setBatch(batch);
+    return hydrator;
+  }
+
+  /**
+   * @return a search result bundle, its id names the query it answers
+   */
+  private static Bundle searchResult(String query) {
+    Bundle bundle = new Bundle();
+    bundle.setId(query.substring(0, query.indexOf('?')));
+    bundle.setType(BundleType.SEARCHSET);
+    return bundle;
+  }
+
+  private String encode(Bundle bundle) {
+    return fhirComponents.getFhirContext().newJsonParser().encodeResourceToString(bundle);
+  }
+
+  /**
+   * @return a batch-response that answers every query but the failed one
+   */
+  private String batchResponse(String failedQuery) {
+    Bundle response = new Bundle();
+    response.setType(BundleType.BATCHRESPONSE);
+    for (PrefetchTemplateElement element : ELEMENTS) {
+      Bundle.BundleEntryComponent entry = response.addEntry();
+      if (element.getQuery().equals(failedQuery)) {
+        entry.getResponse().setStatus("404 Not Found");
+      } else {
+        entry.setResource(searchResult(element.getQuery()));
+        entry.getResponse().setStatus("200 OK");
+      }
+    }
+    return encode(response);
+  }
+
+  private String answerQuery(String url) {
+    return encode(searchResult(url.substring(FHIR_SERVER.length() + 1)));
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void assertAllFilled() {
+    CrdPrefetch prefetch = (CrdPrefetch) request.getPrefetch();
+    assertEquals("DeviceRequest", prefetch.getDeviceRequestBundle().getIdElement().getIdPart());
+    assertEquals("ServiceRequest", prefetch.getServiceRequestBundle().getIdElement().getIdPart());
+    assertEquals("MedicationRequest", prefetch.getMedicationRequestBundle().getIdElement().getIdPart());
+  }
+
+  @Test
+  public void testQueriesSentOnTheirOwn() {
+    restTemplate.answer = (method, url) -> answerQuery(url);
+    PrefetchHydrator hydrator = hydrator(false);
+    hydrator.hydrate();
+    assertAllFilled();
+    assertEquals(3, restTemplate.calls.size());
+    assertTrue(hydrator.getTimedOutKeys().isEmpty());
+  }
+
+  @Test
+  public void testBatchSplitsFailedEntries() {
+    restTemplate.answer = (method, url) -> method == HttpMethod.POST
+        ? batchResponse("ServiceRequest?_id=2") : answerQuery(url);
+    PrefetchHydrator hydrator = hydrator(true);
+    hydrator.hydrate();
+    assertAllFilled();
+    // one batch, then the entry the batch did not answer on its own
+    assertEquals(Arrays.asList("POST " + FHIR_SERVER + "/", "GET " + FHIR_SERVER + "/ServiceRequest?_id=2"),
+        restTemplate.calls);
+    assertTrue(hydrator.getTimedOutKeys().isEmpty());
+  }
+
+  @Test
+  public void testBatchNotSupportedFallsBack() {
+    restTemplate.answer = (method, url) -> {
+      if (method == HttpMethod.POST) {
+        throw new RestClientException("405 Method Not Allowed");
+      }
+      return answerQuery(url);
+    };
+    PrefetchHydrator hydrator = hydrator(true);
+    hydrator.hydrate();
+    assertAllFilled();
+    assertEquals(4, restTemplate.calls.size());
+    assertTrue(hydrator.getTimedOutKeys().isEmpty());
+  }
+
+  @Test
+  public void testBatchTimesOut() {
+    restTemplate.answer = (method, url) -> {
+      sleep(5000);
+      return batchResponse(null);
+    };
+    PrefetchHydrator hydrator = hydrator(true);
+    long start = System.currentTimeMillis();
+    hydrator.hydrate();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    // every key of the batch timed out, and none were sent again on their own
+    assertEquals(Arrays.asList("deviceRequestBundle", "serviceRequestBundle", "medicationRequestBundle"),
+        hydrator.getTimedOutKeys());
+    assertEquals(1, restTemplate.calls.size());
+    CrdPrefetch prefetch = (CrdPrefetch) request.getPrefetch();
+    assertNull(prefetch.getDeviceRequestBundle());
+  }
+
+  @Test
+  public void testQueryTimesOut() {
+    restTemplate.answer = (method, url) -> {
+      if (url.contains("ServiceRequest")) {
+        sleep(5000);
+      }
+      return answerQuery(url);
+    };
+    PrefetchHydrator hydrator = hydrator(false);
+    hydrator.hydrate();
+    assertEquals(Collections.singletonList("serviceRequestBundle"), hydrator.getTimedOutKeys());
+    CrdPrefetch prefetch = (CrdPrefetch) request.getPrefetch();
+    assertEquals("DeviceRequest", prefetch.getDeviceRequestBundle().getIdElement().getIdPart());
+    assertNull(prefetch.getServiceRequestBundle());
+  }
+}
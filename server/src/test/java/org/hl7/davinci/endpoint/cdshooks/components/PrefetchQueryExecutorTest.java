@@ -0,0 +1,78 @@
+package org.hl7.davinci.endpoint.cdshooks.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.davinci.endpoint.components.PrefetchQueryExecutor;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PrefetchQueryExecutorTest {
+
+  private PrefetchQueryExecutor executor;
+
+  private PrefetchQueryExecutor start(int threads, long timeoutMs) {
+    YamlConfig config = new YamlConfig();
+    config.setPrefetchThreads(threads);
+    config.setPrefetchTimeoutMs(timeoutMs);
+    executor = new PrefetchQueryExecutor();
+    ReflectionTestUtils.setField(executor, "myConfig", config);
+    executor.start();
+    return executor;
+  }
+
+  @AfterEach
+  public void stop() {
+    if (executor != null) {
+      executor.stop();
+    }
+  }
+
+  private static String slow(String query) {
+    try {
+      Thread.sleep(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return query;
+  }
+
+  @Test
+  public void testResultsInOrder() {
+    start(4, 0);
+    List<String> timedOut = new ArrayList<>();
+    List<String> results = executor.fetchAll(Arrays.asList("a", "b", "c"), String::toUpperCase, timedOut);
+    assertEquals(Arrays.asList("A", "B", "C"), results);
+    assertTrue(timedOut.isEmpty());
+  }
+
+  @Test
+  public void testSingleQueryHeldToDeadline() {
+    start(1, 100);
+    List<String> timedOut = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    List<String> results = executor.fetchAll(Collections.singletonList("slow"),
+        PrefetchQueryExecutorTest::slow, timedOut);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(Collections.singletonList(null), results);
+    assertEquals(Collections.singletonList("slow"), timedOut);
+  }
+
+  @Test
+  public void testSharedDeadline() {
+    start(2, 0);
+    List<String> timedOut = new ArrayList<>();
+    // a deadline that already passed, as when an earlier step used up the time
+    List<String> results = executor.fetchAll(Arrays.asList("slow", "also slow"), PrefetchQueryExecutorTest::slow,
+        timedOut, System.currentTimeMillis() - 1);
+    assertEquals(Arrays.asList(null, null), results);
+    assertEquals(Arrays.asList("slow", "also slow"), timedOut);
+  }
+}
@@ -0,0 +1,94 @@
+package org.hl7.davinci.endpoint.cdshooks.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.davinci.FatalRequestIncompleteException;
+import org.hl7.davinci.endpoint.components.PrefetchTemplate;
+import org.hl7.fhir.r4.model.DeviceRequest;
+import org.junit.jupiter.api.Test;
+
+public class PrefetchTemplateTest {
+
+  private static DeviceRequest deviceRequest(String id) {
+    DeviceRequest deviceRequest = new DeviceRequest();
+    deviceRequest.setId(id);
+    return deviceRequest;
+  }
+
+  private static Map<String, Object> data(Object deviceRequests, Object patientId) {
+    Map<String, Object> draftOrders = new HashMap<>();
+    draftOrders.put("DeviceRequest", deviceRequests);
+    Map<String, Object> context = new HashMap<>();
+    context.put("draftOrders", draftOrders);
+    context.put("patientId", patientId);
+    Map<String, Object> data = new HashMap<>();
+    data.put("context", context);
+    return data;
+  }
+
+  @Test
+  public void testSingleValue() {
+    PrefetchTemplate template = new PrefetchTemplate("DeviceRequest?_id={{context.draftOrders.DeviceRequest.id}}");
+    assertEquals("DeviceRequest?_id=123",
+        template.resolve(data(Collections.singletonList(deviceRequest("123")), "pat1")));
+  }
+
+  @Test
+  public void testMultipleValues() {
+    PrefetchTemplate template = new PrefetchTemplate("DeviceRequest?_id={{context.draftOrders.DeviceRequest.id}}");
+    assertEquals("DeviceRequest?_id=1,2,3", template.resolve(data(
+        Arrays.asList(deviceRequest("1"), deviceRequest("2"), deviceRequest("3")), "pat1")));
+  }
+
+  @Test
+  public void testSeveralTokens() {
+    PrefetchTemplate template = new PrefetchTemplate("DeviceRequest?_id={{context.draftOrders.DeviceRequest.id}}"
+        + "&subject=Patient/{{context.patientId}}&_include=DeviceRequest:performer");
+    assertEquals("DeviceRequest?_id=1,2&subject=Patient/pat1&_include=DeviceRequest:performer",
+        template.resolve(data(Arrays.asList(deviceRequest("1"), deviceRequest("2")), "pat1")));
+  }
+
+  @Test
+  public void testMissingValue() {
+    PrefetchTemplate template = new PrefetchTemplate("DeviceRequest?_id={{context.draftOrders.DeviceRequest.id}}"
+        + "&subject=Patient/{{context.patientId}}");
+    // no value at the end of the path
+    assertNull(template.resolve(data(Collections.singletonList(deviceRequest("1")), null)));
+    // no entries in the list
+    assertNull(template.resolve(data(Collections.emptyList(), "pat1")));
+    // no such path
+    assertNull(new PrefetchTemplate("Patient/{{context.userId}}").resolve(data(null, "pat1")));
+    assertNull(new PrefetchTemplate("Patient/{{context.patientId}}").resolve(new HashMap<>()));
+  }
+
+  @Test
+  public void testDollarInValues() {
+    PrefetchTemplate template = new PrefetchTemplate("Patient?identifier={{context.patientId}}&_count=1");
+    assertEquals("Patient?identifier=a$1\\b$&_count=1", template.resolve(data(null, "a$1\\b$")));
+    assertEquals("Patient?identifier=${context.patientId}&_count=1",
+        template.resolve(data(null, "${context.patientId}")));
+  }
+
+  @Test
+  public void testNoTokens() {
+    PrefetchTemplate template = new PrefetchTemplate("Coverage?status=active");
+    assertEquals("Coverage?status=active", template.resolve(data(null, null)));
+    // an unclosed token is left as it is
+    assertEquals("Patient/{{context.patientId", new PrefetchTemplate("Patient/{{context.patientId").resolve(
+        data(null, "pat1")));
+  }
+
+  @Test
+  public void testResourceWithoutId() {
+    PrefetchTemplate template = new PrefetchTemplate("DeviceRequest?_id={{context.draftOrders.DeviceRequest.id}}");
+    assertThrows(FatalRequestIncompleteException.class,
+        () -> template.resolve(data(Collections.singletonList(new DeviceRequest()), "pat1")));
+  }
+}
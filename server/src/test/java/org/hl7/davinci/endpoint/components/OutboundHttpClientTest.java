@@ -0,0 +1,156 @@
+package org.hl7.davinci.endpoint.components;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestClientException;
+
+public class OutboundHttpClientTest {
+
+  private static final int MAX_RESPONSE_BYTES = 1000;
+  private static final int READ_TIMEOUT_MS = 300;
+  private static final int CONNECT_TIMEOUT_MS = 300;
+  private static final int SLOW_RESPONSE_MS = 3000;
+
+  private WireMockServer server;
+  private OutboundHttpClient httpClient;
+
+  @BeforeEach
+  public void setUp() {
+    server = new WireMockServer(options().dynamicPort());
+    server.start();
+
+    YamlConfig config = new YamlConfig();
+    config.setHttpMaxResponseBytes(MAX_RESPONSE_BYTES);
+    config.setHttpReadTimeoutMs(READ_TIMEOUT_MS);
+    config.setHttpConnectTimeoutMs(CONNECT_TIMEOUT_MS);
+    config.setHttpPoolMaxTotal(10);
+    config.setHttpPoolMaxPerRoute(1);
+    httpClient = new OutboundHttpClient();
+    ReflectionTestUtils.setField(httpClient, "myConfig", config);
+    httpClient.start();
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    httpClient.stop();
+    server.stop();
+  }
+
+  private String url(String path) {
+    return "http://localhost:" + server.port() + path;
+  }
+
+  private void stubBody(String path, String body) {
+    server.stubFor(get(urlEqualTo(path)).willReturn(aResponse().withStatus(200).withBody(body)));
+  }
+
+  @Test
+  public void testResponseUnderLimit() {
+    String body = StringUtils.repeat("a", MAX_RESPONSE_BYTES);
+    stubBody("/small", body);
+    assertEquals(body, httpClient.getRestTemplate().getForObject(url("/small"), String.class));
+  }
+
+  @Test
+  public void testResponseOverLimit() {
+    stubBody("/large", StringUtils.repeat("a", MAX_RESPONSE_BYTES + 1));
+    assertThrows(RestClientException.class,
+        () -> httpClient.getRestTemplate().getForObject(url("/large"), String.class));
+  }
+
+  @Test
+  public void testCompressedResponseOverLimit() {
+    // compresses to well under the limit, it is the decompressed size that counts
+    server.stubFor(get(urlEqualTo("/gzip")).willReturn(aResponse().withStatus(200)
+        .withBody(StringUtils.repeat("a", MAX_RESPONSE_BYTES * 10))));
+    assertThrows(RestClientException.class,
+        () -> httpClient.getRestTemplate().getForObject(url("/gzip"), String.class));
+  }
+
+  @Test
+  public void testSharedHttpClientHasTheLimit() throws IOException {
+    // the HttpClient is used directly by the CQL retrieves
+    stubBody("/large", StringUtils.repeat("a", MAX_RESPONSE_BYTES + 1));
+    try (CloseableHttpResponse response = httpClient.getHttpClient().execute(new HttpGet(url("/large")))) {
+      assertThrows(IOException.class, () -> EntityUtils.toByteArray(response.getEntity()));
+    }
+  }
+
+  @Test
+  public void testReadTimeout() {
+    server.stubFor(get(urlEqualTo("/slow")).willReturn(aResponse().withStatus(200).withBody("late")
+        .withFixedDelay(SLOW_RESPONSE_MS)));
+    long start = System.currentTimeMillis();
+    assertThrows(RestClientException.class,
+        () -> httpClient.getRestTemplate().getForObject(url("/slow"), String.class));
+    assertTrue(System.currentTimeMillis() - start < SLOW_RESPONSE_MS);
+  }
+
+  @Test
+  public void testPoolWaitTimeout() throws Exception {
+    // the only connection to the server is held by a slow call, the next call gives up waiting for it
+    server.stubFor(get(urlEqualTo("/slow")).willReturn(aResponse().withStatus(200).withBody("late")
+        .withFixedDelay(SLOW_RESPONSE_MS)));
+    stubBody("/fast", "fast");
+    CompletableFuture<Void> slow = CompletableFuture.runAsync(() -> {
+      try {
+        httpClient.getRestTemplate().getForObject(url("/slow"), String.class);
+      } catch (RestClientException e) {
+        // times out reading
+      }
+    });
+    // let the slow call take the connection
+    TimeUnit.MILLISECONDS.sleep(100);
+
+    long start = System.currentTimeMillis();
+    assertThrows(RestClientException.class,
+        () -> httpClient.getRestTemplate().getForObject(url("/fast"), String.class));
+    assertTrue(System.currentTimeMillis() - start < SLOW_RESPONSE_MS);
+    slow.get(SLOW_RESPONSE_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testCookiesAreNotSentBack() {
+    server.stubFor(get(urlEqualTo("/login")).willReturn(aResponse().withStatus(200).withBody("ok")
+        .withHeader("Set-Cookie", "SESSION=user-a; Path=/")));
+    stubBody("/data", "data");
+
+    httpClient.getRestTemplate().getForObject(url("/login"), String.class);
+    httpClient.getRestTemplate().getForObject(url("/data"), String.class);
+    try (CloseableHttpResponse response = httpClient.getHttpClient().execute(new HttpGet(url("/data")))) {
+      EntityUtils.consume(response.getEntity());
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+
+    List<LoggedRequest> requests = server.findAll(getRequestedFor(urlEqualTo("/data")));
+    assertEquals(2, requests.size());
+    for (LoggedRequest request : requests) {
+      assertFalse(request.containsHeader("Cookie"));
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.hl7.davinci.endpoint.controllers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.endpoint.database.RequestLog;
+import org.hl7.davinci.endpoint.database.RequestRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class DataControllerTest {
+
+  private RequestRepository requestRepository;
+  private DataController controller;
+
+  @BeforeEach
+  public void setUp() {
+    requestRepository = mock(RequestRepository.class);
+    when(requestRepository.findNewest(any())).thenReturn(Collections.singletonList(new RequestLog()));
+
+    YamlConfig config = new YamlConfig();
+    config.setRequestLogPageSize(50);
+    controller = new DataController(requestRepository);
+    ReflectionTestUtils.setField(controller, "myConfig", config);
+  }
+
+  private Pageable requestedPage(Integer page, Integer size) {
+    controller.showAllLogs(page, size);
+    ArgumentCaptor<Pageable> pageable = ArgumentCaptor.forClass(Pageable.class);
+    verify(requestRepository).findNewest(pageable.capture());
+    return pageable.getValue();
+  }
+
+  @Test
+  public void testNewestPageByDefault() {
+    assertEquals(PageRequest.of(0, 50), requestedPage(0, null));
+    verify(requestRepository, never()).findAll();
+  }
+
+  @Test
+  public void testSmallerPage() {
+    assertEquals(PageRequest.of(3, 10), requestedPage(3, 10));
+  }
+
+  @Test
+  public void testPageSizeIsCapped() {
+    assertEquals(PageRequest.of(1, 50), requestedPage(1, 100000));
+  }
+
+  @Test
+  public void testOutOfRangeParameters() {
+    assertEquals(PageRequest.of(0, 1), requestedPage(-2, -5));
+  }
+}
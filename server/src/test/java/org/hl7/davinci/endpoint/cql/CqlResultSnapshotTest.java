@@ -0,0 +1,85 @@
+package org.hl7.davinci.endpoint.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+public class CqlResultSnapshotTest {
+
+  private static final String CQL = "library SnapshotTest version '1.0.0'\n"
+      + "define \"Answer\": 6 * 7\n"
+      + "define \"Applies\": true\n"
+      + "define \"Name\": 'snapshot'\n";
+
+  private static Context newContext() throws Exception {
+    try (CqlRuntime.Translation translation = CqlRuntime.openTranslation(CQL)) {
+      Library library = CqlExecution.translate(CQL, translation.getLibraryManager(),
+          translation.getModelManager());
+      return new Context(library);
+    }
+  }
+
+  @Test
+  public void testDefines() throws Exception {
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext());
+    assertEquals(42, snapshot.get("Answer"));
+    assertTrue(snapshot.isTrue("Applies"));
+    assertEquals("snapshot", snapshot.getString("Name"));
+  }
+
+  @Test
+  public void testMissingDefineIsNull() throws Exception {
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext());
+    assertFalse(snapshot.has("Missing"));
+    assertNull(snapshot.get("Missing"));
+    assertNull(snapshot.getBoolean("Missing"));
+    assertFalse(snapshot.isTrue("Missing"));
+  }
+
+  @Test
+  public void testWrongTypeIsNull() throws Exception {
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext());
+    assertNull(snapshot.getBoolean("Name"));
+    assertNull(snapshot.getCode("Answer"));
+  }
+
+  @Test
+  public void testDeadlinePassed() throws Exception {
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext(), System.currentTimeMillis() - 1);
+    assertTrue(snapshot.has("Answer"));
+    assertThrows(CqlEvaluationTimeoutException.class, () -> snapshot.get("Answer"));
+  }
+
+  @Test
+  public void testMissingDefineIgnoresDeadline() throws Exception {
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext(), System.currentTimeMillis() - 1);
+    assertNull(snapshot.get("Missing"));
+  }
+
+  @Test
+  public void testInterrupted() throws Exception {
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext());
+    Thread.currentThread().interrupt();
+    try {
+      assertThrows(CqlEvaluationTimeoutException.class, () -> snapshot.get("Answer"));
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testResultKeptAfterDeadline() throws Exception {
+    long deadline = System.currentTimeMillis() + 200;
+    CqlResultSnapshot snapshot = new CqlResultSnapshot(newContext(), deadline);
+    assertEquals(42, snapshot.get("Answer"));
+    Thread.sleep(Math.max(0, deadline - System.currentTimeMillis()) + 10);
+    // already evaluated, so it does not need to check the deadline again
+    assertEquals(42, snapshot.get("Answer"));
+  }
+}
@@ -0,0 +1,226 @@
+package org.hl7.davinci.endpoint.cql.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+public class PrefetchRetrieveProviderTest {
+
+  private static final String SNOMED = "http://snomed.info/sct";
+  private static final String ICD10 = "http://hl7.org/fhir/sid/icd-10-cm";
+  private static final String VALUE_SET = "http://cts.nlm.nih.gov/fhir/ValueSet/2.16.840.1.113762.1.4.1";
+
+  /**
+   * Records the data types it is asked for and answers with a single marker.
+   */
+  private static class RecordingRetrieveProvider implements RetrieveProvider {
+    final List<String> retrieved = new ArrayList<>();
+    final Object marker = new Object();
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                                     String templateId, String codePath, Iterable<Code> codes, String valueSet,
+                                     String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+      retrieved.add(dataType + (valueSet != null ? " in " + valueSet : ""));
+      return Collections.singletonList(marker);
+    }
+  }
+
+  private static Bundle bundle(Resource... resources) {
+    Bundle bundle = new Bundle();
+    for (Resource resource : resources) {
+      bundle.addEntry().setResource(resource);
+    }
+    return bundle;
+  }
+
+  private static Condition condition(String id, String patient, Coding... codings) {
+    Condition condition = new Condition();
+    condition.setId(id);
+    condition.setSubject(new Reference("Patient/" + patient));
+    condition.setCode(new CodeableConcept());
+    for (Coding coding : codings) {
+      condition.getCode().addCoding(coding);
+    }
+    return condition;
+  }
+
+  private static ServiceRequest serviceRequest(String id, String authoredOn) {
+    ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setId(id);
+    serviceRequest.setAuthoredOnElement(new DateTimeType(authoredOn));
+    return serviceRequest;
+  }
+
+  private static Encounter encounter(String id, String start, String end) {
+    Encounter encounter = new Encounter();
+    encounter.setId(id);
+    Period period = new Period();
+    if (start != null) {
+      period.setStartElement(new DateTimeType(start));
+    }
+    if (end != null) {
+      period.setEndElement(new DateTimeType(end));
+    }
+    encounter.setPeriod(period);
+    return encounter;
+  }
+
+  private static Code code(String system, String code) {
+    return new Code().withSystem(system).withCode(code);
+  }
+
+  private static Interval year(int year) {
+    return new Interval(new DateTime(OffsetDateTime.of(year, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)), true,
+        new DateTime(OffsetDateTime.of(year, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC)), true);
+  }
+
+  private static List<String> ids(Iterable<Object> results) {
+    List<String> ids = new ArrayList<>();
+    for (Object result : results) {
+      ids.add(((IBaseResource) result).getIdElement().getIdPart());
+    }
+    return ids;
+  }
+
+  private static Iterable<Object> byType(PrefetchRetrieveProvider provider, String dataType) {
+    return provider.retrieve("Patient", null, null, dataType, null, null, null, null, null, null, null, null);
+  }
+
+  private static Iterable<Object> byCodes(PrefetchRetrieveProvider provider, String dataType, Code... codes) {
+    return provider.retrieve("Patient", null, null, dataType, null, "code", Arrays.asList(codes), null, null, null,
+        null, null);
+  }
+
+  private static Iterable<Object> byValueSet(PrefetchRetrieveProvider provider, String dataType) {
+    return provider.retrieve("Patient", null, null, dataType, null, "code", null, VALUE_SET, null, null, null, null);
+  }
+
+  @Test
+  public void testRetrieveByType() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(Arrays.asList(
+        bundle(condition("c1", "p1"), serviceRequest("s1", "2020-05-01")),
+        null,
+        bundle(condition("c2", "p1"))), null);
+
+    assertEquals(Arrays.asList("c1", "c2"), ids(byType(provider, "Condition")));
+    assertEquals(Collections.singletonList("s1"), ids(byType(provider, "ServiceRequest")));
+    assertTrue(ids(byType(provider, "Observation")).isEmpty());
+  }
+
+  @Test
+  public void testSameResourceInSeveralBundlesIsReturnedOnce() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(Arrays.asList(
+        bundle(condition("c1", "p1")), bundle(condition("c1", "p1"), condition("c2", "p1"))), null);
+
+    assertEquals(Arrays.asList("c1", "c2"), ids(byType(provider, "Condition")));
+  }
+
+  @Test
+  public void testTypeNotSentGoesToFallback() {
+    RecordingRetrieveProvider fallback = new RecordingRetrieveProvider();
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(
+        Collections.singletonList(bundle(condition("c1", "p1"))), fallback);
+
+    assertEquals(Collections.singletonList(fallback.marker), byType(provider, "Observation"));
+    assertEquals(Arrays.asList("c1"), ids(byType(provider, "Condition")));
+    assertEquals(Collections.singletonList("Observation"), fallback.retrieved);
+  }
+
+  @Test
+  public void testRetrieveByCode() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(Collections.singletonList(bundle(
+        condition("c1", "p1", new Coding(SNOMED, "111", null)),
+        condition("c2", "p1", new Coding(SNOMED, "222", null), new Coding(ICD10, "E11", null)),
+        condition("c3", "p1", new Coding(ICD10, "111", null)),
+        condition("c4", "p1", new Coding(null, "222", null)))), null);
+
+    // the system has to match when both sides have one
+    assertEquals(Collections.singletonList("c1"), ids(byCodes(provider, "Condition", code(SNOMED, "111"))));
+    assertEquals(Arrays.asList("c1", "c3"), ids(byCodes(provider, "Condition", code(null, "111"))));
+    assertEquals(Arrays.asList("c2", "c4"), ids(byCodes(provider, "Condition", code(SNOMED, "222"))));
+
+    // a resource matching several of the codes is returned once
+    assertEquals(Arrays.asList("c2", "c4", "c1"),
+        ids(byCodes(provider, "Condition", code(SNOMED, "222"), code(ICD10, "E11"), code(SNOMED, "111"))));
+
+    assertTrue(ids(byCodes(provider, "Condition", code(SNOMED, "999"))).isEmpty());
+  }
+
+  @Test
+  public void testRetrieveByContext() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(Collections.singletonList(bundle(
+        condition("c1", "p1"), condition("c2", "p2"))), null);
+
+    assertEquals(Collections.singletonList("c2"), ids(provider.retrieve("Patient", "subject", "p2", "Condition",
+        null, null, null, null, null, null, null, null)));
+    assertEquals(Collections.singletonList("c1"), ids(provider.retrieve("Patient", "subject", "Patient/p1",
+        "Condition", null, null, null, null, null, null, null, null)));
+  }
+
+  @Test
+  public void testRetrieveByDate() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(Collections.singletonList(bundle(
+        serviceRequest("s2019", "2019-06-01"), serviceRequest("s2020", "2020-06-01"),
+        serviceRequest("s2021", "2021-06-01"))), null);
+
+    assertEquals(Collections.singletonList("s2020"), ids(provider.retrieve("Patient", null, null,
+        "ServiceRequest", null, null, null, null, "authoredOn", null, null, year(2020))));
+  }
+
+  @Test
+  public void testRetrieveByPeriod() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(Collections.singletonList(bundle(
+        encounter("before", "2019-01-01", "2019-12-01"),
+        encounter("overlapsStart", "2019-12-01", "2020-01-15"),
+        encounter("inside", "2020-03-01", "2020-03-02"),
+        encounter("openEnded", "2020-11-01", null),
+        encounter("after", "2021-01-02", "2021-02-01"))), null);
+
+    assertEquals(Arrays.asList("overlapsStart", "inside", "openEnded"), ids(provider.retrieve("Patient", null,
+        null, "Encounter", null, null, null, null, "period", null, null, year(2020))));
+  }
+
+  @Test
+  public void testRetrieveByValueSetGoesToFallback() {
+    RecordingRetrieveProvider fallback = new RecordingRetrieveProvider();
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(
+        Collections.singletonList(bundle(condition("c1", "p1", new Coding(SNOMED, "111", null)))), fallback);
+
+    // the Conditions were sent, but can not be filtered by a value set here
+    assertEquals(Collections.singletonList(fallback.marker), byValueSet(provider, "Condition"));
+    assertEquals(Collections.singletonList("Condition in " + VALUE_SET), fallback.retrieved);
+  }
+
+  @Test
+  public void testRetrieveByValueSetWithoutFallback() {
+    PrefetchRetrieveProvider provider = new PrefetchRetrieveProvider(
+        Collections.singletonList(bundle(condition("c1", "p1", new Coding(SNOMED, "111", null)))), null);
+
+    assertTrue(ids(byValueSet(provider, "Condition")).isEmpty());
+    assertTrue(ids(byValueSet(PrefetchRetrieveProvider.empty(), "Condition")).isEmpty());
+  }
+}
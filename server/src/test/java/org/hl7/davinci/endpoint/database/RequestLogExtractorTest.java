@@ -0,0 +1,120 @@
+package org.hl7.davinci.endpoint.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import java.util.Calendar;
+import java.util.List;
+
+import org.cdshooks.CdsRequest;
+import org.hl7.davinci.r4.CrdRequestCreator;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.junit.jupiter.api.Test;
+
+public class RequestLogExtractorTest {
+
+  private static final Coding REQUEST_CODING = new Coding().setCode("E0424")
+      .setSystem("https://bluebutton.cms.gov/resources/codesystem/hcpcs");
+  private static final Coding STATEMENT_CODING = new Coding().setCode("94070")
+      .setSystem("http://www.ama-assn.org/go/cpt");
+
+  /**
+   * The fields as RequestLog.setFromRequest used to read them, with JsonPath queries over the request json.
+   */
+  private static RequestLog readWithJsonPath(CdsRequest<?, ?> request) throws Exception {
+    RequestLog log = new RequestLog();
+    String requestStr = new ObjectMapper().writer().writeValueAsString(request);
+    Object reqDoc = Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS).jsonProvider()
+        .parse(requestStr);
+    List<String> jList;
+
+    jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='DeviceRequest')].codeCodeableConcept.coding[*].code");
+    if (jList.isEmpty()) {
+      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='ServiceRequest')].code.coding[*].code");
+    }
+    if (!jList.isEmpty()) {
+      log.setCode(jList.get(0));
+    }
+
+    jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='DeviceRequest')].codeCodeableConcept.coding[*].system");
+    if (jList.isEmpty()) {
+      jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='ServiceRequest')].code.coding[*].system");
+    }
+    if (!jList.isEmpty()) {
+      log.setCodeSystem(jList.get(0));
+    }
+
+    jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Location')].address.state");
+    log.setProviderAddressState(jList.isEmpty() ? "N/A" : jList.get(0));
+
+    jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Patient')].address[*].state");
+    log.setPatientAddressState(jList.isEmpty() ? "N/A" : jList.get(0));
+
+    jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Patient')].gender");
+    log.setPatientGender(jList.isEmpty() ? "N/A" : jList.get(0));
+
+    jList = JsonPath.read(reqDoc, "$..resource[?(@.resourceType=='Patient')].birthDate");
+    if (jList.isEmpty()) {
+      log.setPatientAge(-100);
+    } else {
+      log.setPatientAge(new Period(new DateTime(jList.get(0)), new DateTime()).getYears());
+    }
+    return log;
+  }
+
+  private static void assertSameFields(CdsRequest<?, ?> request) throws Exception {
+    RequestLog expected = readWithJsonPath(request);
+    RequestLog actual = new RequestLog();
+    RequestLogExtractor.extract(request, actual);
+    assertEquals(expected.getCode(), actual.getCode());
+    assertEquals(expected.getCodeSystem(), actual.getCodeSystem());
+    assertEquals(expected.getProviderAddressState(), actual.getProviderAddressState());
+    assertEquals(expected.getPatientAddressState(), actual.getPatientAddressState());
+    assertEquals(expected.getPatientGender(), actual.getPatientGender());
+    assertEquals(expected.getPatientAge(), actual.getPatientAge());
+  }
+
+  private static Calendar birthDate() {
+    Calendar cal = Calendar.getInstance();
+    cal.set(1970, Calendar.JULY, 4);
+    return cal;
+  }
+
+  @Test
+  public void testOrderSign() throws Exception {
+    CdsRequest<?, ?> request = CrdRequestCreator.createOrderSignRequest(Enumerations.AdministrativeGender.MALE,
+        birthDate().getTime(), "MA", "NY");
+    assertSameFields(request);
+
+    RequestLog log = new RequestLog();
+    RequestLogExtractor.extract(request, log);
+    assertEquals("A0426", log.getCode());
+    assertEquals("male", log.getPatientGender());
+    assertEquals("MA", log.getPatientAddressState());
+    assertEquals("NY", log.getProviderAddressState());
+  }
+
+  @Test
+  public void testOrderSelect() throws Exception {
+    assertSameFields(CrdRequestCreator.createOrderSelectRequest(Enumerations.AdministrativeGender.FEMALE,
+        birthDate().getTime(), "CA", "CA", REQUEST_CODING, STATEMENT_CODING));
+  }
+
+  @Test
+  public void testMissingPatientFields() throws Exception {
+    CdsRequest<?, ?> request = CrdRequestCreator.createOrderSignRequest(null, null, null, "NY");
+    assertSameFields(request);
+
+    RequestLog log = new RequestLog();
+    RequestLogExtractor.extract(request, log);
+    assertEquals("N/A", log.getPatientGender());
+    assertEquals("N/A", log.getPatientAddressState());
+    assertEquals(-100, log.getPatientAge());
+  }
+}
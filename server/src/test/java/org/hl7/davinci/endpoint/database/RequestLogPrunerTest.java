@@ -0,0 +1,114 @@
+package org.hl7.davinci.endpoint.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class RequestLogPrunerTest {
+
+  private RequestRepository repository;
+
+  private RequestLogPruner pruner(long retentionMinutes, int maxRows, long maxBodyBytes) {
+    YamlConfig config = new YamlConfig();
+    config.setRequestLogRetentionMinutes(retentionMinutes);
+    config.setRequestLogMaxRows(maxRows);
+    config.setRequestLogMaxBodyBytes(maxBodyBytes);
+
+    repository = mock(RequestRepository.class);
+    // ten logs, ids 10 (newest) down to 1, each with a 100 byte body
+    when(repository.findIdsAndBodySizes(any())).thenAnswer(invocation -> {
+      Pageable pageable = invocation.getArgument(0);
+      List<Object[]> rows = new ArrayList<>();
+      for (long id = 10; id >= 1; id--) {
+        if (pageable.isPaged() && rows.size() >= pageable.getPageSize()) {
+          break;
+        }
+        rows.add(new Object[] {id, 100});
+      }
+      return rows;
+    });
+    when(repository.deleteUpToId(anyLong())).thenAnswer(invocation -> (int) (long) invocation.<Long>getArgument(0));
+
+    RequestLogPruner pruner = new RequestLogPruner();
+    ReflectionTestUtils.setField(pruner, "myConfig", config);
+    ReflectionTestUtils.setField(pruner, "requestRepository", repository);
+    return pruner;
+  }
+
+  @Test
+  public void testNoLimits() {
+    assertEquals(0, pruner(0, 0, 0).prune());
+    verifyNoInteractions(repository);
+  }
+
+  @Test
+  public void testRetention() {
+    RequestLogPruner pruner = pruner(60, 0, 0);
+    when(repository.deleteOlderThan(anyLong())).thenReturn(4);
+    long before = System.currentTimeMillis();
+    assertEquals(4, pruner.prune());
+
+    ArgumentCaptor<Long> cutoff = ArgumentCaptor.forClass(Long.class);
+    verify(repository).deleteOlderThan(cutoff.capture());
+    long hour = TimeUnit.MINUTES.toMillis(60);
+    assertTrue(cutoff.getValue() >= before - hour);
+    assertTrue(cutoff.getValue() <= System.currentTimeMillis() - hour);
+    verify(repository, never()).deleteUpToId(anyLong());
+  }
+
+  @Test
+  public void testMaxRows() {
+    RequestLogPruner pruner = pruner(0, 3, 0);
+    // logs 7 and older go
+    assertEquals(7, pruner.prune());
+    verify(repository).findIdsAndBodySizes(PageRequest.of(0, 4));
+    verify(repository).deleteUpToId(7);
+  }
+
+  @Test
+  public void testMaxBodyBytes() {
+    RequestLogPruner pruner = pruner(0, 0, 250);
+    // the third newest log takes the bodies over 250 bytes
+    assertEquals(8, pruner.prune());
+    verify(repository).findIdsAndBodySizes(Pageable.unpaged());
+    verify(repository).deleteUpToId(8);
+  }
+
+  @Test
+  public void testTighterLimitWins() {
+    RequestLogPruner pruner = pruner(0, 5, 250);
+    assertEquals(8, pruner.prune());
+    verify(repository).deleteUpToId(8);
+  }
+
+  @Test
+  public void testUnderLimits() {
+    RequestLogPruner pruner = pruner(0, 10, 1000);
+    assertEquals(0, pruner.prune());
+    verify(repository, never()).deleteUpToId(anyLong());
+  }
+
+  @Test
+  public void testFailureIsLogged() {
+    RequestLogPruner pruner = pruner(60, 0, 0);
+    when(repository.deleteOlderThan(anyLong())).thenThrow(new RuntimeException("database gone"));
+    assertEquals(0, pruner.prune());
+  }
+}
@@ -0,0 +1,88 @@
+package org.hl7.davinci.endpoint.database;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Calendar;
+
+import org.hl7.davinci.r4.CrdRequestCreator;
+import org.hl7.davinci.r4.crdhook.CrdPrefetch;
+import org.hl7.davinci.r4.crdhook.ordersign.OrderSignRequest;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class RequestLogTest {
+
+  private static final String FHIR_SERVER = "http://ehr.example.org/fhir";
+
+  private static OrderSignRequest request() {
+    Calendar cal = Calendar.getInstance();
+    cal.set(1970, Calendar.JULY, 4);
+    OrderSignRequest request = CrdRequestCreator.createOrderSignRequest(Enumerations.AdministrativeGender.MALE,
+        cal.getTime(), "MA", "NY");
+    request.setFhirServer(FHIR_SERVER);
+    return request;
+  }
+
+  private static RequestLog log(OrderSignRequest request, boolean captureBody) {
+    return new RequestLog(request, 1000L, "R4", "order-sign", mock(RequestService.class), 5, captureBody);
+  }
+
+  private static JsonNode json(byte[] body) throws Exception {
+    return new ObjectMapper().readTree(body);
+  }
+
+  @Test
+  public void testBodyIsTheRequestAsReceived() throws Exception {
+    OrderSignRequest request = request();
+    RequestLog log = log(request, true);
+    byte[] received = log.getRequestBody();
+
+    // the request thread carries on with the request: hydrating the prefetch and so on
+    request.setFhirServer("http://changed.example.org/fhir");
+    ((CrdPrefetch) request.getPrefetch()).setDeviceRequestBundle(new Bundle());
+    request.getContext().getDraftOrders().addEntry().setFullUrl("urn:uuid:added");
+
+    assertArrayEquals(received, log.getRequestBody());
+    JsonNode body = json(log.getRequestBody());
+    assertEquals(FHIR_SERVER, body.get("fhirServer").asText());
+    JsonNode deviceRequestBundle = body.get("prefetch").get("deviceRequestBundle");
+    assertTrue(deviceRequestBundle == null || deviceRequestBundle.isNull());
+    assertFalse(new String(log.getRequestBody()).contains("urn:uuid:added"));
+
+    // saving a snapshot later on, as the writer thread does, stores the same body
+    RequestLog snapshot = log.snapshot();
+    snapshot.compressRequestBody();
+    assertArrayEquals(received, snapshot.getRequestBody());
+    assertTrue(snapshot.getRequestBodySize() > 0);
+  }
+
+  @Test
+  public void testBodyNotCaptured() throws Exception {
+    RequestLog log = log(request(), false);
+    assertEquals("{}", new String(log.getRequestBody()));
+    log.compressRequestBody();
+    assertEquals("{}", new String(log.getRequestBody()));
+  }
+
+  @Test
+  public void testCompressedBodyReadBack() throws Exception {
+    RequestLog log = log(request(), true);
+    byte[] received = log.getRequestBody();
+    log.compressRequestBody();
+
+    // a log read back from the database only has the compressed column
+    RequestLog stored = new RequestLog();
+    stored.setId(log.getId());
+    ReflectionTestUtils.setField(stored, "requestBody", ReflectionTestUtils.getField(log, "requestBody"));
+    assertArrayEquals(received, stored.getRequestBody());
+    assertEquals(FHIR_SERVER, json(stored.getRequestBody()).get("fhirServer").asText());
+  }
+}
@@ -0,0 +1,147 @@
+package org.hl7.davinci.endpoint.database;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class RequestLogWriterTest {
+
+  private RequestLogWriter writer;
+  // every batch passed to saveAll
+  private final List<List<RequestLog>> batches = new ArrayList<>();
+  private final CountDownLatch firstSaveStarted = new CountDownLatch(1);
+  private final CountDownLatch releaseFirstSave = new CountDownLatch(1);
+
+  private RequestLogWriter start(int queueSize) {
+    YamlConfig config = new YamlConfig();
+    config.setRequestLogQueueSize(queueSize);
+    config.setRequestLogBatchSize(100);
+
+    AtomicLong nextId = new AtomicLong(1);
+    RequestRepository repository = mock(RequestRepository.class);
+    when(repository.saveAll(any())).thenAnswer(invocation -> {
+      List<RequestLog> batch = new ArrayList<>();
+      for (Object log : (Iterable<?>) invocation.getArgument(0)) {
+        batch.add((RequestLog) log);
+      }
+      synchronized (batches) {
+        batches.add(batch);
+      }
+      firstSaveStarted.countDown();
+      // the first save blocks, so the updates after it pile up in the queue
+      releaseFirstSave.await(5, TimeUnit.SECONDS);
+      for (RequestLog log : batch) {
+        if (log.getId() == 0) {
+          log.setId(nextId.getAndIncrement());
+        }
+      }
+      return batch;
+    });
+
+    writer = new RequestLogWriter();
+    ReflectionTestUtils.setField(writer, "myConfig", config);
+    ReflectionTestUtils.setField(writer, "requestRepository", repository);
+    writer.start();
+    return writer;
+  }
+
+  @AfterEach
+  public void stop() {
+    releaseFirstSave.countDown();
+    if (writer != null) {
+      writer.stop();
+    }
+  }
+
+  private static RequestLog newLog(String results) {
+    RequestLog log = new RequestLog("{\"hook\": \"order-sign\"}".getBytes(), 1000L);
+    log.setResults(results);
+    return log;
+  }
+
+  @Test
+  public void testCoalescesUpdatesOfOneLog() throws Exception {
+    start(100);
+    RequestLog blocker = newLog("blocker");
+    writer.submit(blocker);
+    assertTrue(firstSaveStarted.await(5, TimeUnit.SECONDS));
+
+    RequestLog log = newLog("first");
+    writer.submit(log);
+    log.setResults("second");
+    writer.submit(log);
+    log.setResults("third");
+    writer.submit(log);
+    releaseFirstSave.countDown();
+    writer.stop();
+
+    assertEquals(2, batches.size());
+    List<RequestLog> second = batches.get(1);
+    assertEquals(1, second.size());
+    assertEquals("third", second.get(0).getResults());
+    assertEquals(2, writer.getWrittenCount());
+    assertEquals(0, writer.getDroppedCount());
+  }
+
+  @Test
+  public void testUpdateKeepsTheInsertedId() throws Exception {
+    start(100);
+    RequestLog log = newLog("first");
+    writer.submit(log);
+    assertTrue(firstSaveStarted.await(5, TimeUnit.SECONDS));
+    log.setResults("second");
+    writer.submit(log);
+    releaseFirstSave.countDown();
+    writer.stop();
+
+    assertEquals(2, batches.size());
+    assertEquals(1, batches.get(1).get(0).getId());
+    // the live log is never given the id, only its snapshots
+    assertEquals(0, log.getId());
+  }
+
+  @Test
+  public void testDropsWhenQueueFull() throws Exception {
+    start(1);
+    writer.submit(newLog("blocker"));
+    assertTrue(firstSaveStarted.await(5, TimeUnit.SECONDS));
+
+    assertTrue(writer.submit(newLog("queued")));
+    assertFalse(writer.submit(newLog("dropped")));
+    assertEquals(1, writer.getDroppedCount());
+    assertEquals(1, writer.getQueueSize());
+  }
+
+  @Test
+  public void testBodyCompressedOnWrite() throws Exception {
+    start(100);
+    RequestLog log = newLog("body");
+    writer.submit(log);
+    assertTrue(firstSaveStarted.await(5, TimeUnit.SECONDS));
+    releaseFirstSave.countDown();
+    writer.stop();
+
+    RequestLog saved = batches.get(0).get(0);
+    assertTrue(saved.getRequestBodySize() > 0);
+    assertNotNull(saved.getRequestBody());
+    assertArrayEquals(log.getRequestBody(), saved.getRequestBody());
+    // the request's own copy was not compressed
+    assertEquals(0, log.getRequestBodySize());
+  }
+}
@@ -0,0 +1,76 @@
+package org.hl7.davinci.endpoint.files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hl7.davinci.endpoint.database.CodeRange;
+import org.junit.jupiter.api.Test;
+
+public class CodeRangeIndexTest {
+
+  @Test
+  public void testSingleRange() {
+    CodeRangeIndex<String> index = new CodeRangeIndex.Builder<String>()
+        .add(new CodeRange("E0424", "E0486"), "oxygen").build();
+    assertEquals(Collections.singletonList("oxygen"), index.find("E0424"));
+    assertEquals(Collections.singletonList("oxygen"), index.find("E0450"));
+    assertEquals(Collections.singletonList("oxygen"), index.find("E0486"));
+    assertTrue(index.find("E0423").isEmpty());
+    assertTrue(index.find("E0487").isEmpty());
+    assertTrue(index.find("A0000").isEmpty());
+  }
+
+  @Test
+  public void testOverlappingRanges() {
+    CodeRangeIndex<String> index = new CodeRangeIndex.Builder<String>()
+        .add(new CodeRange("80000", "89999"), "lab")
+        .add(new CodeRange("82940", "82949"), "glucose")
+        .add(new CodeRange("82945", "83000"), "other")
+        .build();
+    assertEquals(Collections.singletonList("lab"), index.find("80000"));
+    assertEquals(Arrays.asList("lab", "glucose"), index.find("82940"));
+    assertEquals(Arrays.asList("lab", "glucose", "other"), index.find("82945"));
+    assertEquals(Arrays.asList("lab", "glucose", "other"), index.find("82949"));
+    assertEquals(Arrays.asList("lab", "other"), index.find("82950"));
+    assertEquals(Arrays.asList("lab", "other"), index.find("83000"));
+    assertEquals(Collections.singletonList("lab"), index.find("83001"));
+    assertTrue(index.find("90000").isEmpty());
+  }
+
+  @Test
+  public void testValuesInOrderAdded() {
+    CodeRangeIndex<String> index = new CodeRangeIndex.Builder<String>()
+        .add(new CodeRange("50", "59"), "late")
+        .add(new CodeRange("10", "99"), "wide")
+        .build();
+    assertEquals(Arrays.asList("late", "wide"), index.find("55"));
+  }
+
+  @Test
+  public void testSameValueInSeveralRanges() {
+    CodeRangeIndex<String> index = new CodeRangeIndex.Builder<String>()
+        .add(new CodeRange("10", "20"), "rule")
+        .add(new CodeRange("15", "30"), "rule")
+        .build();
+    assertEquals(Collections.singletonList("rule"), index.find("17"));
+    assertEquals(Collections.singletonList("rule"), index.find("25"));
+    assertTrue(index.find("31").isEmpty());
+  }
+
+  @Test
+  public void testSingleCodeRange() {
+    CodeRangeIndex<String> index = new CodeRangeIndex.Builder<String>()
+        .add(new CodeRange("E0424", "E0424"), "one").build();
+    assertEquals(Collections.singletonList("one"), index.find("E0424"));
+    assertTrue(index.find("E0425").isEmpty());
+  }
+
+  @Test
+  public void testEmpty() {
+    CodeRangeIndex<String> index = new CodeRangeIndex.Builder<String>().build();
+    assertTrue(index.find("E0424").isEmpty());
+  }
+}
@@ -0,0 +1,51 @@
+package org.hl7.davinci.endpoint.files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+
+public class PrecompiledElmDirTest {
+
+  private static final String CQL = "Topic/R4/files/TopicRule-0.1.0.cql";
+  private static final File EXPECTED = new File("build/elm/CDS-Library/Topic/R4/files");
+
+  @Test
+  public void testRelativeLibraryPath() {
+    assertEquals(EXPECTED, CommonFileStore.precompiledElmDir("build/elm/", "CDS-Library/",
+        new File("CDS-Library/" + CQL)));
+  }
+
+  @Test
+  public void testAbsoluteLibraryPath() {
+    String libraryPath = new File("CDS-Library").getAbsolutePath();
+    assertEquals(EXPECTED, CommonFileStore.precompiledElmDir("build/elm/", libraryPath + "/",
+        new File(libraryPath, CQL)));
+  }
+
+  @Test
+  public void testRelativeLibraryPathWithAbsoluteCqlFile() {
+    assertEquals(EXPECTED, CommonFileStore.precompiledElmDir("build/elm", "./CDS-Library",
+        new File("CDS-Library/" + CQL).getAbsoluteFile()));
+  }
+
+  @Test
+  public void testAbsolutePrecompiledElmPath() {
+    String elmPath = new File("build/elm").getAbsolutePath();
+    assertEquals(new File(elmPath, "CDS-Library/Topic/R4/files"),
+        CommonFileStore.precompiledElmDir(elmPath, "CDS-Library/", new File("CDS-Library/" + CQL)));
+  }
+
+  @Test
+  public void testNotSet() {
+    assertNull(CommonFileStore.precompiledElmDir(null, "CDS-Library/", new File("CDS-Library/" + CQL)));
+    assertNull(CommonFileStore.precompiledElmDir("", "CDS-Library/", new File("CDS-Library/" + CQL)));
+  }
+
+  @Test
+  public void testCqlOutsideLibrary() {
+    assertNull(CommonFileStore.precompiledElmDir("build/elm/", "CDS-Library/", new File("examples/" + CQL)));
+  }
+}
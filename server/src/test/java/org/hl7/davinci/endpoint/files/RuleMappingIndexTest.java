@@ -0,0 +1,100 @@
+package org.hl7.davinci.endpoint.files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.davinci.endpoint.database.CodeRange;
+import org.hl7.davinci.endpoint.database.RuleMapping;
+import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
+import org.junit.jupiter.api.Test;
+
+public class RuleMappingIndexTest {
+
+  private static final String CPT = "http://www.ama-assn.org/go/cpt";
+  private static final String HCPCS = "https://bluebutton.cms.gov/resources/codesystem/hcpcs";
+
+  private static final RuleMapping OXYGEN = new RuleMapping().setTopic("HomeOxygenTherapy")
+      .setPayers(Arrays.asList("cms", "bcbs")).setCodeSystem(HCPCS).setCodes(new String[] {"E0424", "E0439"})
+      .setFhirVersion("R4");
+  private static final RuleMapping GLUCOSE = new RuleMapping().setTopic("Glucose")
+      .setPayers(Collections.singletonList("cms")).setCodeSystem(CPT).setCodes(new String[] {"82947"})
+      .setCodeRanges(Collections.singletonList(new CodeRange("82940", "82949"))).setFhirVersion("R4");
+  private static final RuleMapping LAB = new RuleMapping().setTopic("Lab")
+      .setPayers(Collections.singletonList("cms")).setCodeSystem(CPT)
+      .setCodeRanges(Collections.singletonList(new CodeRange("80000", "89999"))).setFhirVersion("R4");
+
+  private static RuleMappingIndex index() {
+    return new RuleMappingIndex.Builder().add(OXYGEN).add(GLUCOSE).add(LAB).build();
+  }
+
+  private static CoverageRequirementRuleCriteria criteria(String payer, String codeSystem, String code) {
+    return new CoverageRequirementRuleCriteria().setPayor(payer).setCodeSystem(codeSystem).setCode(code)
+        .setFhirVersion("R4");
+  }
+
+  @Test
+  public void testFindByCode() {
+    RuleMappingIndex index = index();
+    assertEquals(3, index.size());
+    assertEquals(Collections.singletonList(OXYGEN), index.find(criteria("cms", HCPCS, "E0424")));
+    assertEquals(Collections.singletonList(OXYGEN), index.find(criteria("bcbs", HCPCS, "E0439")));
+  }
+
+  @Test
+  public void testFindNoMatch() {
+    RuleMappingIndex index = index();
+    assertTrue(index.find(criteria("cms", HCPCS, "E0000")).isEmpty());
+    // payer, code system and FHIR version are all part of the key
+    assertTrue(index.find(criteria("aetna", HCPCS, "E0424")).isEmpty());
+    assertTrue(index.find(criteria("cms", CPT, "E0424")).isEmpty());
+    assertTrue(index.find(criteria("cms", HCPCS, "E0424").setFhirVersion("STU3")).isEmpty());
+    assertTrue(index.find(criteria("cms", HCPCS, null)).isEmpty());
+  }
+
+  @Test
+  public void testFindByCodeAndRange() {
+    RuleMappingIndex index = index();
+    // listed and in its own range, only returned once
+    assertEquals(Arrays.asList(GLUCOSE, LAB), index.find(criteria("cms", CPT, "82947")));
+    assertEquals(Arrays.asList(GLUCOSE, LAB), index.find(criteria("cms", CPT, "82940")));
+    assertEquals(Collections.singletonList(LAB), index.find(criteria("cms", CPT, "82950")));
+    // ranges only match codes of the same length
+    assertTrue(index.find(criteria("cms", CPT, "829470")).isEmpty());
+  }
+
+  @Test
+  public void testFindList() {
+    RuleMappingIndex index = index();
+    List<List<RuleMapping>> found = index.find(Arrays.asList(criteria("cms", HCPCS, "E0424"),
+        criteria("cms", CPT, "99999"), criteria("cms", HCPCS, "E0424")));
+    assertEquals(3, found.size());
+    assertEquals(Collections.singletonList(OXYGEN), found.get(0));
+    assertTrue(found.get(1).isEmpty());
+    assertEquals(Collections.singletonList(OXYGEN), found.get(2));
+    // each result is its own list
+    found.get(0).clear();
+    assertEquals(Collections.singletonList(OXYGEN), found.get(2));
+  }
+
+  @Test
+  public void testMayMatch() {
+    RuleMappingIndex index = index();
+    assertTrue(index.mayMatch(HCPCS, "E0424"));
+    assertTrue(index.mayMatch(CPT, "85000"));
+    assertFalse(index.mayMatch(CPT, "79999"));
+    assertFalse(index.mayMatch(null, "E0424"));
+  }
+
+  @Test
+  public void testEmpty() {
+    RuleMappingIndex index = new RuleMappingIndex.Builder().build();
+    assertEquals(0, index.size());
+    assertTrue(index.find(criteria("cms", HCPCS, "E0424")).isEmpty());
+    assertFalse(index.mayMatch(CPT, "85000"));
+  }
+}